@@ -0,0 +1,254 @@
+package backend.database;
+
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The BatchWriter class sends many rows of the same write statement to the database in JDBC batches.
+ * Instead of one round trip (and one commit) per row, the rows are sent batchSize at a time,
+ * each batch committed as a single transaction.
+ * <p>
+ * If a batch fails, it's rolled back and its rows are retried one by one (each behind a savepoint),
+ * so the caller still learns exactly which rows were written.
+ * A ChunkListener can add its own writes to every batch's transaction, e.g. to keep totals in line with the rows.
+ *
+ * @author taconoodle
+ */
+public class BatchWriter {
+    /**
+     * Default amount of rows sent to the database in a single batch
+     */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /**
+     * Sets the parameters of a statement from a single row
+     *
+     * @param <T> the type of the rows
+     */
+    @FunctionalInterface
+    public interface RowBinder<T> {
+        /**
+         * Sets the statement's parameters
+         *
+         * @param statement the statement
+         * @param row       the row whose data are used
+         * @throws SQLException if a database error is encountered
+         */
+        void bind(PreparedStatement statement, T row) throws SQLException;
+    }
+
+    /**
+     * Called with the rows of a batch that were written, before the batch is committed
+     *
+     * @param <T> the type of the rows
+     */
+    @FunctionalInterface
+    public interface ChunkListener<T> {
+        /**
+         * Runs more writes in the batch's transaction
+         *
+         * @param written the rows written by the batch
+         * @throws SQLException if a database error is encountered, the batch is rolled back and the error thrown
+         */
+        void beforeCommit(List<T> written) throws SQLException;
+    }
+
+    /**
+     * Executes a write statement once for every row, batchSize rows at a time
+     *
+     * @param conn      the connection to use
+     * @param sql       the write statement
+     * @param rows      the rows to write
+     * @param batchSize the maximum amount of rows per batch
+     * @param binder    sets the statement's parameters from a row
+     * @param <T>       the type of the rows
+     * @return one outcome per row, in the order of the rows: true if the row was written (affected a record)
+     * @throws SQLException if a database error not related to a specific row is encountered
+     */
+    public static <T> boolean[] executeBatch(Connection conn, String sql, List<T> rows, int batchSize,
+                                             RowBinder<T> binder) throws SQLException {
+        return executeBatch(conn, sql, rows, batchSize, binder, written -> {
+        });
+    }
+
+    /**
+     * Executes a write statement once for every row, batchSize rows at a time,
+     * letting a listener write more in each batch's transaction
+     *
+     * @param conn      the connection to use
+     * @param sql       the write statement
+     * @param rows      the rows to write
+     * @param batchSize the maximum amount of rows per batch
+     * @param binder    sets the statement's parameters from a row
+     * @param listener  called with the written rows of every batch before it's committed
+     * @param <T>       the type of the rows
+     * @return one outcome per row, in the order of the rows: true if the row was written (affected a record)
+     * @throws SQLException if a database error not related to a specific row is encountered
+     */
+    public static <T> boolean[] executeBatch(Connection conn, String sql, List<T> rows, int batchSize,
+                                             RowBinder<T> binder, ChunkListener<T> listener) throws SQLException {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        }
+        boolean[] outcomes = new boolean[rows.size()];
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+
+        try (PreparedStatement statement = conn.prepareStatement(sql)) {
+            for (int start = 0; start < rows.size(); start += batchSize) {
+                int end = Math.min(start + batchSize, rows.size());
+
+                //Send the whole chunk in one round trip and commit it as one transaction
+                try {
+                    for (int i = start; i < end; i++) {
+                        binder.bind(statement, rows.get(i));
+                        statement.addBatch();
+                    }
+                    int[] counts = statement.executeBatch();
+                    for (int i = start; i < end; i++) {
+                        //The whole chunk was written, a missing count can only mean a row without info
+                        outcomes[i] = counts.length != end - start || isWritten(counts[i - start]);
+                    }
+                    listener.beforeCommit(written(rows, start, end, outcomes));
+                    conn.commit();
+                } catch (BatchUpdateException e) {
+                    //Some row of the chunk was rejected, find out which one by retrying them separately
+                    conn.rollback();
+                    statement.clearBatch();
+                    retryOneByOne(conn, statement, rows, start, end, binder, outcomes);
+                    listener.beforeCommit(written(rows, start, end, outcomes));
+                    conn.commit();
+                }
+            }
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+        return outcomes;
+    }
+
+    /**
+     * Executes a write statement once for every row, batchSize rows at a time, inside the caller's transaction
+     * Nothing is committed or rolled back here: the rows become part of a larger all-or-nothing write,
+     * so a rejected row fails the whole batch and the caller is expected to roll back
+     *
+     * @param conn      the connection to use, with autocommit off
+     * @param sql       the write statement
+     * @param rows      the rows to write
+     * @param batchSize the maximum amount of rows per batch
+     * @param binder    sets the statement's parameters from a row
+     * @param <T>       the type of the rows
+     * @return the total amount of records affected, rows reported without info are counted as one
+     * @throws SQLException if any row was rejected or a database error is encountered
+     */
+    public static <T> int executeInTransaction(Connection conn, String sql, Collection<T> rows, int batchSize,
+                                               RowBinder<T> binder) throws SQLException {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        }
+        if (rows.isEmpty()) {
+            return 0;
+        }
+
+        int affected = 0;
+        try (PreparedStatement statement = conn.prepareStatement(sql)) {
+            int pending = 0;
+            for (T row : rows) {
+                binder.bind(statement, row);
+                statement.addBatch();
+                if (++pending == batchSize) {
+                    affected += sum(statement.executeBatch());
+                    pending = 0;
+                }
+            }
+            if (pending > 0) {
+                affected += sum(statement.executeBatch());
+            }
+        }
+        return affected;
+    }
+
+    /**
+     * Adds up the update counts of a batch
+     *
+     * @param counts the update counts reported by the driver
+     * @return the amount of records affected, counts without info are counted as one
+     */
+    private static int sum(int[] counts) {
+        int total = 0;
+        for (int count : counts) {
+            total += count == Statement.SUCCESS_NO_INFO ? 1 : Math.max(count, 0);
+        }
+        return total;
+    }
+
+    /**
+     * Executes the rows of a failed chunk one by one, each behind a savepoint, keeping the ones that succeeded
+     * The caller commits them
+     *
+     * @param conn      the connection to use
+     * @param statement the write statement
+     * @param rows      all the rows
+     * @param start     the index of the chunk's first row
+     * @param end       the index after the chunk's last row
+     * @param binder    sets the statement's parameters from a row
+     * @param outcomes  where the outcome of each row is stored
+     * @param <T>       the type of the rows
+     * @throws SQLException if a database error not related to a specific row is encountered
+     */
+    private static <T> void retryOneByOne(Connection conn, PreparedStatement statement, List<T> rows,
+                                          int start, int end, RowBinder<T> binder, boolean[] outcomes) throws SQLException {
+        for (int i = start; i < end; i++) {
+            Savepoint savepoint = conn.setSavepoint();
+            try {
+                binder.bind(statement, rows.get(i));
+                outcomes[i] = isWritten(statement.executeUpdate());
+                conn.releaseSavepoint(savepoint);
+            } catch (SQLException e) {
+                System.err.println("SQL Database error in batch row " + i + ": " + e.getMessage());
+                conn.rollback(savepoint);
+                outcomes[i] = false;
+            }
+        }
+    }
+
+    /**
+     * Gets the rows of a chunk that were written
+     *
+     * @param rows     all the rows
+     * @param start    the index of the chunk's first row
+     * @param end      the index after the chunk's last row
+     * @param outcomes the outcome of each row
+     * @param <T>      the type of the rows
+     * @return the written rows, in order
+     */
+    private static <T> List<T> written(List<T> rows, int start, int end, boolean[] outcomes) {
+        ArrayList<T> written = new ArrayList<>(end - start);
+        for (int i = start; i < end; i++) {
+            if (outcomes[i]) {
+                written.add(rows.get(i));
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Checks whether an update count means the row was written
+     * Rewritten batched inserts report SUCCESS_NO_INFO instead of the real count
+     *
+     * @param count the update count reported by the driver
+     * @return true if the row was written
+     */
+    private static boolean isWritten(int count) {
+        return count > 0 || count == Statement.SUCCESS_NO_INFO;
+    }
+}
@@ -0,0 +1,378 @@
+package backend.database;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The ConnectionPool class keeps a bounded set of database connections that are shared among the managers.
+ * Instead of opening a new connection (a full PostgreSQL handshake) for each operation, callers borrow an
+ * already open connection and give it back by closing it.
+ * <p>
+ * The pool never holds more than maxSize connections, keeps at least minSize of them open,
+ * validates idle connections before handing them out and closes the ones that have been idle for too long.
+ * The class is final because its constructor already hands the pool to the connections it opens.
+ *
+ * @author taconoodle
+ */
+public final class ConnectionPool implements AutoCloseable {
+    /**
+     * The amount of seconds a connection has to answer a validation check before it's considered broken
+     */
+    public static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    /**
+     * The JDBC url of the database
+     */
+    private final String url;
+
+    /**
+     * The properties (credentials and driver settings) used to open new connections
+     */
+    private final Properties properties;
+
+    /**
+     * The minimum amount of connections the pool keeps open
+     */
+    private final int minSize;
+
+    /**
+     * The maximum amount of connections the pool is allowed to open
+     */
+    private final int maxSize;
+
+    /**
+     * The maximum amount of milliseconds a borrower waits for a connection
+     */
+    private final long borrowTimeoutMillis;
+
+    /**
+     * The amount of milliseconds after which an idle connection gets closed (as long as the pool stays above minSize)
+     */
+    private final long idleTimeoutMillis;
+
+    /**
+     * The maximum amount of prepared statements cached per connection (0 disables the cache)
+     */
+    private final int statementCacheSize;
+
+    /**
+     * The hits, misses and evictions of the statement caches of all connections
+     */
+    private final StatementCache.Counters statementCacheCounters = new StatementCache.Counters();
+
+    /**
+     * The connections that currently wait to be borrowed
+     * The most recently returned connection is at the head, so the tail holds the ones idle for the longest
+     */
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+
+    /**
+     * One permit per connection that can still be borrowed
+     */
+    private final Semaphore permits;
+
+    /**
+     * The amount of physical connections currently open (idle and borrowed)
+     */
+    private final AtomicInteger openConnections = new AtomicInteger();
+
+    /**
+     * Periodically closes idle connections and refills the pool up to minSize
+     */
+    private final ScheduledExecutorService evictor;
+
+    /**
+     * Whether the pool has been shut down
+     */
+    private volatile boolean closed = false;
+
+    //Counters reported by getStatistics()
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong createdCount = new AtomicLong();
+    private final AtomicLong destroyedCount = new AtomicLong();
+    private final AtomicLong validationFailureCount = new AtomicLong();
+    private final AtomicLong evictedCount = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+
+    /**
+     * Default constructor
+     * Opens minSize connections right away, so wrong credentials are reported immediately
+     *
+     * @param url                 the JDBC url of the database
+     * @param properties          the credentials and driver settings of the connections
+     * @param minSize             the minimum amount of open connections
+     * @param maxSize             the maximum amount of open connections
+     * @param borrowTimeoutMillis how long a borrower waits for a connection before giving up
+     * @param idleTimeoutMillis   how long a connection can stay idle before it gets closed
+     * @param statementCacheSize  the maximum amount of prepared statements cached per connection (0 disables the cache)
+     * @throws SQLException if a connection could not be opened
+     */
+    public ConnectionPool(String url, Properties properties, int minSize, int maxSize,
+                          long borrowTimeoutMillis, long idleTimeoutMillis, int statementCacheSize) throws SQLException {
+        if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size: min " + minSize + ", max " + maxSize);
+        }
+        this.url = url;
+        this.properties = properties;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.statementCacheSize = statementCacheSize;
+        this.permits = new Semaphore(maxSize, true);
+
+        //Open the minimum connections now, closing whatever was opened if one of them fails
+        try {
+            for (int i = 0; i < minSize; i++) {
+                idle.offerLast(create());
+            }
+        } catch (SQLException e) {
+            idle.forEach(this::destroy);
+            idle.clear();
+            throw e;
+        }
+
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "connection-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, idleTimeoutMillis / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Borrows a connection from the pool
+     * The connection must be closed when the caller is done with it, which hands it back to the pool
+     *
+     * @return a validated database connection
+     * @throws SQLTimeoutException if no connection became available within the borrow timeout
+     * @throws SQLException        if a new connection could not be opened or the pool is closed
+     */
+    public Connection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+
+        //Wait for a free slot
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeoutCount.incrementAndGet();
+                throw new SQLTimeoutException("Timed out after " + borrowTimeoutMillis + " ms waiting for a database connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+        totalWaitNanos.addAndGet(System.nanoTime() - start);
+
+        try {
+            //Prefer the most recently used idle connection, throwing away the ones that fail validation
+            PooledConnection pooled;
+            while ((pooled = idle.pollFirst()) != null) {
+                if (pooled.validate(VALIDATION_TIMEOUT_SECONDS)) {
+                    borrowCount.incrementAndGet();
+                    return pooled.lease();
+                }
+                validationFailureCount.incrementAndGet();
+                destroy(pooled);
+            }
+
+            //No idle connection left, open a new one (the permit guarantees we stay under maxSize)
+            pooled = create();
+            borrowCount.incrementAndGet();
+            return pooled.lease();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Takes back a connection that a borrower has closed
+     *
+     * @param pooled the returned connection
+     */
+    void release(PooledConnection pooled) {
+        try {
+            if (closed || pooled.getPhysical().isClosed()) {
+                destroy(pooled);
+                return;
+            }
+            //Don't let an unfinished transaction leak to the next borrower
+            if (!pooled.getPhysical().getAutoCommit()) {
+                pooled.getPhysical().rollback();
+                pooled.getPhysical().setAutoCommit(true);
+            }
+            pooled.touch();
+            idle.offerFirst(pooled);
+            //close() may have drained the idle connections meanwhile, this one would never be closed then
+            if (closed && idle.remove(pooled)) {
+                destroy(pooled);
+            }
+        } catch (SQLException e) {
+            System.err.println("SQL Database error while returning connection to the pool: " + e.getMessage());
+            destroy(pooled);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Opens a new physical connection
+     *
+     * @return the new pooled connection
+     * @throws SQLException if the connection could not be opened
+     */
+    private PooledConnection create() throws SQLException {
+        Connection physical = DriverManager.getConnection(url, properties);
+        openConnections.incrementAndGet();
+        createdCount.incrementAndGet();
+        StatementCache statementCache = statementCacheSize > 0
+                ? new StatementCache(statementCacheSize, statementCacheCounters)
+                : null;
+        return new PooledConnection(physical, this, statementCache);
+    }
+
+    /**
+     * Closes a physical connection and forgets about it
+     *
+     * @param pooled the connection to close
+     */
+    private void destroy(PooledConnection pooled) {
+        pooled.closePhysical();
+        openConnections.decrementAndGet();
+        destroyedCount.incrementAndGet();
+    }
+
+    /**
+     * Closes the connections that have been idle for longer than the idle timeout and refills the pool up to minSize
+     * Runs periodically on the evictor thread
+     */
+    private void evictIdle() {
+        //An exception escaping the task would cancel every later run of the evictor
+        try {
+            evictIdleConnections();
+        } catch (RuntimeException e) {
+            System.err.println("Connection pool evictor error: " + e);
+        }
+    }
+
+    /**
+     * Closes the connections that have been idle for longer than the idle timeout and refills the pool up to minSize
+     */
+    private void evictIdleConnections() {
+        long now = System.currentTimeMillis();
+
+        //The tail of the deque holds the connections that have been idle the longest
+        Iterator<PooledConnection> iterator = idle.descendingIterator();
+        while (iterator.hasNext() && openConnections.get() > minSize) {
+            PooledConnection pooled = iterator.next();
+            if (now - pooled.getLastReleasedMillis() < idleTimeoutMillis) {
+                break;
+            }
+            //A borrower might have taken it in the meantime, only destroy it if we actually removed it
+            if (idle.remove(pooled)) {
+                evictedCount.incrementAndGet();
+                destroy(pooled);
+            }
+        }
+
+        //Keep the minimum amount of connections warm
+        try {
+            while (!closed && openConnections.get() < minSize) {
+                idle.offerLast(create());
+            }
+        } catch (SQLException e) {
+            System.err.println("SQL Database error while refilling the connection pool: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Gets a snapshot of the pool's usage
+     *
+     * @return the pool statistics
+     */
+    public Statistics getStatistics() {
+        long borrows = borrowCount.get();
+        return new Statistics(
+                openConnections.get(),
+                idle.size(),
+                maxSize - permits.availablePermits(),
+                borrows,
+                timeoutCount.get(),
+                createdCount.get(),
+                destroyedCount.get(),
+                validationFailureCount.get(),
+                evictedCount.get(),
+                borrows == 0 ? 0 : totalWaitNanos.get() / borrows / 1_000_000.0
+        );
+    }
+
+    /**
+     * Gets a snapshot of the prepared statement cache usage, summed over all connections of the pool
+     *
+     * @return the statement cache statistics
+     */
+    public StatementCache.Statistics getStatementCacheStatistics() {
+        return statementCacheCounters.snapshot();
+    }
+
+    /**
+     * Shuts the pool down and closes the idle connections
+     * Borrowed connections get closed as soon as they are returned
+     */
+    @Override
+    public void close() {
+        closed = true;
+        evictor.shutdownNow();
+
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            destroy(pooled);
+        }
+    }
+
+    /**
+     * A snapshot of the pool's usage
+     *
+     * @param open               the amount of open physical connections
+     * @param idle               the amount of connections waiting to be borrowed
+     * @param active             the amount of connections currently borrowed
+     * @param borrows            the amount of successful borrows
+     * @param timeouts           the amount of borrows that gave up waiting
+     * @param created            the amount of physical connections opened
+     * @param destroyed          the amount of physical connections closed
+     * @param validationFailures the amount of idle connections that failed validation
+     * @param evicted            the amount of connections closed for being idle too long
+     * @param averageWaitMillis  the average time a borrower waited for a free slot
+     */
+    public record Statistics(int open, int idle, int active, long borrows, long timeouts, long created,
+                             long destroyed, long validationFailures, long evicted, double averageWaitMillis) {
+        /**
+         * Creates a string containing the statistics
+         *
+         * @return the info string
+         */
+        @Override
+        public String toString() {
+            return String.format("open %d | idle %d | active %d | borrows %d | timeouts %d | created %d | " +
+                            "destroyed %d | validation failures %d | evicted %d | avg wait %.3f ms",
+                    open, idle, active, borrows, timeouts, created, destroyed, validationFailures, evicted,
+                    averageWaitMillis);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package backend.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * The CursorStream class turns a query into a lazily populated Stream.
+ * The query runs with autocommit off and a fetch size, which makes the driver use a server-side cursor:
+ * only fetchSize rows are held in memory at a time, no matter how many rows match.
+ * <p>
+ * The stream owns the connection it runs on. The cursor is closed and the connection returned to the pool
+ * as soon as the last row is read, or when the stream is closed, whichever comes first.
+ * Streams that may not be read to the end must therefore be closed (e.g. with try-with-resources).
+ *
+ * @author taconoodle
+ */
+public class CursorStream {
+    /**
+     * Default amount of rows fetched from the database at a time
+     */
+    public static final int DEFAULT_FETCH_SIZE = 500;
+
+    /**
+     * Converts the current row of a result set to an object
+     *
+     * @param <T> the type of the objects
+     */
+    @FunctionalInterface
+    public interface RowMapper<T> {
+        /**
+         * Converts the current row
+         *
+         * @param rs the result set, positioned on the row
+         * @return the object
+         * @throws SQLException if a database error is encountered
+         */
+        T map(ResultSet rs) throws SQLException;
+    }
+
+    /**
+     * Sets the parameters of a statement
+     */
+    @FunctionalInterface
+    public interface ParameterBinder {
+        /**
+         * Sets the statement's parameters
+         *
+         * @param statement the statement
+         * @throws SQLException if a database error is encountered
+         */
+        void bind(PreparedStatement statement) throws SQLException;
+    }
+
+    /**
+     * Runs a query through a cursor and streams its rows
+     *
+     * @param conn      the connection to run the query on, the stream closes it when done
+     * @param sql       the query
+     * @param fetchSize the amount of rows fetched from the database at a time
+     * @param binder    sets the query's parameters
+     * @param mapper    converts each row to an object
+     * @param <T>       the type of the objects
+     * @return the stream of the rows
+     * @throws SQLException if the query could not be run, in which case the connection is closed
+     */
+    public static <T> Stream<T> open(Connection conn, String sql, int fetchSize, ParameterBinder binder,
+                                     RowMapper<T> mapper) throws SQLException {
+        PreparedStatement statement = null;
+        try {
+            //The driver only uses a cursor inside a transaction
+            conn.setAutoCommit(false);
+            statement = conn.prepareStatement(sql);
+            statement.setFetchSize(fetchSize);
+            binder.bind(statement);
+            ResultSet rs = statement.executeQuery();
+
+            Cursor<T> cursor = new Cursor<>(conn, statement, rs, mapper);
+            return StreamSupport.stream(cursor, false).onClose(cursor::close);
+        } catch (SQLException e) {
+            if (statement != null) {
+                statement.close();
+            }
+            //Returning the connection to the pool also rolls back the transaction
+            conn.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the rows of an open result set one by one
+     *
+     * @param <T> the type of the objects
+     */
+    private static class Cursor<T> extends Spliterators.AbstractSpliterator<T> {
+        private final Connection conn;
+        private final PreparedStatement statement;
+        private final ResultSet rs;
+        private final RowMapper<T> mapper;
+
+        /**
+         * Whether the cursor has already been closed
+         */
+        private boolean closed = false;
+
+        /**
+         * Default constructor
+         *
+         * @param conn      the connection the query runs on
+         * @param statement the query's statement
+         * @param rs        the query's result set
+         * @param mapper    converts each row to an object
+         */
+        Cursor(Connection conn, PreparedStatement statement, ResultSet rs, RowMapper<T> mapper) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.conn = conn;
+            this.statement = statement;
+            this.rs = rs;
+            this.mapper = mapper;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            if (closed) {
+                return false;
+            }
+            try {
+                if (!rs.next()) {
+                    //Free the connection right away instead of waiting for the stream to be closed
+                    close();
+                    return false;
+                }
+                action.accept(mapper.map(rs));
+                return true;
+            } catch (SQLException e) {
+                close();
+                throw new UncheckedSQLException(e);
+            }
+        }
+
+        /**
+         * Closes the cursor and returns the connection to the pool
+         * Closing more than once does nothing
+         */
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                rs.close();
+                statement.close();
+                //The cursor only read data, nothing to keep
+                conn.rollback();
+            } catch (SQLException e) {
+                System.err.println("SQL Database error while closing cursor: " + e.getMessage());
+            } finally {
+                try {
+                    conn.close();
+                } catch (SQLException e) {
+                    System.err.println("SQL Database error while closing cursor: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -5,23 +5,61 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.sql.*;
+import java.util.Properties;
 
 /**
- * The DatabaseManager class manages a connection with the database and acts as a middle-man between the backend and the database
+ * The DatabaseManager class manages a pool of connections with the database and acts as a middle-man between the backend and the database
  *
  * @author taconoodle
  */
-public class DatabaseManager {
+public class DatabaseManager implements AutoCloseable {
     /**
-     * The main connection of the instance
+     * The pool the connections of the instance are borrowed from
      */
-    private Connection conn;
+    private ConnectionPool pool;
 
     /**
      * The username used to test the database
      */
     public static final String DB_TEST_USERNAME = "postgres";
 
+    /**
+     * The JDBC url of the database
+     */
+    public static final String DB_URL = "jdbc:postgresql://localhost:5432/calories-app";
+
+    /**
+     * Default minimum amount of connections kept open
+     */
+    public static final int DEFAULT_MIN_POOL_SIZE = 2;
+
+    /**
+     * Default maximum amount of connections open at the same time
+     */
+    public static final int DEFAULT_MAX_POOL_SIZE = 10;
+
+    /**
+     * Default amount of milliseconds to wait for a free connection
+     */
+    public static final long DEFAULT_BORROW_TIMEOUT_MILLIS = 5_000;
+
+    /**
+     * Default amount of milliseconds a connection may stay idle before it gets closed
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 300_000;
+
+    /**
+     * Default maximum amount of prepared statements cached per connection
+     */
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 64;
+
+    //Pool settings, used the next time a connection is established
+    private int minPoolSize = DEFAULT_MIN_POOL_SIZE;
+    private int maxPoolSize = DEFAULT_MAX_POOL_SIZE;
+    private long borrowTimeoutMillis = DEFAULT_BORROW_TIMEOUT_MILLIS;
+    private long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+    private int statementCacheSize = DEFAULT_STATEMENT_CACHE_SIZE;
+
     /**
      * Default constructor
      *
@@ -40,7 +78,7 @@ public class DatabaseManager {
      */
     public DatabaseManager establishConnection(String username, String password) throws SQLException {
         try {
-            this.conn = DriverManager.getConnection("jdbc:postgresql://localhost:5432/calories-app", username, password);
+            openPool(username, password);
             System.out.println("Connection to database established successfully.");
             return this;
         } catch (SQLException e) {
@@ -60,7 +98,7 @@ public class DatabaseManager {
         try {
             //The password is not provided in this method, get it from file
             String password = getPassword(username);
-            this.conn = DriverManager.getConnection("jdbc:postgresql://localhost:5432/calories-app", username, password);
+            openPool(username, password);
             System.out.println("Connection to database established successfully.");
             return this;
         } catch (SQLException e) {
@@ -69,6 +107,89 @@ public class DatabaseManager {
         }
     }
 
+    /**
+     * Changes the amount of connections the pool keeps
+     * Takes effect the next time a connection is established
+     *
+     * @param minPoolSize the minimum amount of connections kept open
+     * @param maxPoolSize the maximum amount of connections open at the same time
+     * @return self
+     */
+    public DatabaseManager setPoolSize(int minPoolSize, int maxPoolSize) {
+        this.minPoolSize = minPoolSize;
+        this.maxPoolSize = maxPoolSize;
+        return this;
+    }
+
+    /**
+     * Changes how long a caller waits for a free connection before getConnection fails
+     * Takes effect the next time a connection is established
+     *
+     * @param borrowTimeoutMillis the amount of milliseconds to wait
+     * @return self
+     */
+    public DatabaseManager setBorrowTimeout(long borrowTimeoutMillis) {
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * Changes how long a connection may stay idle before the pool closes it
+     * Takes effect the next time a connection is established
+     *
+     * @param idleTimeoutMillis the amount of milliseconds
+     * @return self
+     */
+    public DatabaseManager setIdleTimeout(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * Changes how many prepared statements each connection keeps for reuse
+     * Takes effect the next time a connection is established
+     *
+     * @param statementCacheSize the maximum amount of statements per connection, 0 disables the cache
+     * @return self
+     */
+    public DatabaseManager setStatementCacheSize(int statementCacheSize) {
+        this.statementCacheSize = statementCacheSize;
+        return this;
+    }
+
+    /**
+     * Opens the connection pool, replacing the previous one if there was any
+     * The database schema is migrated to the latest version before the pool is used
+     *
+     * @param username the username used to connect
+     * @param password the password used to connect
+     * @throws SQLException if a connection could not be opened
+     */
+    private void openPool(String username, String password) throws SQLException {
+        Properties properties = new Properties();
+        properties.setProperty("user", username);
+        if (password != null) {
+            properties.setProperty("password", password);
+        }
+        //Let the driver turn batches of inserts into multi-row inserts
+        properties.setProperty("reWriteBatchedInserts", "true");
+
+        ConnectionPool newPool = new ConnectionPool(DB_URL, properties,
+                minPoolSize, maxPoolSize, borrowTimeoutMillis, idleTimeoutMillis, statementCacheSize);
+
+        //Bring the schema up to date before anyone uses the database
+        try (Connection conn = newPool.borrow()) {
+            SchemaMigrator.migrate(conn);
+        } catch (SQLException e) {
+            newPool.close();
+            throw e;
+        }
+        if (this.pool != null) {
+            this.pool.close();
+        }
+        this.pool = newPool;
+    }
+
     /**
      * Load the JDBC driver
      */
@@ -82,12 +203,46 @@ public class DatabaseManager {
     }
 
     /**
-     * Gets the main connection
+     * Borrows a connection from the pool
+     * The connection must be closed after use, which returns it to the pool
+     *
+     * @return a database connection
+     * @throws SQLException if no connection is available within the borrow timeout or no connection was established
+     */
+    public Connection getConnection() throws SQLException {
+        if (this.pool == null) {
+            throw new SQLException("No connection has been established with the database");
+        }
+        return this.pool.borrow();
+    }
+
+    /**
+     * Gets a snapshot of the connection pool's usage
+     *
+     * @return the pool statistics, or null if no connection was established
+     */
+    public ConnectionPool.Statistics getPoolStatistics() {
+        return this.pool == null ? null : this.pool.getStatistics();
+    }
+
+    /**
+     * Gets a snapshot of the prepared statement cache usage of the pool's connections
      *
-     * @return the main database connection
+     * @return the statement cache statistics, or null if no connection was established
      */
-    public Connection getConnection() {
-        return this.conn;
+    public StatementCache.Statistics getStatementCacheStatistics() {
+        return this.pool == null ? null : this.pool.getStatementCacheStatistics();
+    }
+
+    /**
+     * Closes the connection pool along with its connections
+     */
+    @Override
+    public void close() {
+        if (this.pool != null) {
+            this.pool.close();
+            this.pool = null;
+        }
     }
 
     /**
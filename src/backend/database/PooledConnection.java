@@ -0,0 +1,166 @@
+package backend.database;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * The PooledConnection class wraps a physical database connection owned by a ConnectionPool.
+ * Every time the connection is borrowed, a new lease (a proxy of the connection) is handed out.
+ * Closing the lease returns the physical connection to the pool instead of closing it.
+ *
+ * @author taconoodle
+ */
+class PooledConnection {
+    /**
+     * The physical connection to the database
+     */
+    private final Connection physical;
+
+    /**
+     * The pool that owns the connection
+     */
+    private final ConnectionPool pool;
+
+    /**
+     * The prepared statements of the connection, or null if statement caching is disabled
+     */
+    private final StatementCache statementCache;
+
+    /**
+     * The moment (in milliseconds) the connection was last returned to the pool
+     */
+    private volatile long lastReleasedMillis;
+
+    /**
+     * Default constructor
+     *
+     * @param physical       the physical database connection
+     * @param pool           the pool that owns the connection
+     * @param statementCache the cache of the connection's prepared statements, or null to disable caching
+     */
+    PooledConnection(Connection physical, ConnectionPool pool, StatementCache statementCache) {
+        this.physical = physical;
+        this.pool = pool;
+        this.statementCache = statementCache;
+        this.lastReleasedMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Gets the physical connection
+     *
+     * @return the physical connection
+     */
+    Connection getPhysical() {
+        return physical;
+    }
+
+    /**
+     * Gets the moment the connection was last returned to the pool
+     *
+     * @return the time in milliseconds
+     */
+    long getLastReleasedMillis() {
+        return lastReleasedMillis;
+    }
+
+    /**
+     * Marks the connection as just returned to the pool
+     */
+    void touch() {
+        this.lastReleasedMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Checks that the physical connection is still usable
+     *
+     * @param timeoutSeconds the maximum amount of seconds to wait for the database to answer
+     * @return true if the connection is alive
+     */
+    boolean validate(int timeoutSeconds) {
+        try {
+            return !physical.isClosed() && physical.isValid(timeoutSeconds);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Closes the physical connection, ignoring any errors since the connection is thrown away anyway
+     */
+    void closePhysical() {
+        //The cached statements live exactly as long as the connection they were prepared on
+        if (statementCache != null) {
+            statementCache.closeAll();
+        }
+        try {
+            physical.close();
+        } catch (SQLException e) {
+            System.err.println("SQL Database error while closing pooled connection: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Creates a new lease of the connection
+     * The lease behaves like a normal connection, but closing it hands the connection back to the pool
+     *
+     * @return the connection given to the borrower
+     */
+    Connection lease() {
+        return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                new Lease()
+        );
+    }
+
+    /**
+     * Handles the calls made on a lease of the connection
+     */
+    private class Lease implements InvocationHandler {
+        /**
+         * Whether the lease has already been closed (the connection was returned)
+         */
+        private boolean closed = false;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    //Closing twice is allowed by JDBC, only the first close returns the connection
+                    if (!closed) {
+                        closed = true;
+                        pool.release(PooledConnection.this);
+                    }
+                    return null;
+                case "isClosed":
+                    return closed || physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled" + physical;
+                case "prepareStatement":
+                    //Only the plain prepareStatement(sql) is cached, the variants with extra options are passed through
+                    if (statementCache != null && args.length == 1 && !closed) {
+                        return statementCache.prepare(physical, (String) args[0]);
+                    }
+                    break;
+            }
+
+            //The borrower should not be able to use a connection it has already given back
+            if (closed) {
+                throw new SQLException("Connection has already been returned to the pool");
+            }
+            try {
+                return method.invoke(physical, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
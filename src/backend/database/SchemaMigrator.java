@@ -0,0 +1,345 @@
+package backend.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * The SchemaMigrator class brings the database schema up to date.
+ * The schema is described as an ordered list of numbered migrations. The versions that have been applied are
+ * recorded in the schema_version table, so every migration runs exactly once per database.
+ * <p>
+ * The first migrations use IF NOT EXISTS, so databases that were set up by hand are adopted as they are.
+ * New schema changes must be added as new migrations at the end of the list, never by editing applied ones.
+ *
+ * @author taconoodle
+ */
+public class SchemaMigrator {
+    /**
+     * Arbitrary key of the advisory lock that keeps two application instances from migrating at the same time
+     */
+    private static final long MIGRATION_LOCK_KEY = 0x63616c6f726965L;
+
+    /**
+     * The migrations, in the order they are applied
+     */
+    private static final List<Migration> MIGRATIONS = List.of(
+            new Migration(1, "Create Food, Recipe and Ingredients tables",
+                    "CREATE TABLE IF NOT EXISTS Food (" +
+                            "id integer GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, " +
+                            "brand varchar(255), " +
+                            "description varchar(255), " +
+                            "calories numeric NOT NULL DEFAULT 0, " +
+                            "protein numeric NOT NULL DEFAULT 0, " +
+                            "carbs numeric NOT NULL DEFAULT 0)",
+                    "CREATE TABLE IF NOT EXISTS Recipe (" +
+                            "id integer GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, " +
+                            "name varchar(255), " +
+                            "description varchar(255))",
+                    "CREATE TABLE IF NOT EXISTS Ingredients (" +
+                            "recipe_id integer NOT NULL REFERENCES Recipe (id) ON DELETE CASCADE, " +
+                            "food_id integer NOT NULL REFERENCES Food (id), " +
+                            "quantity numeric NOT NULL, " +
+                            "PRIMARY KEY (recipe_id, food_id))"
+            ),
+            new Migration(2, "Index the nutrient columns and the ingredient foreign keys",
+                    //The id makes the indexes usable for keyset pagination ordered by the nutrient
+                    "CREATE INDEX IF NOT EXISTS food_calories_idx ON Food (calories, id)",
+                    "CREATE INDEX IF NOT EXISTS food_protein_idx ON Food (protein, id)",
+                    "CREATE INDEX IF NOT EXISTS food_carbs_idx ON Food (carbs, id)",
+                    "CREATE INDEX IF NOT EXISTS ingredients_recipe_id_idx ON Ingredients (recipe_id)",
+                    "CREATE INDEX IF NOT EXISTS ingredients_food_id_idx ON Ingredients (food_id)"
+            ),
+            new Migration(3, "Index the food names by trigrams for fuzzy search",
+                    "CREATE EXTENSION IF NOT EXISTS pg_trgm",
+                    //The expression must stay the same as FoodManager's, otherwise the index isn't used
+                    "CREATE INDEX IF NOT EXISTS food_name_trgm_idx ON Food USING gin " +
+                            "((lower(coalesce(brand, '') || ' ' || coalesce(description, ''))) gin_trgm_ops)"
+            ),
+            new Migration(4, "Store the nutrition totals of each recipe",
+                    "ALTER TABLE Recipe " +
+                            "ADD COLUMN IF NOT EXISTS calories numeric NOT NULL DEFAULT 0, " +
+                            "ADD COLUMN IF NOT EXISTS protein numeric NOT NULL DEFAULT 0, " +
+                            "ADD COLUMN IF NOT EXISTS carbs numeric NOT NULL DEFAULT 0",
+                    "UPDATE Recipe r SET calories = s.calories, protein = s.protein, carbs = s.carbs " +
+                            "FROM (SELECT ing.recipe_id, " +
+                            "sum(f.calories * ing.quantity) / 100.0 AS calories, " +
+                            "sum(f.protein * ing.quantity) / 100.0 AS protein, " +
+                            "sum(f.carbs * ing.quantity) / 100.0 AS carbs " +
+                            "FROM Ingredients ing JOIN Food f ON f.id = ing.food_id " +
+                            "GROUP BY ing.recipe_id) s " +
+                            "WHERE r.id = s.recipe_id"
+            ),
+            new Migration(5, "Cover the reverse food to recipe lookups with the food_id index",
+                    //Finding the recipes affected by a food change then reads only the index
+                    "CREATE INDEX IF NOT EXISTS ingredients_food_id_covering_idx " +
+                            "ON Ingredients (food_id) INCLUDE (recipe_id, quantity)",
+                    "DROP INDEX IF EXISTS ingredients_food_id_idx"
+            ),
+            new Migration(6, "Create SubRecipes table for recipes used in other recipes",
+                    "CREATE TABLE IF NOT EXISTS SubRecipes (" +
+                            "recipe_id integer NOT NULL REFERENCES Recipe (id) ON DELETE CASCADE, " +
+                            "sub_recipe_id integer NOT NULL REFERENCES Recipe (id), " +
+                            "quantity numeric NOT NULL, " +
+                            "PRIMARY KEY (recipe_id, sub_recipe_id), " +
+                            "CHECK (recipe_id <> sub_recipe_id))",
+                    //Walking up the graph (the recipes using a sub-recipe) goes through this index
+                    "CREATE INDEX IF NOT EXISTS subrecipes_sub_recipe_id_idx ON SubRecipes (sub_recipe_id)"
+            ),
+            new Migration(7, "Create DiaryEntries table for the foods eaten in each meal",
+                    "CREATE TABLE IF NOT EXISTS DiaryEntries (" +
+                            "id bigint GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, " +
+                            "entry_date date NOT NULL, " +
+                            "meal_type varchar(16) NOT NULL " +
+                            "CHECK (meal_type IN ('BREAKFAST', 'LUNCH', 'DINNER', 'SNACKS')), " +
+                            "food_id integer NOT NULL REFERENCES Food (id), " +
+                            "quantity numeric NOT NULL CHECK (quantity > 0))",
+                    //Days and ranges of days are loaded through this index, the id keeps the entries in order
+                    "CREATE INDEX IF NOT EXISTS diaryentries_entry_date_idx ON DiaryEntries (entry_date, id)",
+                    "CREATE INDEX IF NOT EXISTS diaryentries_food_id_idx ON DiaryEntries (food_id)"
+            ),
+            new Migration(8, "Give every diary entry a unique key for idempotent writes",
+                    //The key is generated by the writer, so an entry written twice (a journal replay) is kept once
+                    "ALTER TABLE DiaryEntries ADD COLUMN IF NOT EXISTS entry_key uuid NOT NULL DEFAULT gen_random_uuid()",
+                    "CREATE UNIQUE INDEX IF NOT EXISTS diaryentries_entry_key_idx ON DiaryEntries (entry_key)"
+            ),
+            new Migration(9, "Store the nutrition totals of each day, ISO week and month of the diary",
+                    "CREATE TABLE IF NOT EXISTS NutritionRollups (" +
+                            "granularity varchar(8) NOT NULL CHECK (granularity IN ('DAY', 'WEEK', 'MONTH')), " +
+                            "bucket_start date NOT NULL, " +
+                            "calories numeric NOT NULL DEFAULT 0, " +
+                            "protein numeric NOT NULL DEFAULT 0, " +
+                            "carbs numeric NOT NULL DEFAULT 0, " +
+                            "entry_count integer NOT NULL DEFAULT 0, " +
+                            "PRIMARY KEY (granularity, bucket_start))",
+                    "INSERT INTO NutritionRollups (granularity, bucket_start, calories, protein, carbs, entry_count) " +
+                            "SELECT b.granularity, b.bucket_start, " +
+                            "sum(f.calories * e.quantity) / 100.0, " +
+                            "sum(f.protein * e.quantity) / 100.0, " +
+                            "sum(f.carbs * e.quantity) / 100.0, " +
+                            "count(*) " +
+                            "FROM DiaryEntries e JOIN Food f ON f.id = e.food_id " +
+                            "CROSS JOIN LATERAL (VALUES " +
+                            "('DAY', e.entry_date), " +
+                            "('WEEK', date_trunc('week', e.entry_date)::date), " +
+                            "('MONTH', date_trunc('month', e.entry_date)::date)" +
+                            ") b (granularity, bucket_start) " +
+                            "GROUP BY b.granularity, b.bucket_start " +
+                            "ON CONFLICT DO NOTHING"
+            ),
+            new Migration(10, "Partition DiaryEntries by month",
+                    "ALTER TABLE DiaryEntries RENAME TO DiaryEntriesUnpartitioned",
+                    "CREATE SEQUENCE IF NOT EXISTS diary_entry_id_seq AS bigint",
+                    //Unique constraints of a partitioned table must contain the partition key
+                    "CREATE TABLE DiaryEntries (" +
+                            "id bigint NOT NULL DEFAULT nextval('diary_entry_id_seq'), " +
+                            "entry_key uuid NOT NULL DEFAULT gen_random_uuid(), " +
+                            "entry_date date NOT NULL, " +
+                            "meal_type varchar(16) NOT NULL " +
+                            "CHECK (meal_type IN ('BREAKFAST', 'LUNCH', 'DINNER', 'SNACKS')), " +
+                            "food_id integer NOT NULL REFERENCES Food (id), " +
+                            "quantity numeric NOT NULL CHECK (quantity > 0), " +
+                            "CONSTRAINT diaryentries_partitioned_pkey PRIMARY KEY (id, entry_date), " +
+                            "CONSTRAINT diaryentries_entry_key_date_key UNIQUE (entry_key, entry_date)) " +
+                            "PARTITION BY RANGE (entry_date)",
+                    //One partition per month that has entries, plus the next few months; DiaryPartitions adds the rest
+                    "DO $$ " +
+                            "DECLARE month_start date; part_name text; " +
+                            "BEGIN " +
+                            "FOR month_start IN " +
+                            "SELECT date_trunc('month', entry_date)::date FROM DiaryEntriesUnpartitioned " +
+                            "UNION SELECT generate_series(date_trunc('month', current_date), " +
+                            "date_trunc('month', current_date) + interval '3 months', interval '1 month')::date " +
+                            "LOOP " +
+                            "part_name := 'diaryentries_' || to_char(month_start, '\"y\"YYYY\"m\"MM'); " +
+                            "EXECUTE format('CREATE TABLE %I PARTITION OF DiaryEntries FOR VALUES FROM (%L) TO (%L)', " +
+                            "part_name, month_start, (month_start + interval '1 month')::date); " +
+                            "EXECUTE format('CREATE INDEX %I ON %I (entry_date, id)', " +
+                            "part_name || '_entry_date_idx', part_name); " +
+                            "END LOOP; " +
+                            "END $$",
+                    "INSERT INTO DiaryEntries (id, entry_key, entry_date, meal_type, food_id, quantity) " +
+                            "SELECT id, entry_key, entry_date, meal_type, food_id, quantity FROM DiaryEntriesUnpartitioned",
+                    "SELECT setval('diary_entry_id_seq', coalesce(max(id), 0) + 1, false) FROM DiaryEntries",
+                    "DROP TABLE DiaryEntriesUnpartitioned",
+                    "ALTER SEQUENCE diary_entry_id_seq OWNED BY DiaryEntries.id",
+                    "CREATE INDEX IF NOT EXISTS diaryentries_food_id_idx ON DiaryEntries (food_id)"
+            ),
+            new Migration(11, "Store nutrients and quantities in thousandths, as the application keeps them",
+                    //Applies the rounding below to the rollups as a change, so the totals of archived months are kept
+                    "INSERT INTO NutritionRollups AS r (granularity, bucket_start, calories, protein, carbs, entry_count) " +
+                            "SELECT b.granularity, b.bucket_start, " +
+                            "sum(round(f.calories, 3) * greatest(round(e.quantity, 3), 0.001) - f.calories * e.quantity) / 100.0, " +
+                            "sum(round(f.protein, 3) * greatest(round(e.quantity, 3), 0.001) - f.protein * e.quantity) / 100.0, " +
+                            "sum(round(f.carbs, 3) * greatest(round(e.quantity, 3), 0.001) - f.carbs * e.quantity) / 100.0, " +
+                            "0 " +
+                            "FROM DiaryEntries e JOIN Food f ON f.id = e.food_id " +
+                            "CROSS JOIN LATERAL (VALUES " +
+                            "('DAY', e.entry_date), " +
+                            "('WEEK', date_trunc('week', e.entry_date)::date), " +
+                            "('MONTH', date_trunc('month', e.entry_date)::date)" +
+                            ") b (granularity, bucket_start) " +
+                            "GROUP BY b.granularity, b.bucket_start " +
+                            "ON CONFLICT (granularity, bucket_start) DO UPDATE SET " +
+                            "calories = r.calories + excluded.calories, " +
+                            "protein = r.protein + excluded.protein, " +
+                            "carbs = r.carbs + excluded.carbs",
+                    "ALTER TABLE Food " +
+                            "ALTER COLUMN calories TYPE numeric(12, 3) USING round(calories, 3), " +
+                            "ALTER COLUMN protein TYPE numeric(12, 3) USING round(protein, 3), " +
+                            "ALTER COLUMN carbs TYPE numeric(12, 3) USING round(carbs, 3)",
+                    "ALTER TABLE Ingredients ALTER COLUMN quantity TYPE numeric(12, 3) USING round(quantity, 3)",
+                    "ALTER TABLE SubRecipes ALTER COLUMN quantity TYPE numeric(12, 3) USING round(quantity, 3)",
+                    "ALTER TABLE DiaryEntries ALTER COLUMN quantity TYPE numeric(12, 3) " +
+                            "USING greatest(round(quantity, 3), 0.001)",
+                    //Archived partitions must keep the same columns as DiaryEntries to be attached again
+                    "DO $$ " +
+                            "DECLARE part_name text; " +
+                            "BEGIN " +
+                            "FOR part_name IN SELECT tablename FROM pg_tables WHERE schemaname = 'diary_archive' LOOP " +
+                            "EXECUTE format('ALTER TABLE diary_archive.%I ALTER COLUMN quantity TYPE numeric(12, 3) " +
+                            "USING greatest(round(quantity, 3), 0.001)', part_name); " +
+                            "END LOOP; " +
+                            "END $$",
+                    "UPDATE Recipe r SET calories = s.calories, protein = s.protein, carbs = s.carbs " +
+                            "FROM (SELECT r.id, " +
+                            "coalesce(sum(f.calories * ing.quantity), 0) / 100.0 AS calories, " +
+                            "coalesce(sum(f.protein * ing.quantity), 0) / 100.0 AS protein, " +
+                            "coalesce(sum(f.carbs * ing.quantity), 0) / 100.0 AS carbs " +
+                            "FROM Recipe r " +
+                            "LEFT JOIN Ingredients ing ON ing.recipe_id = r.id " +
+                            "LEFT JOIN Food f ON f.id = ing.food_id " +
+                            "GROUP BY r.id) s " +
+                            "WHERE r.id = s.id"
+            ),
+            new Migration(12, "Store the nutrients of each diary entry, priced when it's written",
+                    "ALTER TABLE DiaryEntries ADD COLUMN calories numeric(15, 3), " +
+                            "ADD COLUMN protein numeric(15, 3), ADD COLUMN carbs numeric(15, 3)",
+                    //The rollups were priced with the current nutrients of the foods, only the rounding changes them
+                    "INSERT INTO NutritionRollups AS r (granularity, bucket_start, calories, protein, carbs, entry_count) " +
+                            "SELECT b.granularity, b.bucket_start, " +
+                            "sum(round(f.calories * e.quantity / 100.0, 3) - f.calories * e.quantity / 100.0), " +
+                            "sum(round(f.protein * e.quantity / 100.0, 3) - f.protein * e.quantity / 100.0), " +
+                            "sum(round(f.carbs * e.quantity / 100.0, 3) - f.carbs * e.quantity / 100.0), " +
+                            "0 " +
+                            "FROM DiaryEntries e JOIN Food f ON f.id = e.food_id " +
+                            "CROSS JOIN LATERAL (VALUES " +
+                            "('DAY', e.entry_date), " +
+                            "('WEEK', date_trunc('week', e.entry_date)::date), " +
+                            "('MONTH', date_trunc('month', e.entry_date)::date)" +
+                            ") b (granularity, bucket_start) " +
+                            "GROUP BY b.granularity, b.bucket_start " +
+                            "ON CONFLICT (granularity, bucket_start) DO UPDATE SET " +
+                            "calories = r.calories + excluded.calories, " +
+                            "protein = r.protein + excluded.protein, " +
+                            "carbs = r.carbs + excluded.carbs",
+                    "UPDATE DiaryEntries e SET " +
+                            "calories = round(f.calories * e.quantity / 100.0, 3), " +
+                            "protein = round(f.protein * e.quantity / 100.0, 3), " +
+                            "carbs = round(f.carbs * e.quantity / 100.0, 3) " +
+                            "FROM Food f WHERE f.id = e.food_id",
+                    "ALTER TABLE DiaryEntries ALTER COLUMN calories SET NOT NULL, " +
+                            "ALTER COLUMN protein SET NOT NULL, ALTER COLUMN carbs SET NOT NULL",
+                    //Archived partitions must keep the same columns as DiaryEntries to be attached again
+                    "DO $$ " +
+                            "DECLARE part_name text; " +
+                            "BEGIN " +
+                            "FOR part_name IN SELECT tablename FROM pg_tables WHERE schemaname = 'diary_archive' LOOP " +
+                            "EXECUTE format('ALTER TABLE diary_archive.%I ADD COLUMN calories numeric(15, 3), " +
+                            "ADD COLUMN protein numeric(15, 3), ADD COLUMN carbs numeric(15, 3)', part_name); " +
+                            "EXECUTE format('UPDATE diary_archive.%I e SET " +
+                            "calories = round(f.calories * e.quantity / 100.0, 3), " +
+                            "protein = round(f.protein * e.quantity / 100.0, 3), " +
+                            "carbs = round(f.carbs * e.quantity / 100.0, 3) " +
+                            "FROM Food f WHERE f.id = e.food_id', part_name); " +
+                            "EXECUTE format('ALTER TABLE diary_archive.%I ALTER COLUMN calories SET NOT NULL, " +
+                            "ALTER COLUMN protein SET NOT NULL, ALTER COLUMN carbs SET NOT NULL', part_name); " +
+                            "END LOOP; " +
+                            "END $$"
+            )
+    );
+
+    /**
+     * Applies the migrations the database is missing
+     * Each migration runs in its own transaction, together with the record of its version
+     *
+     * @param conn the connection to use
+     * @return the amount of migrations applied
+     * @throws SQLException if a migration failed, in which case the failed migration is rolled back
+     */
+    public static int migrate(Connection conn) throws SQLException {
+        boolean autoCommit = conn.getAutoCommit();
+        try (Statement statement = conn.createStatement()) {
+            //Only one instance migrates, the others wait and then find nothing left to do
+            statement.execute("SELECT pg_advisory_lock(" + MIGRATION_LOCK_KEY + ")");
+            try {
+                statement.execute("CREATE TABLE IF NOT EXISTS schema_version (" +
+                        "version integer PRIMARY KEY, " +
+                        "description varchar(255) NOT NULL, " +
+                        "applied_at timestamptz NOT NULL DEFAULT now())");
+
+                HashSet<Integer> applied = new HashSet<>();
+                try (ResultSet rs = statement.executeQuery("SELECT version FROM schema_version")) {
+                    while (rs.next()) {
+                        applied.add(rs.getInt(1));
+                    }
+                }
+
+                int count = 0;
+                conn.setAutoCommit(false);
+                for (Migration migration : MIGRATIONS) {
+                    if (applied.contains(migration.version())) {
+                        continue;
+                    }
+                    apply(conn, migration);
+                    count++;
+                }
+                return count;
+            } finally {
+                conn.setAutoCommit(true);
+                statement.execute("SELECT pg_advisory_unlock(" + MIGRATION_LOCK_KEY + ")");
+                conn.setAutoCommit(autoCommit);
+            }
+        }
+    }
+
+    /**
+     * Applies a single migration and records its version
+     *
+     * @param conn      the connection to use, with autocommit off
+     * @param migration the migration to apply
+     * @throws SQLException if the migration failed, in which case it's rolled back
+     */
+    private static void apply(Connection conn, Migration migration) throws SQLException {
+        try (Statement statement = conn.createStatement();
+             PreparedStatement record = conn.prepareStatement(
+                     "INSERT INTO schema_version (version, description) VALUES (?, ?)")) {
+            for (String sql : migration.statements()) {
+                statement.execute(sql);
+            }
+            record.setInt(1, migration.version());
+            record.setString(2, migration.description());
+            record.executeUpdate();
+            conn.commit();
+            System.out.println("Applied database migration " + migration.version() + ": " + migration.description());
+        } catch (SQLException e) {
+            conn.rollback();
+            System.err.println("Database migration " + migration.version() + " failed: " + e.getMessage());
+            throw e;
+        }
+    }
+
+    /**
+     * A change of the database schema
+     *
+     * @param version     the migration's number, migrations are applied in increasing order
+     * @param description what the migration does
+     * @param statements  the SQL statements of the migration
+     */
+    private record Migration(int version, String description, String... statements) {
+    }
+}
@@ -0,0 +1,282 @@
+package backend.database;
+
+import org.postgresql.PGStatement;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The StatementCache class keeps the prepared statements of a single pooled connection, keyed by their SQL text.
+ * The managers prepare the same constant SQL strings over and over, so instead of parsing and planning them
+ * on every call, the statement is prepared once and reused for as long as the connection lives.
+ * <p>
+ * The cache is bounded and evicts the least recently used statement when it's full.
+ * Cached statements are prepared on the server (named statements) from their first execution.
+ * A connection is used by one borrower at a time, so the cache itself is not thread-safe.
+ *
+ * @author taconoodle
+ */
+public class StatementCache {
+    /**
+     * The maximum amount of statements kept
+     */
+    private final int maxSize;
+
+    /**
+     * The counters shared by the caches of all the connections of a pool
+     */
+    private final Counters counters;
+
+    /**
+     * The cached statements, ordered from the least to the most recently used
+     */
+    private final LinkedHashMap<String, CachedStatement> statements;
+
+    /**
+     * Default constructor
+     *
+     * @param maxSize  the maximum amount of statements kept
+     * @param counters the counters the hits, misses and evictions are reported to
+     */
+    StatementCache(int maxSize, Counters counters) {
+        this.maxSize = maxSize;
+        this.counters = counters;
+        this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+                if (size() <= StatementCache.this.maxSize) {
+                    return false;
+                }
+                counters.evictions.incrementAndGet();
+                eldest.getValue().evict();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Gets a prepared statement for the given SQL, preparing it only if it's not cached yet
+     * Closing the returned statement hands it back to the cache instead of closing it
+     *
+     * @param physical the physical connection the statement belongs to
+     * @param sql      the SQL of the statement
+     * @return the prepared statement
+     * @throws SQLException if the statement could not be prepared
+     */
+    PreparedStatement prepare(Connection physical, String sql) throws SQLException {
+        CachedStatement cached = statements.get(sql);
+        if (cached != null && !cached.inUse) {
+            counters.hits.incrementAndGet();
+            return cached.lease();
+        }
+        counters.misses.incrementAndGet();
+
+        //The same SQL is already open by the borrower (e.g. nested queries), give out a plain statement
+        if (cached != null) {
+            return physical.prepareStatement(sql);
+        }
+
+        PreparedStatement statement = physical.prepareStatement(sql);
+        //Cached statements are the hot ones, use a named server-side statement from the very first execution
+        if (statement.isWrapperFor(PGStatement.class)) {
+            statement.unwrap(PGStatement.class).setPrepareThreshold(1);
+        }
+        cached = new CachedStatement(statement);
+        statements.put(sql, cached);
+        return cached.lease();
+    }
+
+    /**
+     * Closes every cached statement
+     * Called when the physical connection is about to be closed
+     */
+    void closeAll() {
+        Iterator<CachedStatement> iterator = statements.values().iterator();
+        while (iterator.hasNext()) {
+            iterator.next().evict();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * A statement kept by the cache
+     */
+    private static class CachedStatement {
+        /**
+         * The actual prepared statement
+         */
+        private final PreparedStatement physical;
+
+        /**
+         * Whether a borrower is currently using the statement
+         */
+        private boolean inUse = false;
+
+        /**
+         * Whether the statement was removed from the cache, so it should be closed as soon as it's not in use
+         */
+        private boolean evicted = false;
+
+        /**
+         * Default constructor
+         *
+         * @param physical the actual prepared statement
+         */
+        CachedStatement(PreparedStatement physical) {
+            this.physical = physical;
+        }
+
+        /**
+         * Removes the statement from the cache, closing it unless a borrower is still using it
+         */
+        void evict() {
+            evicted = true;
+            if (!inUse) {
+                closePhysical();
+            }
+        }
+
+        /**
+         * Closes the actual statement, ignoring errors since it's thrown away anyway
+         */
+        void closePhysical() {
+            try {
+                physical.close();
+            } catch (SQLException e) {
+                System.err.println("SQL Database error while closing cached statement: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Hands the statement out to a borrower
+         *
+         * @return a proxy of the statement, closing it gives the statement back to the cache
+         */
+        PreparedStatement lease() {
+            inUse = true;
+            return (PreparedStatement) Proxy.newProxyInstance(
+                    PreparedStatement.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class},
+                    new Lease()
+            );
+        }
+
+        /**
+         * Gives the statement back to the cache, clearing whatever the borrower left in it
+         *
+         * @throws SQLException if the statement could not be reset
+         */
+        private void giveBack() throws SQLException {
+            inUse = false;
+            if (evicted) {
+                closePhysical();
+                return;
+            }
+            //Close the result of the last execution and forget the old parameters and settings
+            ResultSet rs = physical.getResultSet();
+            if (rs != null) {
+                rs.close();
+            }
+            physical.clearParameters();
+            physical.clearBatch();
+            physical.setFetchSize(0);
+        }
+
+        /**
+         * Handles the calls made on a lease of the statement
+         */
+        private class Lease implements InvocationHandler {
+            /**
+             * Whether the lease has already been closed
+             */
+            private boolean closed = false;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "close":
+                        if (!closed) {
+                            closed = true;
+                            giveBack();
+                        }
+                        return null;
+                    case "isClosed":
+                        return closed;
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "toString":
+                        return "Cached" + physical;
+                }
+
+                if (closed) {
+                    throw new SQLException("Statement has already been closed");
+                }
+                try {
+                    return method.invoke(physical, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        }
+    }
+
+    /**
+     * The hit, miss and eviction counters of the statement caches of a pool
+     */
+    static class Counters {
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong evictions = new AtomicLong();
+
+        /**
+         * Gets a snapshot of the counters
+         *
+         * @return the statement cache statistics
+         */
+        Statistics snapshot() {
+            return new Statistics(hits.get(), misses.get(), evictions.get());
+        }
+    }
+
+    /**
+     * A snapshot of the statement cache usage of a pool
+     *
+     * @param hits      the amount of times a cached statement was reused
+     * @param misses    the amount of times a statement had to be prepared
+     * @param evictions the amount of statements evicted to make room for others
+     */
+    public record Statistics(long hits, long misses, long evictions) {
+        /**
+         * Calculates the share of prepares answered by the cache
+         *
+         * @return the hit ratio, between 0 and 1
+         */
+        public double hitRatio() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+
+        /**
+         * Creates a string containing the statistics
+         *
+         * @return the info string
+         */
+        @Override
+        public String toString() {
+            return String.format("hits %d | misses %d | evictions %d | hit ratio %.2f",
+                    hits, misses, evictions, hitRatio());
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package backend.database;
+
+import java.sql.SQLException;
+
+/**
+ * The UncheckedSQLException class wraps an SQLException where a checked exception can't be thrown,
+ * e.g. while a Stream backed by the database is being consumed
+ *
+ * @author taconoodle
+ */
+public class UncheckedSQLException extends RuntimeException {
+    /**
+     * The version of the serialized form
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Default constructor
+     *
+     * @param cause the wrapped database error
+     */
+    public UncheckedSQLException(SQLException cause) {
+        super(cause.getMessage(), cause);
+    }
+
+    /**
+     * Gets the wrapped database error
+     *
+     * @return the SQLException
+     */
+    @Override
+    public synchronized SQLException getCause() {
+        return (SQLException) super.getCause();
+    }
+}
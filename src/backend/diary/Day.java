@@ -1,24 +1,71 @@
 package backend.diary;
 
 import backend.food.Food;
+import backend.food.Macros;
 
 import java.time.LocalDate;
 
+/**
+ * The Day class represents the four meals of a date.
+ * The meals are safe to change from many threads at once (see Meal), and replacing a meal is seen at once by every
+ * thread.
+ *
+ * @author taconoodle
+ */
 public class Day {
-    private LocalDate date;
+    private volatile LocalDate date;
 
-    private Meal breakfast;
-    private Meal lunch;
-    private Meal dinner;
-    private Meal snacks;
+    private volatile Meal breakfast;
+    private volatile Meal lunch;
+    private volatile Meal dinner;
+    private volatile Meal snacks;
 
     public Day(LocalDate date, Meal breakfast, Meal lunch, Meal dinner, Meal snacks) {
         this.date = date;
 
-        this.breakfast = new Meal(Meal.Type.BREAKFAST);
-        this.lunch = new Meal(Meal.Type.LUNCH);
-        this.dinner = new Meal(Meal.Type.DINNER);
-        this.snacks = new Meal(Meal.Type.SNACKS);
+        //A missing meal is an empty one
+        this.breakfast = breakfast != null ? breakfast : new Meal(Meal.Type.BREAKFAST);
+        this.lunch = lunch != null ? lunch : new Meal(Meal.Type.LUNCH);
+        this.dinner = dinner != null ? dinner : new Meal(Meal.Type.DINNER);
+        this.snacks = snacks != null ? snacks : new Meal(Meal.Type.SNACKS);
+    }
+
+    /**
+     * Creates a day with four empty meals
+     *
+     * @param date the date of the day
+     */
+    public Day(LocalDate date) {
+        this(date, null, null, null, null);
+    }
+
+    /**
+     * Gets one of the day's meals by its type
+     *
+     * @param type the type of the meal
+     * @return the meal
+     */
+    public Meal getMeal(Meal.Type type) {
+        return switch (type) {
+            case BREAKFAST -> breakfast;
+            case LUNCH -> lunch;
+            case DINNER -> dinner;
+            case SNACKS -> snacks;
+        };
+    }
+
+    /**
+     * Gets the total calories, proteins and carbs of the day
+     * The totals of each meal match its entries at the moment it's read, without waiting for the writers
+     *
+     * @return the macros
+     */
+    public Macros getMacros() {
+        Macros total = Macros.ZERO;
+        for (Meal.Type type : Meal.Type.values()) {
+            total = total.plus(getMeal(type).getMacros());
+        }
+        return total;
     }
 
     public LocalDate getDate() {
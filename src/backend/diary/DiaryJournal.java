@@ -0,0 +1,443 @@
+package backend.diary;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The DiaryJournal class is an append-only log of the diary entries that were accepted but may not be in the database
+ * yet. Each entry is one line of text, and an entry is durable once the file has been forced to the disk after it.
+ * <p>
+ * Forcing the file is what costs, so it's shared: a thread that finds its entry already forced by another thread's
+ * force returns at once, and a single force covers every entry appended before it (group commit).
+ * <p>
+ * The log is split in segment files (journal.0, journal.1234, ...), each named after the number of entries appended
+ * before its first one. A new segment is started once the current one is segmentBytes long. The amount of entries
+ * written to the database is kept in a checkpoint file (journal.checkpoint), so those entries are not replayed after
+ * a crash, and the segments whose entries are all written are deleted. The log never grows much beyond the entries
+ * that are really pending.
+ *
+ * @author taconoodle
+ */
+class DiaryJournal implements AutoCloseable {
+    /**
+     * The default size a segment reaches before a new one is started, in bytes
+     */
+    static final long DEFAULT_SEGMENT_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * The suffix of the checkpoint file
+     */
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+    /**
+     * The length of the checkpoint, a zero-padded number followed by a line break
+     */
+    private static final int CHECKPOINT_LENGTH = 20;
+
+    /**
+     * The path the names of the segments and of the checkpoint start with
+     */
+    private final Path path;
+
+    /**
+     * The size a segment reaches before a new one is started, in bytes
+     */
+    private final long segmentBytes;
+
+    /**
+     * The segment entries are appended to
+     * Replaced with the append lock and the sync lock both held
+     */
+    private FileChannel channel;
+
+    /**
+     * The checkpoint file, rewritten in place
+     */
+    private final FileChannel checkpoint;
+
+    /**
+     * The full segments that still hold entries not written to the database, oldest first
+     * Guarded by the append lock
+     */
+    private final ArrayDeque<Segment> sealed = new ArrayDeque<>();
+
+    /**
+     * The path of the segment entries are appended to
+     * Guarded by the append lock
+     */
+    private Path segmentPath;
+
+    /**
+     * The amount of bytes in the segment entries are appended to
+     * Guarded by the append lock
+     */
+    private long segmentSize = 0;
+
+    /**
+     * The amount of entries ever appended
+     * Guarded by the append lock
+     */
+    private long entryCount = 0;
+
+    /**
+     * Guards the appends and the switches to a new segment
+     */
+    private final ReentrantLock appendLock = new ReentrantLock();
+
+    /**
+     * Guards forcing the file, so only one thread forces it at a time
+     */
+    private final ReentrantLock syncLock = new ReentrantLock();
+
+    /**
+     * The amount of bytes ever appended, over every segment
+     */
+    private volatile long appended = 0;
+
+    /**
+     * The amount of appended bytes known to be on the disk
+     */
+    private volatile long synced = 0;
+
+    /**
+     * Default constructor
+     * Starts an empty journal, the previous one must have been replayed and deleted
+     *
+     * @param path         the path the names of the segments and of the checkpoint start with
+     * @param segmentBytes the size a segment reaches before a new one is started, in bytes
+     * @throws IOException if the files can't be opened
+     */
+    DiaryJournal(Path path, long segmentBytes) throws IOException {
+        this.path = path;
+        this.segmentBytes = segmentBytes;
+        this.checkpoint = FileChannel.open(checkpointPath(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.segmentPath = segmentPath(path, 0);
+        this.channel = openSegment(segmentPath);
+    }
+
+    /**
+     * Reads the entries of a journal that are not known to be in the database
+     * A line cut short by a crash (the last one of a segment) is skipped, its entry was never acknowledged
+     *
+     * @param path the path the names of the segments and of the checkpoint start with
+     * @return the entries, in the order they were appended
+     * @throws IOException if the files can't be read
+     */
+    static ArrayList<Entry> read(Path path) throws IOException {
+        ArrayList<Entry> entries = new ArrayList<>();
+        //A single journal file without segments, left by an older version
+        if (Files.isRegularFile(path)) {
+            for (String line : completeLines(path)) {
+                Entry entry = Entry.parse(line);
+                if (entry != null) {
+                    entries.add(entry);
+                }
+            }
+        }
+
+        long written = readCheckpoint(path);
+        for (Map.Entry<Long, Path> segment : segments(path).entrySet()) {
+            long index = segment.getKey();
+            for (String line : completeLines(segment.getValue())) {
+                //Lines are counted even if they can't be parsed, so the indexes match the checkpoint
+                if (index++ < written) {
+                    continue;
+                }
+                Entry entry = Entry.parse(line);
+                if (entry != null) {
+                    entries.add(entry);
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Deletes every file of a journal
+     *
+     * @param path the path the names of the segments and of the checkpoint start with
+     * @throws IOException if a file can't be deleted
+     */
+    static void delete(Path path) throws IOException {
+        for (Path segment : segments(path).values()) {
+            Files.deleteIfExists(segment);
+        }
+        Files.deleteIfExists(checkpointPath(path));
+        Files.deleteIfExists(path);
+    }
+
+    /**
+     * Appends an entry to the file, without waiting for the disk
+     * The runnable runs while the append lock is held, so it sees the entries in the order they are in the file
+     *
+     * @param entry      the entry
+     * @param onAppended runs after the entry is appended
+     * @return the position sync() must reach for the entry to be durable
+     * @throws IOException if the file can't be written
+     */
+    long append(Entry entry, Runnable onAppended) throws IOException {
+        ByteBuffer line = ByteBuffer.wrap((entry.toLine() + "\n").getBytes(StandardCharsets.UTF_8));
+        appendLock.lock();
+        try {
+            if (segmentSize >= segmentBytes) {
+                startSegment();
+            }
+            int length = line.remaining();
+            while (line.hasRemaining()) {
+                channel.write(line);
+            }
+            appended += length;
+            segmentSize += length;
+            entryCount++;
+            onAppended.run();
+            return appended;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the file is on the disk up to a position
+     * If another thread is forcing the file, this waits for it and only forces again if its force didn't reach
+     * the position
+     *
+     * @param position the position returned by append()
+     * @throws IOException if the file can't be forced
+     */
+    void sync(long position) throws IOException {
+        if (synced >= position) {
+            return;
+        }
+        syncLock.lock();
+        try {
+            if (synced < position) {
+                //Everything appended so far is covered by this force, not just the caller's entry
+                long target = appended;
+                channel.force(false);
+                synced = target;
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Records that the oldest entries are in the database, so they are not replayed after a crash,
+     * and deletes the segments that only hold such entries
+     * Called by a single thread, with the entries written in the order they were appended
+     *
+     * @param written the amount of entries written to the database, the oldest ones first
+     * @throws IOException if the checkpoint can't be written or a segment can't be deleted
+     */
+    void release(long written) throws IOException {
+        //The checkpoint is on the disk before any caller learns the entries are written
+        String line = String.format("%0" + (CHECKPOINT_LENGTH - 1) + "d\n", written);
+        ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.US_ASCII));
+        long position = 0;
+        while (buffer.hasRemaining()) {
+            position += checkpoint.write(buffer, position);
+        }
+        checkpoint.force(false);
+
+        appendLock.lock();
+        try {
+            //Every entry is written, the current segment is closed too so it can be deleted
+            if (written == entryCount && segmentSize > 0) {
+                startSegment();
+            }
+            while (!sealed.isEmpty() && sealed.peekFirst().endEntry() <= written) {
+                Files.deleteIfExists(sealed.pollFirst().path());
+            }
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Closes the current segment and starts a new one
+     * Requires the append lock
+     *
+     * @throws IOException if a segment can't be forced, closed or opened
+     */
+    private void startSegment() throws IOException {
+        syncLock.lock();
+        try {
+            //The old segment can't be forced anymore once it's closed, so it's forced now
+            channel.force(false);
+            synced = appended;
+            channel.close();
+            sealed.addLast(new Segment(segmentPath, entryCount));
+            segmentPath = segmentPath(path, entryCount);
+            segmentSize = 0;
+            channel = openSegment(segmentPath);
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Opens a segment for appending, creating it if needed
+     *
+     * @param segment the path of the segment
+     * @return the segment's channel
+     * @throws IOException if the segment can't be opened
+     */
+    private static FileChannel openSegment(Path segment) throws IOException {
+        return FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Gets the path of a segment
+     *
+     * @param path       the path of the journal
+     * @param firstEntry the amount of entries appended before the segment's first one
+     * @return the segment's path
+     */
+    private static Path segmentPath(Path path, long firstEntry) {
+        return path.resolveSibling(path.getFileName() + "." + firstEntry);
+    }
+
+    /**
+     * Gets the path of the checkpoint
+     *
+     * @param path the path of the journal
+     * @return the checkpoint's path
+     */
+    private static Path checkpointPath(Path path) {
+        return path.resolveSibling(path.getFileName() + CHECKPOINT_SUFFIX);
+    }
+
+    /**
+     * Finds the segments of a journal
+     *
+     * @param path the path of the journal
+     * @return the segments' paths, by the amount of entries appended before their first one
+     * @throws IOException if the directory can't be listed
+     */
+    private static TreeMap<Long, Path> segments(Path path) throws IOException {
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        Path directory = path.toAbsolutePath().getParent();
+        String prefix = path.getFileName() + ".";
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, path.getFileName() + ".*")) {
+            for (Path file : files) {
+                String suffix = file.getFileName().toString().substring(prefix.length());
+                if (!suffix.isEmpty() && suffix.chars().allMatch(Character::isDigit)) {
+                    segments.put(Long.parseLong(suffix), file);
+                }
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Reads the amount of entries of a journal known to be in the database
+     *
+     * @param path the path of the journal
+     * @return the amount of entries, 0 if there is no checkpoint
+     * @throws IOException if the checkpoint can't be read
+     */
+    private static long readCheckpoint(Path path) throws IOException {
+        Path checkpointPath = checkpointPath(path);
+        if (!Files.exists(checkpointPath)) {
+            return 0;
+        }
+        String content = Files.readString(checkpointPath, StandardCharsets.US_ASCII).trim();
+        try {
+            return content.isEmpty() ? 0 : Long.parseLong(content);
+        } catch (NumberFormatException e) {
+            //A checkpoint cut short by a crash, replaying everything is safe, only slower
+            return 0;
+        }
+    }
+
+    /**
+     * Reads the lines of a file that were written whole
+     *
+     * @param file the file
+     * @return the lines ended by a line break
+     * @throws IOException if the file can't be read
+     */
+    private static String[] completeLines(Path file) throws IOException {
+        String content = Files.readString(file, StandardCharsets.UTF_8);
+        //Only the lines ended by a line break were written whole, the text after the last one is dropped
+        int end = content.lastIndexOf('\n');
+        return end < 0 ? new String[0] : content.substring(0, end).split("\n", -1);
+    }
+
+    /**
+     * Closes the files
+     *
+     * @throws IOException if a file can't be closed
+     */
+    @Override
+    public void close() throws IOException {
+        appendLock.lock();
+        try {
+            channel.close();
+            checkpoint.close();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * A full segment of the journal
+     *
+     * @param path     the path of the segment
+     * @param endEntry the amount of entries appended before the end of the segment
+     */
+    private record Segment(Path path, long endEntry) {
+    }
+
+    /**
+     * An entry of the journal: a food eaten in a meal, with the key that makes writing it to the database idempotent
+     *
+     * @param key      the unique key of the entry
+     * @param date     the date of the meal
+     * @param type     the meal
+     * @param foodId   the ID of the food
+     * @param quantity the grams eaten
+     */
+    record Entry(UUID key, LocalDate date, Meal.Type type, int foodId, double quantity) {
+        /**
+         * Converts the entry to a line of the journal
+         *
+         * @return the line, without the line break
+         */
+        String toLine() {
+            return key + "," + date + "," + type.name() + "," + foodId + "," + quantity;
+        }
+
+        /**
+         * Converts a line of the journal to an entry
+         *
+         * @param line the line
+         * @return the entry, or null if the line is incomplete
+         */
+        static Entry parse(String line) {
+            String[] fields = line.split(",");
+            if (fields.length != 5) {
+                return null;
+            }
+            try {
+                return new Entry(UUID.fromString(fields[0]), LocalDate.parse(fields[1]), Meal.Type.valueOf(fields[2]),
+                        Integer.parseInt(fields[3]), Double.parseDouble(fields[4]));
+            } catch (RuntimeException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,723 @@
+package backend.diary;
+
+import backend.database.BatchWriter;
+import backend.database.DatabaseManager;
+import backend.food.Food;
+import backend.food.FoodManager;
+import backend.food.Macros;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The DiaryManager class manages the diary (the foods eaten in each meal of each day) both in the backend and in the
+ * database while acting as a bridge among them
+ * <p>
+ * Each food eaten is stored as one row of the DiaryEntries table: its date, its meal, the food and the grams eaten.
+ * A day is loaded with a single query joining its entries with their foods, and so is a range of days,
+ * instead of one query per meal and day.
+ * <p>
+ * A row also stores the nutrients of the grams eaten, priced with the food's nutrients when the entry is written.
+ * The rollups add and subtract these stored nutrients and a loaded day uses them, so correcting a food later
+ * changes neither the history nor its totals, and removing an entry subtracts exactly what adding it added.
+ * <p>
+ * DiaryEntries is partitioned by month (see DiaryPartitions). Every query on it filters on entry_date with plain
+ * parameters, so only the partitions of the dates asked for are read. The partitions of the next months are
+ * created periodically in the background until close() is called, and the writes create the partition of a new
+ * month before inserting into it if it's still missing.
+ *
+ * @author taconoodle
+ */
+public class DiaryManager implements AutoCloseable {
+    /**
+     * The grams the nutrients of the foods are given for, as an SQL number
+     */
+    private static final String QUANTITY_BASE_SQL = String.valueOf(Macros.fromMilli(Macros.MILLI_QUANTITY_BASE));
+
+    /**
+     * The first date an entry can have
+     */
+    public static final LocalDate MIN_DATE = LocalDate.of(1, 1, 1);
+
+    /**
+     * The last date an entry can have
+     */
+    public static final LocalDate MAX_DATE = LocalDate.of(9999, 12, 31);
+
+    /**
+     * The largest quantity an entry can have, in grams (the quantity column is numeric(12, 3))
+     */
+    public static final double MAX_QUANTITY = 999_999_999.999;
+
+    /**
+     * The amount of months after the current one whose partitions are created ahead of time
+     */
+    private static final int PARTITION_MONTHS_AHEAD = 3;
+
+    /**
+     * The time between two creations of the partitions ahead of time, in milliseconds
+     */
+    private static final long PARTITION_MAINTENANCE_MILLIS = TimeUnit.HOURS.toMillis(6);
+
+    /**
+     * Reads the entries of a range of dates along with their foods, in the order they were added
+     */
+    private static final String LOAD_SQL = "SELECT e.entry_date, e.meal_type, e.quantity, " +
+            "e.calories AS entry_calories, e.protein AS entry_protein, e.carbs AS entry_carbs, " +
+            "f.id, f.brand, f.description, f.calories, f.protein, f.carbs " +
+            "FROM DiaryEntries e " +
+            "JOIN Food f ON f.id = e.food_id " +
+            "WHERE e.entry_date BETWEEN ? AND ? " +
+            "ORDER BY e.entry_date, e.id";
+
+    /**
+     * Inserts an entry (entry_key, entry_date, meal_type, food_id, quantity) priced with the food's current nutrients,
+     * unless an entry with the same key already exists on its date (keys are unique per partition, and the date of
+     * a key never changes), and adds its nutrients to the rollups of its day, week and month
+     */
+    static final String INSERT_ENTRY_SQL = "WITH added AS (" +
+            "INSERT INTO DiaryEntries (entry_key, entry_date, meal_type, food_id, quantity, calories, protein, carbs) " +
+            "(SELECT v.entry_key, v.entry_date, v.meal_type, v.food_id, v.quantity, " +
+            "round(f.calories * v.quantity / " + QUANTITY_BASE_SQL + ", 3), " +
+            "round(f.protein * v.quantity / " + QUANTITY_BASE_SQL + ", 3), " +
+            "round(f.carbs * v.quantity / " + QUANTITY_BASE_SQL + ", 3) " +
+            "FROM (VALUES (?::uuid, ?::date, ?::varchar, ?::integer, ?::numeric)) " +
+            "v (entry_key, entry_date, meal_type, food_id, quantity) " +
+            //An unknown food is kept by the LEFT JOIN, so the insert is rejected instead of silently skipped
+            "LEFT JOIN Food f ON f.id = v.food_id) " +
+            "ON CONFLICT (entry_key, entry_date) DO NOTHING " +
+            "RETURNING entry_date, calories, protein, carbs, 1 AS entry_delta) " +
+            rollupsUpdate("added");
+
+    /**
+     * Inserts an entry with the nutrients it was priced with (entry_key, entry_date, meal_type, food_id, quantity,
+     * calories, protein, carbs), so storing a loaded day again keeps its history, and adds them to the rollups
+     */
+    private static final String INSERT_PRICED_ENTRY_SQL = "WITH added AS (" +
+            "INSERT INTO DiaryEntries (entry_key, entry_date, meal_type, food_id, quantity, calories, protein, carbs) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, ?) " +
+            "ON CONFLICT (entry_key, entry_date) DO NOTHING " +
+            "RETURNING entry_date, calories, protein, carbs, 1 AS entry_delta) " +
+            rollupsUpdate("added");
+
+    /**
+     * Deletes the entries of a food from a meal (entry_date, meal_type, food_id) and subtracts them from the rollups
+     */
+    private static final String DELETE_ENTRIES_SQL = "WITH removed AS (" +
+            "DELETE FROM DiaryEntries WHERE entry_date = ? AND meal_type = ? AND food_id = ? " +
+            "RETURNING entry_date, -calories AS calories, -protein AS protein, -carbs AS carbs, -1 AS entry_delta) " +
+            rollupsUpdate("removed");
+
+    /**
+     * Deletes the entries of a day (entry_date) and subtracts them from the rollups
+     */
+    private static final String DELETE_DAY_SQL = "WITH removed AS (" +
+            "DELETE FROM DiaryEntries WHERE entry_date = ? " +
+            "RETURNING entry_date, -calories AS calories, -protein AS protein, -carbs AS carbs, -1 AS entry_delta) " +
+            rollupsUpdate("removed");
+
+
+    /**
+     * The database manager
+     * The DiaryManager instance borrows a pooled connection from it for each of its methods
+     */
+    private final DatabaseManager dbManager;
+
+    /**
+     * The monthly partitions of the DiaryEntries table
+     */
+    private final DiaryPartitions partitions;
+
+    /**
+     * The amount of entries saveDay sends to the database at once
+     */
+    private int batchSize = BatchWriter.DEFAULT_BATCH_SIZE;
+
+    /**
+     * The write-behind writer addEntry logs to, or null if addEntry inserts directly
+     */
+    private volatile DiaryWriter writer = null;
+
+    /**
+     * The amount of threads backfillRollups rebuilds months with in parallel
+     */
+    private int backfillThreads = 4;
+
+    /**
+     * The maximum time the other methods wait for the write-behind writer to write the pending entries,
+     * in milliseconds
+     */
+    private long flushTimeoutMillis = 10_000;
+
+    /**
+     * Default constructor
+     *
+     * @param dbManager the database manager the connections are borrowed from
+     */
+    public DiaryManager(DatabaseManager dbManager) {
+        this.dbManager = dbManager;
+        this.partitions = new DiaryPartitions(dbManager);
+        partitions.startMaintenance(PARTITION_MONTHS_AHEAD, PARTITION_MAINTENANCE_MILLIS);
+    }
+
+    /**
+     * Gets the monthly partitions of the diary, to create, compact or archive them
+     *
+     * @return the partitions
+     */
+    public DiaryPartitions getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * Changes the amount of entries saveDay sends to the database at once
+     *
+     * @param batchSize the new batch size
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Builds the INSERT that applies changed entries to the rollups of their days, weeks and months
+     * Each bucket is changed by a single row, so a statement changing many entries of a day still works
+     *
+     * @param changes the name of the CTE returning (entry_date, calories, protein, carbs, entry_delta): the stored
+     *                nutrients and 1 for added entries, their negation and -1 for removed ones
+     * @return the SQL statement
+     */
+    private static String rollupsUpdate(String changes) {
+        return "INSERT INTO NutritionRollups AS r (granularity, bucket_start, calories, protein, carbs, entry_count) " +
+                "SELECT b.granularity, b.bucket_start, " +
+                "sum(c.calories), sum(c.protein), sum(c.carbs), sum(c.entry_delta)::integer " +
+                "FROM " + changes + " c " +
+                "CROSS JOIN LATERAL (VALUES " +
+                "('DAY', " + NutritionRollup.Granularity.DAY.getBucketExpression("c") + "), " +
+                "('WEEK', " + NutritionRollup.Granularity.WEEK.getBucketExpression("c") + "), " +
+                "('MONTH', " + NutritionRollup.Granularity.MONTH.getBucketExpression("c") + ")" +
+                ") b (granularity, bucket_start) " +
+                "GROUP BY b.granularity, b.bucket_start " +
+                "ON CONFLICT (granularity, bucket_start) DO UPDATE SET " +
+                "calories = r.calories + excluded.calories, " +
+                "protein = r.protein + excluded.protein, " +
+                "carbs = r.carbs + excluded.carbs, " +
+                "entry_count = r.entry_count + excluded.entry_count";
+    }
+
+    /**
+     * Changes the amount of threads backfillRollups rebuilds months with in parallel
+     *
+     * @param backfillThreads the new amount of threads
+     */
+    public void setBackfillThreads(int backfillThreads) {
+        this.backfillThreads = backfillThreads;
+    }
+
+    /**
+     * Changes the maximum time the other methods wait for the write-behind writer to write the pending entries
+     * They fail (return false or null) if the entries can't be written in time, e.g. while the database is down
+     *
+     * @param flushTimeoutMillis the new timeout, in milliseconds
+     */
+    public void setFlushTimeoutMillis(long flushTimeoutMillis) {
+        this.flushTimeoutMillis = flushTimeoutMillis;
+    }
+
+    /**
+     * Checks that an entry can be stored: its date is between MIN_DATE and MAX_DATE, and its quantity is a number
+     * greater than 0 and at most MAX_QUANTITY
+     *
+     * @param date     the date of the entry
+     * @param quantity the grams eaten
+     * @throws IllegalArgumentException if the entry can't be stored
+     */
+    static void checkEntry(LocalDate date, double quantity) {
+        if (date == null || date.isBefore(MIN_DATE) || date.isAfter(MAX_DATE)) {
+            throw new IllegalArgumentException("Invalid diary date: " + date);
+        }
+        //Also false for NaN
+        if (!(quantity > 0 && quantity <= MAX_QUANTITY)) {
+            throw new IllegalArgumentException("Invalid diary quantity: " + quantity);
+        }
+    }
+
+    /**
+     * Enables write-behind for addEntry, replacing the previous writer if there was any
+     * addEntry then returns once the entry is in the journal file, and the entries of all callers are inserted
+     * in batches by a background thread. The other methods write the pending entries first, so they see them,
+     * and fail if that takes longer than flushTimeoutMillis.
+     * Entries left in the journal by a crash are written to the database before this returns.
+     *
+     * @param journalPath      the path the journal files are named after (journal.0, journal.checkpoint...)
+     * @param batchSize        the maximum amount of entries per transaction
+     * @param maxLatencyMillis the maximum time an entry waits for more entries before it's written, in milliseconds
+     * @return true if successful
+     */
+    public boolean enableWriteBehind(Path journalPath, int batchSize, long maxLatencyMillis) {
+        disableWriteBehind();
+        try {
+            this.writer = new DiaryWriter(dbManager, partitions, journalPath, batchSize, maxLatencyMillis);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Journal error: " + e.getMessage());
+            return false;
+        } catch (SQLException e) {
+            System.err.println("SQL Database error: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Disables write-behind: writes the pending entries and closes the journal, addEntry inserts directly again
+     */
+    public void disableWriteBehind() {
+        DiaryWriter currentWriter = writer;
+        writer = null;
+        if (currentWriter != null) {
+            try {
+                currentWriter.close();
+            } catch (IOException e) {
+                System.err.println("Journal error: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Disables write-behind and stops creating the partitions ahead of time
+     */
+    @Override
+    public void close() {
+        disableWriteBehind();
+        partitions.stopMaintenance();
+    }
+
+    /**
+     * Stores that a quantity of a food was eaten in a meal
+     * With write-behind enabled, the entry is only in the journal when this returns (see enableWriteBehind)
+     *
+     * @param date     the date of the meal
+     * @param type     the meal
+     * @param foodId   the ID of the food
+     * @param quantity the grams eaten
+     * @return true if successful
+     * @throws SQLException if a database error is encountered
+     * @throws IllegalArgumentException if the date or the quantity can't be stored (see checkEntry)
+     */
+    public boolean addEntry(LocalDate date, Meal.Type type, int foodId, double quantity) throws SQLException {
+        checkEntry(date, quantity);
+        DiaryWriter currentWriter = writer;
+        if (currentWriter != null) {
+            try {
+                currentWriter.log(date, type, foodId, quantity);
+                return true;
+            } catch (IOException e) {
+                System.err.println("Journal error: " + e.getMessage());
+                return false;
+            }
+        }
+
+        try {
+            //Before borrowing, ensure borrows a connection of its own
+            partitions.ensure(List.of(date));
+
+            //Borrow a connection for this operation, closing it returns it to the pool
+            try (Connection conn = dbManager.getConnection();
+                 PreparedStatement statement = conn.prepareStatement(INSERT_ENTRY_SQL)) {
+                statement.setObject(1, UUID.randomUUID());
+                statement.setObject(2, date);
+                statement.setString(3, type.name());
+                statement.setInt(4, foodId);
+                statement.setDouble(5, quantity);
+                statement.executeUpdate();
+                return true;
+            }
+        } catch (SQLException e) {
+            System.err.println("SQL Database error: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Deletes the entries of a food from a meal
+     *
+     * @param date   the date of the meal
+     * @param type   the meal
+     * @param foodId the ID of the food
+     * @return true if successful
+     * @throws SQLException if a database error is encountered
+     */
+    public boolean removeEntries(LocalDate date, Meal.Type type, int foodId) throws SQLException {
+        if (!flushWriter()) {
+            return false;
+        }
+
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement statement = conn.prepareStatement(DELETE_ENTRIES_SQL)) {
+            statement.setObject(1, date);
+            statement.setString(2, type.name());
+            statement.setInt(3, foodId);
+            statement.executeUpdate();
+            return true;
+        } catch (SQLException e) {
+            System.err.println("SQL Database error: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Stores a whole day, replacing the entries stored for its date
+     * The old entries are deleted and the new ones inserted in batches, all in a single transaction
+     *
+     * @param day the day, as it should be stored
+     * @return true if successful
+     * @throws SQLException if a database error is encountered
+     * @throws IllegalArgumentException if an entry of the day can't be stored (see checkEntry)
+     */
+    public boolean saveDay(Day day) throws SQLException {
+        ArrayList<StoredEntry> rows = new ArrayList<>();
+        for (Meal.Type type : Meal.Type.values()) {
+            for (MealEntry entry : day.getMeal(type).getEntries()) {
+                checkEntry(day.getDate(), entry.quantity());
+                rows.add(new StoredEntry(type, entry));
+            }
+        }
+        if (!flushWriter()) {
+            return false;
+        }
+
+        try {
+            //Before borrowing, ensure borrows a connection of its own
+            partitions.ensure(List.of(day.getDate()));
+
+            try (Connection conn = dbManager.getConnection();
+                 PreparedStatement statement = conn.prepareStatement(DELETE_DAY_SQL)) {
+                conn.setAutoCommit(false);
+                try {
+                    statement.setObject(1, day.getDate());
+                    statement.executeUpdate();
+
+                    BatchWriter.executeInTransaction(conn, INSERT_PRICED_ENTRY_SQL, rows, batchSize, (insert, row) -> {
+                        Macros macros = row.entry().macros();
+                        insert.setObject(1, UUID.randomUUID());
+                        insert.setObject(2, day.getDate());
+                        insert.setString(3, row.type().name());
+                        insert.setInt(4, row.entry().food().getId());
+                        insert.setDouble(5, row.entry().quantity());
+                        insert.setBigDecimal(6, BigDecimal.valueOf(macros.milliCalories(), 3));
+                        insert.setBigDecimal(7, BigDecimal.valueOf(macros.milliProteins(), 3));
+                        insert.setBigDecimal(8, BigDecimal.valueOf(macros.milliCarbs(), 3));
+                    });
+
+                    conn.commit();
+                    return true;
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("SQL Database error: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Loads a day: its four meals and the foods eaten in them, with a single query
+     *
+     * @param date the date of the day
+     * @return the day, with empty meals if nothing was stored for it, or null if the operation failed
+     * @throws SQLException if a database error is encountered
+     */
+    public Day getDay(LocalDate date) throws SQLException {
+        ArrayList<Day> days = getDays(date, date);
+        return days == null ? null : days.get(0);
+    }
+
+    /**
+     * Loads every day of a range of dates with a single query, however many days and meals the range has
+     *
+     * @param from the first date (inclusive)
+     * @param to   the last date (inclusive)
+     * @return an ArrayList with one day per date in order, days without entries having empty meals,
+     *         or null if the operation failed
+     * @throws SQLException if a database error is encountered
+     */
+    public ArrayList<Day> getDays(LocalDate from, LocalDate to) throws SQLException {
+        LinkedHashMap<LocalDate, Day> days = new LinkedHashMap<>();
+        from.datesUntil(to.plusDays(1)).forEach(date -> days.put(date, new Day(date)));
+        if (!flushWriter()) {
+            return null;
+        }
+
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement statement = conn.prepareStatement(LOAD_SQL)) {
+            statement.setObject(1, from);
+            statement.setObject(2, to);
+            ResultSet rs = statement.executeQuery();
+
+            //A food eaten in many meals is created once and shared by them
+            HashMap<Integer, Food> foods = new HashMap<>();
+            while (rs.next()) {
+                Food food = foods.get(rs.getInt("id"));
+                if (food == null) {
+                    food = FoodManager.rowToFood(rs);
+                    foods.put(food.getId(), food);
+                }
+                Day day = days.get(rs.getObject("entry_date", LocalDate.class));
+                //The entry keeps the nutrients it was priced with, even if the food was corrected since
+                Macros macros = Macros.of(rs.getDouble("entry_calories"), rs.getDouble("entry_protein"),
+                        rs.getDouble("entry_carbs"));
+                day.getMeal(Meal.Type.valueOf(rs.getString("meal_type")))
+                        .addEntry(new MealEntry(food, rs.getDouble("quantity"), macros));
+            }
+            return new ArrayList<>(days.values());
+        } catch (SQLException e) {
+            System.err.println("SQL Database error: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Gets the nutrition totals of the days, weeks or months of a range of dates, reading one row per bucket
+     * instead of every entry
+     *
+     * @param granularity the kind of bucket
+     * @param from        the first date (inclusive), its whole bucket is included
+     * @param to          the last date (inclusive), its whole bucket is included
+     * @return an ArrayList of the buckets that have entries, in date order, or null if the operation failed
+     * @throws SQLException if a database error is encountered
+     */
+    public ArrayList<NutritionRollup> getRollups(NutritionRollup.Granularity granularity, LocalDate from, LocalDate to)
+            throws SQLException {
+        String sql = "SELECT bucket_start, calories, protein, carbs, entry_count FROM NutritionRollups " +
+                "WHERE granularity = ? AND bucket_start BETWEEN ? AND ? AND entry_count > 0 " +
+                "ORDER BY bucket_start";
+        if (!flushWriter()) {
+            return null;
+        }
+
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement statement = conn.prepareStatement(sql)) {
+            statement.setString(1, granularity.name());
+            statement.setObject(2, granularity.startOf(from));
+            statement.setObject(3, to);
+            ResultSet rs = statement.executeQuery();
+
+            ArrayList<NutritionRollup> rollups = new ArrayList<>();
+            while (rs.next()) {
+                rollups.add(new NutritionRollup(granularity, rs.getObject(1, LocalDate.class), rs.getDouble(2),
+                        rs.getDouble(3), rs.getDouble(4), rs.getInt(5)));
+            }
+            return rollups;
+        } catch (SQLException e) {
+            System.err.println("SQL Database error: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Recomputes the rollups of a range of dates from the diary entries, e.g. for history written before the rollups
+     * existed or by other tools
+     * The range is split in months, which are rebuilt in parallel (backfillThreads at a time), each in its own
+     * transaction so a long backfill doesn't hold back the writers for long
+     *
+     * @param from the first date (inclusive)
+     * @param to   the last date (inclusive)
+     * @return the amount of rollups written, or -1 if a database error is encountered
+     */
+    public int backfillRollups(LocalDate from, LocalDate to) {
+        ArrayList<LocalDate> months = new ArrayList<>();
+        for (LocalDate month = from.withDayOfMonth(1); !month.isAfter(to); month = month.plusMonths(1)) {
+            months.add(month);
+        }
+        return rebuildMonths(months);
+    }
+
+    /**
+     * Rebuilds the rollups of some months in parallel, each month in its own transaction
+     *
+     * @param months the first dates of the months
+     * @return the amount of rollups written, or -1 if a database error is encountered
+     */
+    private int rebuildMonths(List<LocalDate> months) {
+        if (months.isEmpty()) {
+            return 0;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(backfillThreads, months.size())));
+        try {
+            ArrayList<Future<Integer>> rebuilds = new ArrayList<>();
+            for (LocalDate month : months) {
+                rebuilds.add(executor.submit(() -> rebuildMonth(month)));
+            }
+
+            int written = 0;
+            for (Future<Integer> rebuild : rebuilds) {
+                written += rebuild.get();
+            }
+            return written;
+        } catch (ExecutionException e) {
+            System.err.println("SQL Database error: " + e.getCause().getMessage());
+            return -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Rebuilds the rollups of the days and the month of a month, and of the weeks overlapping it, in one transaction
+     * The partitions read by the rebuild (the month's, and its neighbours' for the weeks it shares with them) are
+     * locked against writes (not reads) while the month is rebuilt, so no entry written meanwhile is counted twice
+     * or missed. The other months stay writable. A week shared with the next month is rebuilt by both months, whole
+     * each time, so the result is the same whichever runs last.
+     * <p>
+     * The entries of an archived month are not in the diary anymore, so its rollups, and those of the weeks it
+     * shares with its neighbours, are kept as they are: an archived month is skipped, and the weeks shared with an
+     * archived neighbour are not rebuilt.
+     *
+     * @param month the first date of the month
+     * @return the amount of rollups written
+     * @throws SQLException if a database error is encountered
+     */
+    private int rebuildMonth(LocalDate month) throws SQLException {
+        Set<YearMonth> archived = partitions.getArchivedMonths();
+        if (archived.contains(YearMonth.from(month))) {
+            return 0;
+        }
+        LocalDate lastDay = month.with(TemporalAdjusters.lastDayOfMonth());
+        LocalDate from = NutritionRollup.Granularity.WEEK.startOf(month);
+        LocalDate to = NutritionRollup.Granularity.WEEK.endOf(lastDay);
+        //The rebuilt weeks stay within the month if a neighbour is archived
+        LocalDate weeksFrom = archived.contains(YearMonth.from(from)) && from.isBefore(month) ? from.plusWeeks(1) : from;
+        LocalDate weeksTo = archived.contains(YearMonth.from(to)) && to.isAfter(lastDay) ? to.minusWeeks(1) : to;
+
+        TreeSet<YearMonth> read = new TreeSet<>(List.of(YearMonth.from(weeksFrom.isBefore(month) ? weeksFrom : month),
+                YearMonth.from(weeksTo.isAfter(lastDay) ? weeksTo : lastDay)));
+        ArrayList<LocalDate> readDates = new ArrayList<>();
+        for (YearMonth readMonth : read) {
+            readDates.add(readMonth.atDay(1));
+        }
+        partitions.ensure(readDates);
+
+        try (Connection conn = dbManager.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                try (Statement lock = conn.createStatement()) {
+                    for (YearMonth readMonth : read) {
+                        lock.execute("LOCK TABLE " + DiaryPartitions.partitionName(readMonth) + " IN SHARE MODE");
+                    }
+                }
+                int written = 0;
+                for (NutritionRollup.Granularity granularity : NutritionRollup.Granularity.values()) {
+                    if (granularity == NutritionRollup.Granularity.WEEK) {
+                        written += rebuildRollups(conn, granularity, weeksFrom, weeksTo);
+                    } else {
+                        written += rebuildRollups(conn, granularity, granularity.startOf(month), granularity.endOf(lastDay));
+                    }
+                }
+                conn.commit();
+                return written;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * Replaces the rollups of whole buckets of a range with totals computed from the diary entries
+     *
+     * @param conn        the connection to use, with autocommit off
+     * @param granularity the kind of bucket
+     * @param from        the first date of the first bucket
+     * @param to          the last date of the last bucket
+     * @return the amount of rollups written
+     * @throws SQLException if a database error is encountered
+     */
+    private int rebuildRollups(Connection conn, NutritionRollup.Granularity granularity, LocalDate from, LocalDate to)
+            throws SQLException {
+        try (PreparedStatement delete = conn.prepareStatement(
+                "DELETE FROM NutritionRollups WHERE granularity = ? AND bucket_start BETWEEN ? AND ?")) {
+            delete.setString(1, granularity.name());
+            delete.setObject(2, from);
+            delete.setObject(3, to);
+            delete.executeUpdate();
+        }
+
+        //Another month rebuilding a shared week may have written it meanwhile, the totals are the same
+        String sql = "INSERT INTO NutritionRollups AS r (granularity, bucket_start, calories, protein, carbs, entry_count) " +
+                "SELECT ?, " + granularity.getBucketExpression("e") + ", " +
+                "sum(e.calories), sum(e.protein), sum(e.carbs), count(*) " +
+                "FROM DiaryEntries e " +
+                "WHERE e.entry_date BETWEEN ? AND ? " +
+                "GROUP BY 2 " +
+                "ON CONFLICT (granularity, bucket_start) DO UPDATE SET " +
+                "calories = excluded.calories, protein = excluded.protein, carbs = excluded.carbs, " +
+                "entry_count = excluded.entry_count";
+        try (PreparedStatement insert = conn.prepareStatement(sql)) {
+            insert.setString(1, granularity.name());
+            insert.setObject(2, from);
+            insert.setObject(3, to);
+            return insert.executeUpdate();
+        }
+    }
+
+    /**
+     * Writes the entries pending in the write-behind writer, if there is one, so they can be read or replaced
+     * Waits at most flushTimeoutMillis
+     *
+     * @return true if there are no pending entries left from before the call, false if they could not be written
+     *         in time (an error is printed)
+     */
+    private boolean flushWriter() {
+        DiaryWriter currentWriter = writer;
+        if (currentWriter == null) {
+            return true;
+        }
+        try {
+            if (currentWriter.flush(flushTimeoutMillis)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.err.println("Journal error: " + currentWriter.getPendingCount() + " pending diary entries could not be written");
+        return false;
+    }
+
+    /**
+     * An entry of a meal, as it's stored
+     *
+     * @param type  the meal
+     * @param entry the entry
+     */
+    private record StoredEntry(Meal.Type type, MealEntry entry) {
+    }
+}
@@ -0,0 +1,383 @@
+package backend.diary;
+
+import backend.database.DatabaseManager;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The DiaryPartitions class manages the monthly partitions of the DiaryEntries table.
+ * <p>
+ * Every month of entries is its own table (e.g. diaryentries_y2024m05), so a query on a range of dates only reads
+ * the months of the range, and a month can be detached from the diary without touching the others.
+ * There is no catch-all partition: the partitions are created ahead of time (createPartitions, run periodically by
+ * startMaintenance), and the writers of the diary create the partition of a date on the fly if it's missing (ensure).
+ * A missing partition is created as a standalone table and then attached, which only takes a SHARE UPDATE EXCLUSIVE
+ * lock on DiaryEntries, so the reads and writes of the other months go on meanwhile.
+ * <p>
+ * Recent partitions are read by date a lot, so they are indexed with a B-tree. Older ones are only scanned by
+ * analytics, and compactPartitions() replaces their B-tree with a BRIN index, which is a tiny fraction of its size
+ * and works well because the entries of a month are stored roughly in date order.
+ *
+ * @author taconoodle
+ */
+public class DiaryPartitions {
+    /**
+     * The schema archived partitions are moved to
+     */
+    public static final String ARCHIVE_SCHEMA = "diary_archive";
+
+    /**
+     * Runs the periodic createPartitions of every DiaryPartitions instance
+     */
+    private static final ScheduledExecutorService MAINTENANCE = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "diary-partition-maintenance");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The database manager
+     * The DiaryPartitions instance borrows a pooled connection from it for each of its methods
+     */
+    private final DatabaseManager dbManager;
+
+    /**
+     * The months known to have a partition, so ensure() doesn't ask the database for every entry
+     */
+    private final Set<YearMonth> known = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The periodic createPartitions, null if it's not scheduled
+     */
+    private ScheduledFuture<?> maintenance;
+
+    /**
+     * Default constructor
+     *
+     * @param dbManager the database manager the connections are borrowed from
+     */
+    public DiaryPartitions(DatabaseManager dbManager) {
+        this.dbManager = dbManager;
+    }
+
+    /**
+     * Gets the name of the partition of a month
+     *
+     * @param month the month
+     * @return the table name
+     */
+    public static String partitionName(YearMonth month) {
+        return String.format("diaryentries_y%04dm%02d", month.getYear(), month.getMonthValue());
+    }
+
+    /**
+     * Creates the partitions of the current month and of the next ones, if they don't exist
+     *
+     * @param monthsAhead the amount of months after the current one
+     * @return true if successful
+     * @throws SQLException if a database error is encountered
+     */
+    public boolean createPartitions(int monthsAhead) throws SQLException {
+        ArrayList<LocalDate> dates = new ArrayList<>();
+        YearMonth current = YearMonth.now();
+        for (int i = 0; i <= monthsAhead; i++) {
+            dates.add(current.plusMonths(i).atDay(1));
+        }
+        try {
+            ensure(dates);
+            return true;
+        } catch (SQLException e) {
+            System.err.println("SQL Database error: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Schedules createPartitions to run now and then periodically, replacing the previous schedule if there was any
+     *
+     * @param monthsAhead  the amount of months after the current one that get a partition
+     * @param periodMillis the time between two runs, in milliseconds
+     */
+    public synchronized void startMaintenance(int monthsAhead, long periodMillis) {
+        stopMaintenance();
+        maintenance = MAINTENANCE.scheduleWithFixedDelay(() -> {
+            //An exception escaping the task would cancel every later run
+            try {
+                createPartitions(monthsAhead);
+            } catch (Exception e) {
+                System.err.println("Diary partition maintenance error: " + e);
+            }
+        }, 0, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cancels the periodic createPartitions, if it's scheduled
+     */
+    public synchronized void stopMaintenance() {
+        if (maintenance != null) {
+            maintenance.cancel(false);
+            maintenance = null;
+        }
+    }
+
+    /**
+     * Makes sure the partitions of some dates exist, creating the missing ones
+     *
+     * @param dates the dates
+     * @throws SQLException if a database error is encountered
+     */
+    void ensure(Collection<LocalDate> dates) throws SQLException {
+        TreeSet<YearMonth> missing = new TreeSet<>();
+        for (LocalDate date : dates) {
+            YearMonth month = YearMonth.from(date);
+            if (!known.contains(month)) {
+                missing.add(month);
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+
+        //Created outside the caller's transaction, so a rollback of the caller doesn't undo them
+        try (Connection conn = dbManager.getConnection();
+             Statement statement = conn.createStatement();
+             PreparedStatement attached = conn.prepareStatement(
+                     "SELECT 1 FROM pg_inherits WHERE inhparent = 'diaryentries'::regclass " +
+                             "AND inhrelid = to_regclass(?)")) {
+            for (YearMonth month : missing) {
+                String name = partitionName(month);
+                if (!isAttached(attached, name)) {
+                    conn.setAutoCommit(false);
+                    try {
+                        createPartition(statement, month);
+                        conn.commit();
+                    } catch (SQLException e) {
+                        conn.rollback();
+                        //Another instance created it at the same time
+                        if (!isAttached(attached, name)) {
+                            throw e;
+                        }
+                    } finally {
+                        conn.setAutoCommit(true);
+                    }
+                }
+                known.add(month);
+            }
+        }
+    }
+
+    /**
+     * Checks if a table is attached to DiaryEntries as a partition
+     *
+     * @param attached the query on pg_inherits, taking the name of the table
+     * @param name     the name of the table
+     * @return true if the table is a partition of DiaryEntries
+     * @throws SQLException if a database error is encountered
+     */
+    private static boolean isAttached(PreparedStatement attached, String name) throws SQLException {
+        attached.setString(1, name);
+        try (ResultSet rs = attached.executeQuery()) {
+            return rs.next();
+        }
+    }
+
+    /**
+     * Creates the partition of a month as a standalone table and attaches it to DiaryEntries
+     * CREATE TABLE ... PARTITION OF would lock DiaryEntries in ACCESS EXCLUSIVE mode, blocking every read and write
+     * of the diary, while ATTACH PARTITION only blocks other schema changes. The CHECK constraint matching the range
+     * lets the attach skip scanning the table, and is dropped once it's attached.
+     * Must run inside a transaction, so a failed attach leaves no standalone table behind.
+     *
+     * @param statement a statement of the connection
+     * @param month     the month
+     * @throws SQLException if a database error is encountered
+     */
+    private static void createPartition(Statement statement, YearMonth month) throws SQLException {
+        String name = partitionName(month);
+        String from = "'" + month.atDay(1) + "'";
+        String to = "'" + month.plusMonths(1).atDay(1) + "'";
+
+        statement.execute("CREATE TABLE " + name + " (LIKE DiaryEntries INCLUDING DEFAULTS INCLUDING CONSTRAINTS)");
+        statement.execute("ALTER TABLE " + name + " ADD CONSTRAINT " + name + "_range " +
+                "CHECK (entry_date IS NOT NULL AND entry_date >= " + from + " AND entry_date < " + to + ")");
+        statement.execute("CREATE INDEX " + name + "_entry_date_idx ON " + name + " (entry_date, id)");
+        statement.execute("ALTER TABLE DiaryEntries ATTACH PARTITION " + name + " FOR VALUES FROM (" + from + ") TO (" + to + ")");
+        statement.execute("ALTER TABLE " + name + " DROP CONSTRAINT " + name + "_range");
+    }
+
+    /**
+     * Gets the months that have a partition in the diary
+     *
+     * @return an ArrayList of the months, in order, or null if the operation failed
+     * @throws SQLException if a database error is encountered
+     */
+    public ArrayList<YearMonth> getPartitions() throws SQLException {
+        String sql = "SELECT c.relname FROM pg_inherits i " +
+                "JOIN pg_class c ON c.oid = i.inhrelid " +
+                "WHERE i.inhparent = 'diaryentries'::regclass " +
+                "ORDER BY c.relname";
+
+        try (Connection conn = dbManager.getConnection();
+             Statement statement = conn.createStatement()) {
+            ResultSet rs = statement.executeQuery(sql);
+            ArrayList<YearMonth> months = new ArrayList<>();
+            while (rs.next()) {
+                months.add(monthOf(rs.getString(1)));
+            }
+            return months;
+        } catch (SQLException e) {
+            System.err.println("SQL Database error: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Gets the months whose partitions were moved to the archive schema
+     * Their entries are not in the diary anymore, but their rollups are kept, so they must not be rebuilt
+     *
+     * @return the archived months
+     * @throws SQLException if a database error is encountered
+     */
+    Set<YearMonth> getArchivedMonths() throws SQLException {
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement statement = conn.prepareStatement(
+                     "SELECT tablename FROM pg_tables WHERE schemaname = ? AND tablename LIKE 'diaryentries\\_y%'")) {
+            statement.setString(1, ARCHIVE_SCHEMA);
+            ResultSet rs = statement.executeQuery();
+            TreeSet<YearMonth> months = new TreeSet<>();
+            while (rs.next()) {
+                months.add(monthOf(rs.getString(1)));
+            }
+            return months;
+        }
+    }
+
+    /**
+     * Gets the month of a partition from its name
+     *
+     * @param name the name of the partition, diaryentries_yYYYYmMM
+     * @return the month
+     */
+    private static YearMonth monthOf(String name) {
+        return YearMonth.of(Integer.parseInt(name.substring(14, 18)), Integer.parseInt(name.substring(19, 21)));
+    }
+
+    /**
+     * Replaces the B-tree index of the partitions older than some months with a BRIN index
+     * The indexes are built and dropped concurrently, so the partitions stay readable and writable meanwhile
+     *
+     * @param hotMonths the amount of recent months (the current one included) that keep their B-tree index
+     * @return the amount of partitions compacted, or -1 if the operation failed
+     * @throws SQLException if a database error is encountered
+     */
+    public int compactPartitions(int hotMonths) throws SQLException {
+        ArrayList<YearMonth> months = getPartitions();
+        if (months == null) {
+            return -1;
+        }
+        YearMonth oldestHot = YearMonth.now().minusMonths(hotMonths - 1);
+
+        //Concurrent index builds can't run inside a transaction, the connection stays in autocommit
+        try (Connection conn = dbManager.getConnection();
+             Statement statement = conn.createStatement();
+             PreparedStatement hasBtree = conn.prepareStatement(
+                     "SELECT 1 FROM pg_indexes WHERE tablename = ? AND indexname = ?")) {
+            int compacted = 0;
+            for (YearMonth month : months) {
+                if (!month.isBefore(oldestHot)) {
+                    continue;
+                }
+                String name = partitionName(month);
+                hasBtree.setString(1, name);
+                hasBtree.setString(2, name + "_entry_date_idx");
+                try (ResultSet rs = hasBtree.executeQuery()) {
+                    if (!rs.next()) {
+                        continue;
+                    }
+                }
+                statement.execute("CREATE INDEX CONCURRENTLY IF NOT EXISTS " + name + "_entry_date_brin " +
+                        "ON " + name + " USING brin (entry_date)");
+                statement.execute("DROP INDEX CONCURRENTLY IF EXISTS " + name + "_entry_date_idx");
+                compacted++;
+            }
+            return compacted;
+        } catch (SQLException e) {
+            System.err.println("SQL Database error: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Detaches the partition of a month from the diary and moves it to the archive schema
+     * The detach is concurrent, so the other partitions stay readable and writable meanwhile.
+     * The entries of the month are not in the diary anymore, but the rollups keep their totals.
+     *
+     * @param month the month
+     * @return true if successful, false if the month has no partition
+     * @throws SQLException if a database error is encountered
+     */
+    public boolean archivePartition(YearMonth month) throws SQLException {
+        String name = partitionName(month);
+
+        //DETACH CONCURRENTLY can't run inside a transaction, the connection stays in autocommit
+        try (Connection conn = dbManager.getConnection();
+             Statement statement = conn.createStatement()) {
+            known.remove(month);
+            statement.execute("ALTER TABLE DiaryEntries DETACH PARTITION " + name + " CONCURRENTLY");
+            statement.execute("CREATE SCHEMA IF NOT EXISTS " + ARCHIVE_SCHEMA);
+            statement.execute("ALTER TABLE " + name + " SET SCHEMA " + ARCHIVE_SCHEMA);
+            return true;
+        } catch (SQLException e) {
+            System.err.println("SQL Database error: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Moves an archived partition back into the diary
+     * The month must not have received a new partition since it was archived
+     *
+     * @param month the month
+     * @return true if successful
+     * @throws SQLException if a database error is encountered
+     */
+    public boolean restorePartition(YearMonth month) throws SQLException {
+        String name = partitionName(month);
+
+        try (Connection conn = dbManager.getConnection();
+             Statement statement = conn.createStatement()) {
+            conn.setAutoCommit(false);
+            try {
+                statement.execute("ALTER TABLE " + ARCHIVE_SCHEMA + "." + name + " SET SCHEMA public");
+                statement.execute("ALTER TABLE DiaryEntries ATTACH PARTITION " + name + " " +
+                        "FOR VALUES FROM ('" + month.atDay(1) + "') TO ('" + month.plusMonths(1).atDay(1) + "')");
+                conn.commit();
+                known.add(month);
+                return true;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            System.err.println("SQL Database error: " + e.getMessage());
+            return false;
+        }
+    }
+}
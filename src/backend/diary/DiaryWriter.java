@@ -0,0 +1,405 @@
+package backend.diary;
+
+import backend.database.BatchWriter;
+import backend.database.DatabaseManager;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The DiaryWriter class writes diary entries to the database behind the callers' backs (write-behind).
+ * <p>
+ * An entry is acknowledged as soon as it's in the local journal file (see DiaryJournal), which costs a shared disk
+ * force instead of a database commit. A background thread collects the entries of every caller and inserts them
+ * in batches, one transaction per batch (group commit): a batch is written when it has batchSize entries, or when its
+ * oldest entry has waited maxLatencyMillis.
+ * <p>
+ * Every entry has a unique key, and it's inserted with ON CONFLICT DO NOTHING, so writing an entry twice is harmless
+ * (its nutrients are only added to the rollups the first time).
+ * After every batch, the journal records that its entries are in the database and drops the segments holding only
+ * such entries, so it stays about as large as the pending entries. When the writer is created, the entries left
+ * in the journal by a crash are written again, except the ones it recorded as written: those may have been removed
+ * or replaced since (removeEntries, saveDay), and writing them again would bring them back.
+ *
+ * @author taconoodle
+ */
+public class DiaryWriter implements AutoCloseable {
+    /**
+     * The class of the SQL states of integrity constraint violations (e.g. an unknown food)
+     */
+    private static final String INTEGRITY_VIOLATION_CLASS = "23";
+
+    /**
+     * The class of the SQL states of invalid data (e.g. a date or a number out of range)
+     */
+    private static final String DATA_EXCEPTION_CLASS = "22";
+
+    /**
+     * Queued to wake the background thread up, it's never written
+     */
+    private static final DiaryJournal.Entry WAKE_UP = new DiaryJournal.Entry(new UUID(0, 0), LocalDate.EPOCH,
+            Meal.Type.SNACKS, 0, 0);
+
+    /**
+     * The database manager the background thread borrows connections from
+     */
+    private final DatabaseManager dbManager;
+
+    /**
+     * The monthly partitions of the diary, the partition of a new month is created before inserting into it
+     */
+    private final DiaryPartitions partitions;
+
+    /**
+     * The journal of the acknowledged entries
+     */
+    private final DiaryJournal journal;
+
+    /**
+     * The maximum amount of entries per transaction
+     */
+    private final int batchSize;
+
+    /**
+     * The maximum time an entry waits for more entries before it's written, in milliseconds
+     */
+    private final long maxLatencyMillis;
+
+    /**
+     * The entries that are in the journal but not in the database, in journal order
+     */
+    private final LinkedBlockingQueue<DiaryJournal.Entry> pending = new LinkedBlockingQueue<>();
+
+    /**
+     * The background thread writing the entries to the database
+     */
+    private final Thread flusher;
+
+    /**
+     * Guards waiting for the background thread in flush()
+     */
+    private final Object flushMonitor = new Object();
+
+    /**
+     * The amount of entries ever appended to the journal
+     */
+    private volatile long appendedCount = 0;
+
+    /**
+     * The amount of entries ever written to the database, the oldest ones first
+     */
+    private volatile long flushedCount = 0;
+
+    /**
+     * The amount of entries some caller of flush() waits to be written
+     */
+    private volatile long flushTarget = 0;
+
+    /**
+     * False once close() was called
+     */
+    private volatile boolean running = true;
+
+    /**
+     * Default constructor
+     * Writes the entries left in the journal to the database, then starts the background thread
+     *
+     * @param dbManager        the database manager the connections are borrowed from
+     * @param partitions       the monthly partitions of the diary
+     * @param journalPath      the path the journal files are named after, created if needed
+     * @param batchSize        the maximum amount of entries per transaction
+     * @param maxLatencyMillis the maximum time an entry waits for more entries before it's written, in milliseconds
+     * @throws IOException  if the journal can't be read or opened
+     * @throws SQLException if the entries left in the journal can't be written
+     */
+    public DiaryWriter(DatabaseManager dbManager, DiaryPartitions partitions, Path journalPath, int batchSize, long maxLatencyMillis)
+            throws IOException, SQLException {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        }
+        this.dbManager = dbManager;
+        this.partitions = partitions;
+        this.batchSize = batchSize;
+        this.maxLatencyMillis = maxLatencyMillis;
+
+        //Replay the journal of the previous run, an entry that reached the database after the last checkpoint
+        //is skipped by its key
+        ArrayList<DiaryJournal.Entry> leftOver = DiaryJournal.read(journalPath);
+        for (int i = 0; i < leftOver.size(); i += batchSize) {
+            write(leftOver.subList(i, Math.min(i + batchSize, leftOver.size())));
+        }
+        DiaryJournal.delete(journalPath);
+        this.journal = new DiaryJournal(journalPath, DiaryJournal.DEFAULT_SEGMENT_BYTES);
+
+        this.flusher = new Thread(this::flushLoop, "diary-writer");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Logs that a quantity of a food was eaten in a meal
+     * Returns once the entry is in the journal on the disk, it reaches the database within about maxLatencyMillis
+     *
+     * @param date     the date of the meal
+     * @param type     the meal
+     * @param foodId   the ID of the food
+     * @param quantity the grams eaten
+     * @return the unique key of the entry
+     * @throws IOException if the journal can't be written
+     * @throws IllegalArgumentException if the date or the quantity can't be stored (see DiaryManager.checkEntry)
+     */
+    public UUID log(LocalDate date, Meal.Type type, int foodId, double quantity) throws IOException {
+        if (!running) {
+            throw new IllegalStateException("The diary writer is closed");
+        }
+        DiaryManager.checkEntry(date, quantity);
+        DiaryJournal.Entry entry = new DiaryJournal.Entry(UUID.randomUUID(), date, type, foodId, quantity);
+        long position = journal.append(entry, () -> {
+            appendedCount++;
+            pending.add(entry);
+        });
+        journal.sync(position);
+        return entry.key();
+    }
+
+    /**
+     * Writes every entry logged so far to the database without waiting for the batch to fill, and waits for it
+     * Gives up waiting after a timeout, e.g. while the database is unreachable the entries stay pending
+     *
+     * @param timeoutMillis the maximum time to wait, in milliseconds
+     * @return true if every entry logged before the call is in the database
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public boolean flush(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        long target = appendedCount;
+        if (flushedCount >= target) {
+            return true;
+        }
+        synchronized (flushMonitor) {
+            flushTarget = Math.max(flushTarget, target);
+        }
+        pending.add(WAKE_UP);
+        synchronized (flushMonitor) {
+            while (flushedCount < target && flusher.isAlive()) {
+                long wait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (wait <= 0) {
+                    break;
+                }
+                flushMonitor.wait(Math.min(wait, maxLatencyMillis + 1));
+            }
+        }
+        return flushedCount >= target;
+    }
+
+    /**
+     * Gets the amount of entries logged but not written to the database yet
+     *
+     * @return the amount of pending entries
+     */
+    public long getPendingCount() {
+        return appendedCount - flushedCount;
+    }
+
+    /**
+     * Writes the pending entries, stops the background thread and closes the journal
+     * Entries that could not be written stay in the journal and are written by the next DiaryWriter using it
+     *
+     * @throws IOException if the journal can't be closed
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        pending.add(WAKE_UP);
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        journal.close();
+    }
+
+    /**
+     * The loop of the background thread: collects batches of entries and writes them, until the writer is closed
+     * and every entry has been written
+     */
+    private void flushLoop() {
+        ArrayList<DiaryJournal.Entry> batch = new ArrayList<>(batchSize);
+        try {
+            while (running || !pending.isEmpty()) {
+                DiaryJournal.Entry first = pending.poll(maxLatencyMillis, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                if (first != WAKE_UP) {
+                    batch.add(first);
+                }
+
+                //Wait for more entries until the batch is full or the first entry has waited long enough
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxLatencyMillis);
+                while (batch.size() < batchSize) {
+                    if (!running || flushTarget > flushedCount) {
+                        //Someone is waiting, take what's already there without waiting for more
+                        DiaryJournal.Entry next;
+                        while (batch.size() < batchSize && (next = pending.poll()) != null) {
+                            if (next != WAKE_UP) {
+                                batch.add(next);
+                            }
+                        }
+                        break;
+                    }
+                    long wait = deadline - System.nanoTime();
+                    DiaryJournal.Entry next = wait > 0 ? pending.poll(wait, TimeUnit.NANOSECONDS) : null;
+                    if (next == null) {
+                        break;
+                    }
+                    if (next != WAKE_UP) {
+                        batch.add(next);
+                    }
+                }
+
+                if (!batch.isEmpty() && !writeWithRetry(batch)) {
+                    //Closing while the database is unreachable, the journal keeps the entries for the next run
+                    return;
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (flushMonitor) {
+                flushMonitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Writes a batch, retrying while the database is unreachable, then records it in the journal's checkpoint
+     *
+     * @param batch the batch
+     * @return true if the batch was written, false if the writer was closed before it could be
+     * @throws InterruptedException if the thread is interrupted while waiting to retry
+     */
+    private boolean writeWithRetry(List<DiaryJournal.Entry> batch) throws InterruptedException {
+        while (true) {
+            try {
+                write(batch);
+                break;
+            } catch (SQLException e) {
+                System.err.println("SQL Database error: " + e.getMessage());
+                if (!running) {
+                    return false;
+                }
+                Thread.sleep(Math.max(maxLatencyMillis, 100));
+            }
+        }
+
+        try {
+            //Checkpointed before flush() returns, so an entry removed after it can't be replayed
+            journal.release(flushedCount + batch.size());
+        } catch (IOException e) {
+            System.err.println("Journal error: " + e.getMessage());
+        }
+        flushedCount += batch.size();
+        synchronized (flushMonitor) {
+            flushMonitor.notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Writes entries to the database in a single transaction
+     * If an entry is rejected (e.g. its food does not exist, or its date is out of range), the entries are written
+     * one by one instead and the rejected ones are dropped, so one bad entry can't hold back the others.
+     * Entries that can't be stored at all (e.g. left in the journal by an older version) are dropped beforehand.
+     *
+     * @param entries the entries
+     * @throws SQLException if a database error is encountered
+     */
+    private void write(List<DiaryJournal.Entry> entries) throws SQLException {
+        ArrayList<DiaryJournal.Entry> valid = new ArrayList<>(entries.size());
+        for (DiaryJournal.Entry entry : entries) {
+            try {
+                DiaryManager.checkEntry(entry.date(), entry.quantity());
+                valid.add(entry);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Dropped diary entry " + entry.toLine() + ": " + e.getMessage());
+            }
+        }
+        if (valid.isEmpty()) {
+            return;
+        }
+
+        try {
+            insert(valid);
+        } catch (SQLException e) {
+            if (!isRejection(e)) {
+                throw e;
+            }
+            for (DiaryJournal.Entry entry : valid) {
+                try {
+                    insert(List.of(entry));
+                } catch (SQLException rejected) {
+                    if (!isRejection(rejected)) {
+                        throw rejected;
+                    }
+                    System.err.println("Dropped diary entry " + entry.toLine() + ": " + rejected.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks if a database error is caused by the data written, so writing the same entries again would fail again,
+     * rather than by the database being unreachable or busy
+     *
+     * @param e the database error
+     * @return true if the entries were rejected
+     */
+    private static boolean isRejection(SQLException e) {
+        String state = e.getSQLState();
+        return state != null && (state.startsWith(INTEGRITY_VIOLATION_CLASS) || state.startsWith(DATA_EXCEPTION_CLASS));
+    }
+
+    /**
+     * Inserts entries in a single transaction
+     *
+     * @param entries the entries
+     * @throws SQLException if a database error is encountered
+     */
+    private void insert(List<DiaryJournal.Entry> entries) throws SQLException {
+        ArrayList<LocalDate> dates = new ArrayList<>();
+        for (DiaryJournal.Entry entry : entries) {
+            dates.add(entry.date());
+        }
+        partitions.ensure(dates);
+
+        //Borrow a connection for this batch, closing it returns it to the pool
+        try (Connection conn = dbManager.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                BatchWriter.executeInTransaction(conn, DiaryManager.INSERT_ENTRY_SQL, entries, batchSize, (statement, entry) -> {
+                    statement.setObject(1, entry.key());
+                    statement.setObject(2, entry.date());
+                    statement.setString(3, entry.type().name());
+                    statement.setInt(4, entry.foodId());
+                    statement.setDouble(5, entry.quantity());
+                });
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+}
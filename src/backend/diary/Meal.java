@@ -1,15 +1,65 @@
 package backend.diary;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import backend.food.*;
 
+/**
+ * The Meal class represents one meal of a day and the foods eaten in it.
+ * The totals of the meal are kept in fixed point (see Macros), so adding and removing foods never makes them drift.
+ * <p>
+ * A meal can be changed by many threads at once (e.g. the same day open on a phone and on the web). Its entries and
+ * totals are an immutable Snapshot, and every change swaps in a new one with compare-and-set, retrying if another
+ * change got in first. No update is lost, readers never block writers, and the entries and totals of a snapshot
+ * always match.
+ *
+ * @author taconoodle
+ */
 public class Meal {
-    private ArrayList<Food> foods;
-
-    private double calories;
-    private double proteins;
-    private double carbs;
+    /**
+     * The foods eaten in the meal and their totals, replaced as a whole on every change
+     */
+    private final AtomicReference<Snapshot> state = new AtomicReference<>(Snapshot.EMPTY);
+
+    /**
+     * The state of a meal at one moment
+     *
+     * @param entries the foods eaten in the meal, each with its quantity and macros, unmodifiable
+     * @param macros  the total calories, proteins and carbs of the entries
+     */
+    public record Snapshot(List<MealEntry> entries, Macros macros) {
+        /**
+         * The snapshot of an empty meal
+         */
+        static final Snapshot EMPTY = new Snapshot(List.of(), Macros.ZERO);
+
+        /**
+         * Creates the snapshot with one more entry
+         *
+         * @param entry the entry
+         * @return the new snapshot
+         */
+        Snapshot plus(MealEntry entry) {
+            ArrayList<MealEntry> added = new ArrayList<>(entries.size() + 1);
+            added.addAll(entries);
+            added.add(entry);
+            return new Snapshot(List.copyOf(added), macros.plus(entry.macros()));
+        }
+
+        /**
+         * Creates the snapshot without an entry
+         *
+         * @param index the position of the entry
+         * @return the new snapshot
+         */
+        Snapshot minus(int index) {
+            ArrayList<MealEntry> removed = new ArrayList<>(entries);
+            MealEntry entry = removed.remove(index);
+            return new Snapshot(List.copyOf(removed), macros.minus(entry.macros()));
+        }
+    }
 
     public enum Type {
         BREAKFAST,
@@ -18,46 +68,76 @@ public class Meal {
         SNACKS
     }
 
-    private Type mealType;
+    private volatile Type mealType;
 
     public Meal(Type type) {
         this.mealType = type;
+    }
 
-        this.calories = 0;
-        this.proteins = 0;
-        this.carbs = 0;
+    /**
+     * Gets the entries and the totals of the meal at this moment, which always match each other
+     *
+     * @return the snapshot, later changes to the meal don't change it
+     */
+    public Snapshot snapshot() {
+        return state.get();
     }
 
+    /**
+     * Gets the foods eaten in the meal
+     *
+     * @return a new ArrayList containing the foods, changing it doesn't change the meal
+     */
     public ArrayList<Food> getFoods() {
+        List<MealEntry> entries = state.get().entries();
+        ArrayList<Food> foods = new ArrayList<>(entries.size());
+        for (MealEntry entry : entries) {
+            foods.add(entry.food());
+        }
         return foods;
     }
 
+    /**
+     * Replaces the foods eaten in the meal, a serving of each, along with the totals
+     *
+     * @param foods the new foods
+     */
     public void setFoods(ArrayList<Food> foods) {
-        this.foods = foods;
+        Snapshot replaced = Snapshot.EMPTY;
+        for (Food food : foods) {
+            replaced = replaced.plus(MealEntry.of(food));
+        }
+        state.set(replaced);
     }
 
-    public double getCalories() {
-        return calories;
+    /**
+     * Gets the entries of the meal: the foods eaten, with their quantities
+     *
+     * @return a new ArrayList containing the entries, changing it doesn't change the meal
+     */
+    public ArrayList<MealEntry> getEntries() {
+        return new ArrayList<>(state.get().entries());
     }
 
-    public void setCalories(float calories) {
-        this.calories = calories;
+    /**
+     * Gets the total calories, proteins and carbs of the meal
+     *
+     * @return the macros
+     */
+    public Macros getMacros() {
+        return state.get().macros();
     }
 
-    public double getProteins() {
-        return proteins;
+    public double getCalories() {
+        return getMacros().getCalories();
     }
 
-    public void setProteins(float proteins) {
-        this.proteins = proteins;
+    public double getProteins() {
+        return getMacros().getProteins();
     }
 
     public double getCarbs() {
-        return carbs;
-    }
-
-    public void setCarbs(float carbs) {
-        this.carbs = carbs;
+        return getMacros().getCarbs();
     }
 
     public Type getMealType() {
@@ -68,15 +148,57 @@ public class Meal {
         this.mealType = mealType;
     }
 
+    /**
+     * Adds a serving of a food to the meal (the quantity its macros are given for) and its macros to the totals
+     *
+     * @param food the food
+     */
     public void addFood(Food food) {
-        foods.add(food);
+        addEntry(MealEntry.of(food));
+    }
+
+    /**
+     * Adds a quantity of a food to the meal and its macros to the totals
+     *
+     * @param food     the food
+     * @param quantity the grams of the food
+     */
+    public void addFood(Food food, double quantity) {
+        addEntry(MealEntry.of(food, quantity));
+    }
 
-        this.calories += food.getCalories();
-        this.proteins += food.getProteins();
-        this.carbs += food.getCarbs();
+    /**
+     * Adds an entry to the meal and its macros to the totals
+     *
+     * @param entry the entry
+     */
+    public void addEntry(MealEntry entry) {
+        state.updateAndGet(current -> current.plus(entry));
     }
 
-    public void removeFood(Food food) {
-        foods.remove(food);
+    /**
+     * Removes the first entry of a food from the meal and subtracts the macros it had when it was added
+     *
+     * @param food the food
+     * @return true if the food was in the meal
+     */
+    public boolean removeFood(Food food) {
+        while (true) {
+            Snapshot current = state.get();
+            int index = -1;
+            for (int i = 0; i < current.entries().size(); i++) {
+                if (current.entries().get(i).food().equals(food)) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index == -1) {
+                return false;
+            }
+            //Retry if another change got in since the snapshot was read
+            if (state.compareAndSet(current, current.minus(index))) {
+                return true;
+            }
+        }
     }
 }
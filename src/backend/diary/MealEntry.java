@@ -0,0 +1,36 @@
+package backend.diary;
+
+import backend.food.Food;
+import backend.food.Macros;
+
+/**
+ * The MealEntry record is a food eaten in a meal, along with how much of it was eaten.
+ * The macros of the entry are calculated once, when it's created, so changing the Food later has no effect on it.
+ *
+ * @param food     the food
+ * @param quantity the grams of the food eaten
+ * @param macros   the macros of the eaten quantity
+ * @author taconoodle
+ */
+public record MealEntry(Food food, double quantity, Macros macros) {
+    /**
+     * Creates the entry of a quantity of a food
+     *
+     * @param food     the food
+     * @param quantity the grams of the food eaten
+     * @return the entry
+     */
+    public static MealEntry of(Food food, double quantity) {
+        return new MealEntry(food, quantity, food.getMacros().scale(Macros.toMilli(quantity)));
+    }
+
+    /**
+     * Creates the entry of a serving of a food, the quantity its macros are given for
+     *
+     * @param food the food
+     * @return the entry
+     */
+    public static MealEntry of(Food food) {
+        return new MealEntry(food, Macros.fromMilli(Macros.MILLI_QUANTITY_BASE), food.getMacros());
+    }
+}
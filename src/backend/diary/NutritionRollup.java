@@ -0,0 +1,92 @@
+package backend.diary;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.temporal.TemporalAdjusters;
+
+/**
+ * The NutritionRollup record is the total nutrition of the diary entries of one bucket of time: a day, an ISO week
+ * (Monday to Sunday) or a month.
+ *
+ * @param granularity the kind of bucket
+ * @param start       the first date of the bucket
+ * @param calories    the total calories
+ * @param proteins    the total proteins
+ * @param carbs       the total carbs
+ * @param entryCount  the amount of diary entries in the bucket
+ * @author taconoodle
+ */
+public record NutritionRollup(Granularity granularity, LocalDate start, double calories, double proteins,
+                              double carbs, int entryCount) {
+    /**
+     * The kinds of buckets the totals are kept for
+     */
+    public enum Granularity {
+        DAY("entry_date"),
+        WEEK("date_trunc('week', entry_date)::date"),
+        MONTH("date_trunc('month', entry_date)::date");
+
+        /**
+         * The SQL expression giving the first date of the bucket of a DiaryEntries row
+         */
+        private final String bucketExpression;
+
+        /**
+         * Default constructor
+         *
+         * @param bucketExpression the SQL expression giving the first date of the bucket of a DiaryEntries row
+         */
+        Granularity(String bucketExpression) {
+            this.bucketExpression = bucketExpression;
+        }
+
+        /**
+         * Gets the SQL expression giving the first date of the bucket of a DiaryEntries row
+         *
+         * @param alias the alias of the DiaryEntries table, or null if it has none
+         * @return the expression
+         */
+        String getBucketExpression(String alias) {
+            return alias == null ? bucketExpression : bucketExpression.replace("entry_date", alias + ".entry_date");
+        }
+
+        /**
+         * Gets the first date of the bucket containing a date
+         *
+         * @param date the date
+         * @return the first date of the bucket
+         */
+        public LocalDate startOf(LocalDate date) {
+            return switch (this) {
+                case DAY -> date;
+                case WEEK -> date.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+                case MONTH -> date.withDayOfMonth(1);
+            };
+        }
+
+        /**
+         * Gets the last date of the bucket containing a date
+         *
+         * @param date the date
+         * @return the last date of the bucket
+         */
+        public LocalDate endOf(LocalDate date) {
+            return switch (this) {
+                case DAY -> date;
+                case WEEK -> date.with(TemporalAdjusters.nextOrSame(DayOfWeek.SUNDAY));
+                case MONTH -> date.with(TemporalAdjusters.lastDayOfMonth());
+            };
+        }
+    }
+
+    /**
+     * Creates a string containing the rollup's info
+     *
+     * @return the info string
+     */
+    @Override
+    public String toString() {
+        return String.format("%s %s | calories %.2f | proteins %.2f | carbs %.2f | entries %d",
+                granularity, start, calories, proteins, carbs, entryCount);
+    }
+}
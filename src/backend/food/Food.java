@@ -24,19 +24,9 @@ public class Food {
     private String description;
 
     /**
-     * Amount of calories in food
+     * Amounts of calories, proteins and carbs in food, in fixed point
      */
-    private double calories;
-
-    /**
-     * Amount of proteins in food
-     */
-    private double proteins;
-
-    /**
-     * Amount of carbs in food
-     */
-    private double carbs;
+    private Macros macros;
 
     /**
      * Default constructor
@@ -54,9 +44,7 @@ public class Food {
 
         this.id = id;
 
-        this.calories = calories;
-        this.proteins = proteins;
-        this.carbs = carbs;
+        this.macros = Macros.of(calories, proteins, carbs);
     }
 
     /**
@@ -104,13 +92,31 @@ public class Food {
         this.brand = brand;
     }
 
+    /**
+     * Gets the food's calories, proteins and carbs
+     *
+     * @return the macros
+     */
+    public Macros getMacros() {
+        return macros;
+    }
+
+    /**
+     * Changes the food's calories, proteins and carbs
+     *
+     * @param macros the new macros
+     */
+    public void setMacros(Macros macros) {
+        this.macros = macros;
+    }
+
     /**
      * Gets the food's calories
      *
      * @return the amount of calories
      */
     public double getCalories() {
-        return this.calories;
+        return this.getMacros().getCalories();
     }
 
     /**
@@ -119,7 +125,7 @@ public class Food {
      * @param calories the new amount of calories
      */
     public void setCalories(double calories) {
-        this.calories = calories;
+        this.macros = new Macros(Macros.toMilli(calories), macros.milliProteins(), macros.milliCarbs());
     }
 
     /**
@@ -128,7 +134,7 @@ public class Food {
      * @return the amount of proteins
      */
     public double getProteins() {
-        return proteins;
+        return this.getMacros().getProteins();
     }
 
     /**
@@ -137,7 +143,7 @@ public class Food {
      * @param proteins the new amount of proteins
      */
     public void setProteins(double proteins) {
-        this.proteins = proteins;
+        this.macros = new Macros(macros.milliCalories(), Macros.toMilli(proteins), macros.milliCarbs());
     }
 
     /**
@@ -146,7 +152,7 @@ public class Food {
      * @return the amount of carbs
      */
     public double getCarbs() {
-        return carbs;
+        return this.getMacros().getCarbs();
     }
 
     /**
@@ -155,7 +161,18 @@ public class Food {
      * @param carbs the new amount of carbs
      */
     public void setCarbs(double carbs) {
-        this.carbs = carbs;
+        this.macros = new Macros(macros.milliCalories(), macros.milliProteins(), Macros.toMilli(carbs));
+    }
+
+    /**
+     * Creates a copy of the food, with the same ID, names and macros
+     *
+     * @return the copy
+     */
+    public Food copy() {
+        Food copy = new Food(id, brand, description, 0, 0, 0);
+        copy.setMacros(macros);
+        return copy;
     }
 
     /**
@@ -0,0 +1,228 @@
+package backend.food;
+
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The FoodCache class keeps recently used foods in memory, so the most popular ones are not queried over and over.
+ * It's a read-through cache: a missing food is loaded from the database and kept for the next lookups.
+ * <p>
+ * The cache holds at most maxEntries foods and evicts the least recently used one when it's full.
+ * Entries can also expire after a time-to-live, which bounds how stale a food changed by someone else can get.
+ * The cache keeps its own copies of the foods and hands out copies, so callers may modify the foods they get.
+ *
+ * @author taconoodle
+ */
+public class FoodCache {
+    /**
+     * Loads a food from the database on a cache miss
+     */
+    @FunctionalInterface
+    public interface Loader {
+        /**
+         * Loads a food
+         *
+         * @param foodId the ID of the food
+         * @return the food, or null if it does not exist
+         * @throws SQLException if a database error is encountered
+         */
+        Food load(int foodId) throws SQLException;
+    }
+
+    /**
+     * The maximum amount of foods kept
+     */
+    private final int maxEntries;
+
+    /**
+     * How long a food stays valid in milliseconds, 0 for no expiration
+     */
+    private final long ttlMillis;
+
+    /**
+     * The cached foods, ordered from the least to the most recently used
+     */
+    private final LinkedHashMap<Integer, Entry> entries;
+
+    /**
+     * Increased on every invalidation, so a load that raced with an invalidation does not cache a stale food
+     * Guarded by the lock of entries
+     */
+    private long invalidations = 0;
+
+    //Counters reported by getStatistics()
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong totalLoadNanos = new AtomicLong();
+
+    /**
+     * Default constructor
+     *
+     * @param maxEntries the maximum amount of foods kept
+     * @param ttlMillis  how long a food stays valid in milliseconds, 0 for no expiration
+     */
+    public FoodCache(int maxEntries, long ttlMillis) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Cache size must be positive: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+                if (size() <= FoodCache.this.maxEntries) {
+                    return false;
+                }
+                evictions.incrementAndGet();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Gets a food, loading it from the database if it's not cached
+     * The database is queried without holding the cache's lock, so a slow load never blocks other lookups
+     *
+     * @param foodId the ID of the food
+     * @param loader loads the food on a cache miss
+     * @return the food, or null if it does not exist
+     * @throws SQLException if a database error is encountered
+     */
+    public Food get(int foodId, Loader loader) throws SQLException {
+        long invalidationsBeforeLoad;
+        synchronized (entries) {
+            invalidationsBeforeLoad = invalidations;
+            Entry entry = entries.get(foodId);
+            if (entry != null) {
+                if (ttlMillis == 0 || System.currentTimeMillis() < entry.expiresAtMillis()) {
+                    hits.incrementAndGet();
+                    return entry.food().copy();
+                }
+                entries.remove(foodId);
+                expirations.incrementAndGet();
+            }
+        }
+        misses.incrementAndGet();
+
+        long start = System.nanoTime();
+        Food food = loader.load(foodId);
+        loads.incrementAndGet();
+        totalLoadNanos.addAndGet(System.nanoTime() - start);
+
+        //Foods that don't exist are not cached, they could be added any moment
+        if (food != null) {
+            synchronized (entries) {
+                if (invalidations == invalidationsBeforeLoad) {
+                    entries.put(foodId, new Entry(food.copy(), expiresAt()));
+                }
+            }
+        }
+        return food;
+    }
+
+    /**
+     * Puts a copy of a food in the cache, replacing the previous version if there was any
+     *
+     * @param food the food
+     */
+    public void put(Food food) {
+        synchronized (entries) {
+            entries.put(food.getId(), new Entry(food.copy(), expiresAt()));
+        }
+    }
+
+    /**
+     * Removes a food from the cache, so the next lookup loads it from the database again
+     *
+     * @param foodId the ID of the food
+     */
+    public void invalidate(int foodId) {
+        synchronized (entries) {
+            entries.remove(foodId);
+            invalidations++;
+        }
+    }
+
+    /**
+     * Removes every food from the cache
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            invalidations++;
+        }
+    }
+
+    /**
+     * Calculates when an entry created now stops being valid
+     *
+     * @return the expiration moment in milliseconds
+     */
+    private long expiresAt() {
+        return ttlMillis == 0 ? Long.MAX_VALUE : System.currentTimeMillis() + ttlMillis;
+    }
+
+    /**
+     * Gets a snapshot of the cache's usage
+     *
+     * @return the cache statistics
+     */
+    public Statistics getStatistics() {
+        int size;
+        synchronized (entries) {
+            size = entries.size();
+        }
+        long loadCount = loads.get();
+        return new Statistics(size, hits.get(), misses.get(), evictions.get(), expirations.get(),
+                loadCount == 0 ? 0 : totalLoadNanos.get() / loadCount / 1_000_000.0);
+    }
+
+    /**
+     * A cached food
+     *
+     * @param food            the food
+     * @param expiresAtMillis the moment the food stops being valid
+     */
+    private record Entry(Food food, long expiresAtMillis) {
+    }
+
+    /**
+     * A snapshot of the cache's usage
+     *
+     * @param size              the amount of foods currently cached
+     * @param hits              the amount of lookups answered by the cache
+     * @param misses            the amount of lookups that went to the database
+     * @param evictions         the amount of foods evicted to make room for others
+     * @param expirations       the amount of foods dropped because their time-to-live passed
+     * @param averageLoadMillis the average time a database load took
+     */
+    public record Statistics(int size, long hits, long misses, long evictions, long expirations,
+                             double averageLoadMillis) {
+        /**
+         * Calculates the share of lookups answered by the cache
+         *
+         * @return the hit ratio, between 0 and 1
+         */
+        public double hitRatio() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+
+        /**
+         * Creates a string containing the statistics
+         *
+         * @return the info string
+         */
+        @Override
+        public String toString() {
+            return String.format("size %d | hits %d | misses %d | hit ratio %.2f | evictions %d | " +
+                            "expirations %d | avg load %.3f ms",
+                    size, hits, misses, hitRatio(), evictions, expirations, averageLoadMillis);
+        }
+    }
+}
@@ -1,7 +1,26 @@
 package backend.food;
 
+import backend.database.BatchWriter;
+import backend.database.CursorStream;
+import backend.database.DatabaseManager;
+import backend.database.UncheckedSQLException;
+
+import java.math.BigDecimal;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
+import java.util.stream.Stream;
 
 /**
  * The RecipeManager class manages the Recipes both in the backend and in the database while acting as a bridge among them
@@ -10,18 +29,305 @@ import java.util.ArrayList;
  */
 public class FoodManager {
     /**
-     * A database connection
-     * The FoodManager instance will use this connection as its main database connection for its methods
+     * The text fuzzy searches compare against, the same expression as the trigram index of the Food table
+     */
+    private static final String NAME_EXPRESSION = "lower(coalesce(brand, '') || ' ' || coalesce(description, ''))";
+
+    /**
+     * The database manager
+     * The FoodManager instance borrows a pooled connection from it for each of its methods
+     */
+    private final DatabaseManager dbManager;
+
+    /**
+     * The amount of rows the batch methods send to the database at once
      */
-    private Connection conn;
+    private int batchSize = BatchWriter.DEFAULT_BATCH_SIZE;
+
+    /**
+     * The amount of rows the streaming methods fetch from the database at a time
+     */
+    private int fetchSize = CursorStream.DEFAULT_FETCH_SIZE;
+
+    /**
+     * The cache of the foods looked up by ID, or null if caching is disabled
+     */
+    private volatile FoodCache cache = null;
+
+    /**
+     * The in-memory index answering the range methods (getFoodUnderCals etc.), or null if they query the database
+     */
+    private volatile NutrientIndex nutrientIndex = null;
+
+    /**
+     * The in-memory k-d tree answering the NutrientRange methods, or null if they query the database
+     */
+    private volatile NutrientTree nutrientTree = null;
+
+    /**
+     * The in-memory index answering searchFoods, or null if it queries the database
+     */
+    private volatile FoodNameIndex nameIndex = null;
+
+    /**
+     * How similar (between 0 and 1) a food name must be to the search text to be returned by fuzzySearchFoods
+     */
+    private double fuzzyThreshold = 0.5;
+
+    /**
+     * The amount of threads updating recipe totals in parallel after food nutrients changed
+     */
+    private int propagationThreads = 4;
+
+    /**
+     * Runs the parallel recipe updates of updateFoodNutrients
+     * Its threads are reused between calls and end after a minute without work
+     */
+    private final ExecutorService propagationExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "food-propagation-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Notified with the ID of every food whose nutrients were changed through this FoodManager
+     */
+    private final CopyOnWriteArrayList<IntConsumer> foodListeners = new CopyOnWriteArrayList<>();
 
     /**
      * Default constructor
      *
-     * @param conn the main database connection
+     * @param dbManager the database manager the connections are borrowed from
+     */
+    public FoodManager(DatabaseManager dbManager) {
+        this.dbManager = dbManager;
+    }
+
+    /**
+     * Changes the amount of rows the batch methods (addFoods, deleteFoods) send to the database at once
+     *
+     * @param batchSize the new batch size
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Changes the amount of rows the streaming methods (streamFoodUnderCals etc.) fetch from the database at a time
+     *
+     * @param fetchSize the new fetch size
+     */
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * Enables caching of the foods looked up by ID (getFood), replacing the previous cache if there was any
+     * The foods added or deleted through this FoodManager are kept up to date in the cache. Changes made by anyone
+     * else (another instance, an import) are only picked up after the time-to-live passes or clearCache() is called.
+     *
+     * @param maxEntries the maximum amount of foods kept
+     * @param ttlMillis  how long a food stays cached in milliseconds, 0 for no expiration
+     */
+    public void enableCache(int maxEntries, long ttlMillis) {
+        this.cache = new FoodCache(maxEntries, ttlMillis);
+    }
+
+    /**
+     * Disables caching, every lookup goes to the database again
      */
-    public FoodManager(Connection conn) {
-        this.conn = conn;
+    public void disableCache() {
+        this.cache = null;
+    }
+
+    /**
+     * Removes every food from the cache, e.g. after the Food table was changed by an import
+     */
+    public void clearCache() {
+        FoodCache currentCache = cache;
+        if (currentCache != null) {
+            currentCache.clear();
+        }
+    }
+
+    /**
+     * Gets a snapshot of the cache's usage
+     *
+     * @return the cache statistics, or null if caching is disabled
+     */
+    public FoodCache.Statistics getCacheStatistics() {
+        FoodCache currentCache = cache;
+        return currentCache == null ? null : currentCache.getStatistics();
+    }
+
+    /**
+     * Registers a listener notified with the ID of every food whose nutrients are changed by updateFoodNutrients,
+     * after the recipes using it were updated, e.g. RecipeManager::foodChanged
+     *
+     * @param listener the listener
+     */
+    public void addFoodListener(IntConsumer listener) {
+        foodListeners.add(listener);
+    }
+
+    /**
+     * Changes the amount of threads updateFoodNutrients uses to update the recipes, each holding a pooled connection
+     * on top of the one holding the foods, so the pool must allow at least one more connection than this
+     *
+     * @param propagationThreads the new amount of threads
+     */
+    public void setPropagationThreads(int propagationThreads) {
+        this.propagationThreads = propagationThreads;
+    }
+
+    /**
+     * Changes how similar (between 0 and 1) a food name must be to the search text to be returned by fuzzySearchFoods
+     * Lower values tolerate more typos but return more unrelated foods
+     *
+     * @param fuzzyThreshold the new threshold
+     */
+    public void setFuzzyThreshold(double fuzzyThreshold) {
+        this.fuzzyThreshold = fuzzyThreshold;
+    }
+
+    /**
+     * Loads the whole catalog into an in-memory index, so the range methods (getFoodUnderCals etc.) are answered
+     * without querying the database. Calling it again rebuilds the index, which is needed after the Food table
+     * was changed by anyone other than this FoodManager (another instance, an import).
+     *
+     * @return true if successful
+     * @throws SQLException if a database error is encountered
+     */
+    public boolean enableNutrientIndex() throws SQLException {
+        try (Stream<Food> catalog = streamFoods(new FoodQuery())) {
+            if (catalog == null) {
+                return false;
+            }
+            this.nutrientIndex = new NutrientIndex(catalog.toList());
+            return true;
+        } catch (UncheckedSQLException e) {
+            System.err.println("SQL Database error: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Drops the in-memory index, the range methods query the database again
+     */
+    public void disableNutrientIndex() {
+        this.nutrientIndex = null;
+    }
+
+    /**
+     * Loads the whole catalog into an in-memory k-d tree, so the NutrientRange methods (findFoods, countFoods) are
+     * answered without querying the database. Calling it again rebuilds the tree in parallel from a fresh copy of the
+     * catalog, which is needed after the Food table was changed by anyone other than this FoodManager.
+     * The tree can't be updated, so adding or deleting foods through this FoodManager drops it until it's reloaded.
+     *
+     * @return true if successful
+     * @throws SQLException if a database error is encountered
+     */
+    public boolean enableNutrientTree() throws SQLException {
+        try (Stream<Food> catalog = streamFoods(new FoodQuery())) {
+            if (catalog == null) {
+                return false;
+            }
+            this.nutrientTree = new NutrientTree(catalog.toList());
+            return true;
+        } catch (UncheckedSQLException e) {
+            System.err.println("SQL Database error: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Drops the in-memory k-d tree, the NutrientRange methods query the database again
+     */
+    public void disableNutrientTree() {
+        this.nutrientTree = null;
+    }
+
+    /**
+     * Loads the brand and description of the whole catalog into an in-memory index, so searchFoods answers
+     * type-ahead searches without querying the database. Calling it again rebuilds the index, which is needed after
+     * the Food table was changed by anyone other than this FoodManager (another instance, an import).
+     *
+     * @return true if successful
+     * @throws SQLException if a database error is encountered
+     */
+    public boolean enableNameIndex() throws SQLException {
+        try (Stream<Food> catalog = streamFoods(new FoodQuery())) {
+            if (catalog == null) {
+                return false;
+            }
+            this.nameIndex = new FoodNameIndex(catalog.toList());
+            return true;
+        } catch (UncheckedSQLException e) {
+            System.err.println("SQL Database error: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Drops the in-memory name index, searchFoods queries the database again
+     */
+    public void disableNameIndex() {
+        this.nameIndex = null;
+    }
+
+    /**
+     * Updates the in-memory copies of the catalog after a food was added or changed
+     *
+     * @param food the added food, or the new version of a changed one
+     */
+    private void foodAdded(Food food) {
+        FoodCache currentCache = cache;
+        if (currentCache != null) {
+            currentCache.invalidate(food.getId());
+        }
+        NutrientIndex index = nutrientIndex;
+        if (index != null) {
+            index.add(food);
+        }
+        FoodNameIndex names = nameIndex;
+        if (names != null) {
+            names.add(food);
+        }
+        //The k-d tree can't be updated, the NutrientRange methods go to the database until it's reloaded
+        nutrientTree = null;
+    }
+
+    /**
+     * Updates the in-memory copies of the catalog (cache and indexes) with foods written by someone else, e.g. an import
+     * Nutrient changes of existing foods must go through updateFoodNutrients, so the recipes using them follow
+     *
+     * @param foods the foods as they are stored in the database
+     */
+    public void refreshFoods(Collection<Food> foods) {
+        for (Food food : foods) {
+            foodAdded(food);
+        }
+    }
+
+    /**
+     * Updates the in-memory copies of the catalog after a food was deleted
+     *
+     * @param foodId the ID of the deleted food
+     */
+    private void foodDeleted(int foodId) {
+        FoodCache currentCache = cache;
+        if (currentCache != null) {
+            currentCache.invalidate(foodId);
+        }
+        NutrientIndex index = nutrientIndex;
+        if (index != null) {
+            index.remove(foodId);
+        }
+        FoodNameIndex names = nameIndex;
+        if (names != null) {
+            names.remove(foodId);
+        }
+        nutrientTree = null;
     }
 
     /**
@@ -50,12 +356,13 @@ public class FoodManager {
      * @throws SQLException if a database error is encountered
      */
     public boolean addFood(Food newFood) throws SQLException {
-        PreparedStatement statement = null;
-        try {
-            //SQL code that inserts the given Food object in the database
-            String sql = "INSERT INTO Food (id, brand, description, calories, protein, carbs) " +
-                    "VALUES (?, ?, ?, ?, ?, ?)";
-            statement = conn.prepareStatement(sql);
+        //SQL code that inserts the given Food object in the database
+        String sql = "INSERT INTO Food (id, brand, description, calories, protein, carbs) " +
+                "VALUES (?, ?, ?, ?, ?, ?)";
+
+        //Borrow a connection for this operation, closing it returns it to the pool
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement statement = conn.prepareStatement(sql)) {
             statement.setInt(1, newFood.getId());
             statement.setString(2, newFood.getBrand());
             statement.setString(3, newFood.getDescription());
@@ -63,29 +370,79 @@ public class FoodManager {
             statement.setDouble(5, newFood.getProteins());
             statement.setDouble(6, newFood.getCarbs());
             statement.executeUpdate();
+            foodAdded(newFood);
             return true;
         } catch (SQLException e) {
             System.err.println("SQL Database error: " + e.getMessage());
             return false;
-        } finally {
-            statement.close();
+        }
+    }
+
+    /**
+     * Insert many new foods in the database using batched inserts
+     *
+     * @param newFoods the foods to insert
+     * @return one outcome per food, in the collection's iteration order: true if the food was inserted,
+     *         or null if the whole operation failed
+     * @throws SQLException if a database error is encountered
+     */
+    public boolean[] addFoods(Collection<Food> newFoods) throws SQLException {
+        String sql = "INSERT INTO Food (id, brand, description, calories, protein, carbs) " +
+                "VALUES (?, ?, ?, ?, ?, ?)";
+
+        try (Connection conn = dbManager.getConnection()) {
+            ArrayList<Food> foods = new ArrayList<>(newFoods);
+            boolean[] outcomes = BatchWriter.executeBatch(conn, sql, foods, batchSize, (statement, food) -> {
+                statement.setInt(1, food.getId());
+                statement.setString(2, food.getBrand());
+                statement.setString(3, food.getDescription());
+                statement.setDouble(4, food.getCalories());
+                statement.setDouble(5, food.getProteins());
+                statement.setDouble(6, food.getCarbs());
+            });
+            for (int i = 0; i < outcomes.length; i++) {
+                if (outcomes[i]) {
+                    foodAdded(foods.get(i));
+                }
+            }
+            return outcomes;
+        } catch (SQLException e) {
+            System.err.println("SQL Database error: " + e.getMessage());
+            return null;
         }
     }
 
     /**
      * Queries the database for the requested food
+     * If caching is enabled, the food is served from the cache when possible
      *
      * @param foodId the ID of the requested food
      * @return the requested food
      * @throws SQLException if a database error is encountered
      */
     public Food getFood(int foodId) throws SQLException {
-        PreparedStatement statement = null;
-        try {
-            //SQL code that gets the food with the given ID from the database
-            String sql = "SELECT * FROM Food f " +
-                    "WHERE f.id = ?";
-            statement = conn.prepareStatement(sql);
+        FoodCache currentCache = cache;
+        if (currentCache == null) {
+            return loadFood(foodId);
+        }
+        return currentCache.get(foodId, this::loadFood);
+    }
+
+    /**
+     * Queries the database for the requested food, bypassing the cache
+     *
+     * @param foodId the ID of the requested food
+     * @return the requested food
+     * @throws SQLException if a database error is encountered
+     */
+    private Food loadFood(int foodId) throws SQLException {
+        //SQL code that gets the food with the given ID from the database
+        String sql = "SELECT * FROM Food f " +
+                "WHERE f.id = ?";
+
+        //Borrow a connection for this operation, closing it returns it to the pool
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement statement = conn.prepareStatement(sql)) {
             statement.setInt(1, foodId);
             ResultSet rs = statement.executeQuery();
 
@@ -97,9 +454,6 @@ public class FoodManager {
         } catch (SQLException e) {
             System.err.println("SQL Database error: " + e.getMessage());
             return null;
-        } finally {
-            //CLOSE THE STATEMENT (avoid leakages)
-            statement.close();
         }
     }
 
@@ -111,23 +465,309 @@ public class FoodManager {
      * @throws SQLException if a database error is encountered
      */
     public boolean deleteFood(int foodId) throws SQLException {
-        PreparedStatement statement = null;
-        try {
-            //SQL code that inserts the given Food object in the database
-            String sql = "DELETE FROM Food " +
-                    "WHERE id = ?";
-            statement = conn.prepareStatement(sql);
+        //SQL code that inserts the given Food object in the database
+        String sql = "DELETE FROM Food " +
+                "WHERE id = ?";
+
+        //Borrow a connection for this operation, closing it returns it to the pool
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement statement = conn.prepareStatement(sql)) {
             statement.setInt(1, foodId);
             statement.executeUpdate();
+            foodDeleted(foodId);
             return true;
         } catch (SQLException e) {
             System.err.println("SQL Database error: " + e.getMessage());
             return false;
-        } finally {
-            statement.close();
         }
     }
 
+    /**
+     * Deletes many food records from the database using batched deletes
+     *
+     * @param foodIds the IDs of the foods to delete
+     * @return one outcome per ID, in the same order: true if the food existed and was deleted,
+     *         or null if the whole operation failed
+     * @throws SQLException if a database error is encountered
+     */
+    public boolean[] deleteFoods(int[] foodIds) throws SQLException {
+        String sql = "DELETE FROM Food " +
+                "WHERE id = ?";
+
+        List<Integer> ids = new ArrayList<>(foodIds.length);
+        for (int foodId : foodIds) {
+            ids.add(foodId);
+        }
+
+        try (Connection conn = dbManager.getConnection()) {
+            boolean[] outcomes = BatchWriter.executeBatch(conn, sql, ids, batchSize,
+                    (statement, foodId) -> statement.setInt(1, foodId));
+            for (int i = 0; i < outcomes.length; i++) {
+                if (outcomes[i]) {
+                    foodDeleted(foodIds[i]);
+                }
+            }
+            return outcomes;
+        } catch (SQLException e) {
+            System.err.println("SQL Database error: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Corrects the nutrients of a food and updates the totals of the recipes using it
+     *
+     * @param food the food with its corrected nutrients, its brand and description are not changed
+     * @return the amount of recipes updated, or -1 if a database error is encountered
+     * @throws SQLException if a database error is encountered
+     */
+    public int updateFoodNutrients(Food food) throws SQLException {
+        return updateFoodNutrients(List.of(food));
+    }
+
+    /**
+     * Corrects the nutrients of many foods and updates the totals of the recipes using them
+     * <p>
+     * The foods are updated in one transaction, which also finds the recipes that use them through the
+     * Ingredients' food_id index and sums up the change of each recipe's totals. Only those recipes are updated,
+     * split in disjoint batches that are written in parallel, so correcting a large part of the catalog doesn't
+     * recompute every recipe.
+     * <p>
+     * The foods stay locked until the recipe updates are committed, and the foods are only committed after them,
+     * so no ingredient can be added with the old nutrients in between (the ingredient writes lock the foods they
+     * read) and a failed recipe update rolls the foods back too. Only a failure while committing can leave some
+     * totals changed without their foods, which repairRecipeTotals() brings back in line.
+     *
+     * @param foods the foods with their corrected nutrients, their brands and descriptions are not changed
+     * @return the amount of recipes updated, or -1 if a database error is encountered
+     * @throws SQLException if a database error is encountered
+     */
+    public int updateFoodNutrients(Collection<Food> foods) throws SQLException {
+        HashMap<Integer, Food> corrections = new HashMap<>();
+        for (Food food : foods) {
+            corrections.put(food.getId(), food);
+        }
+
+        ArrayList<Food> changedFoods = new ArrayList<>();
+        TreeMap<Integer, BigDecimal[]> recipeDeltas;
+        int updated;
+        //Borrow a connection for this operation, closing it returns it to the pool
+        try (Connection conn = dbManager.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                //Lock the foods and find how much each nutrient changes
+                HashMap<Integer, BigDecimal[]> foodDeltas = new HashMap<>();
+                try (PreparedStatement statement = conn.prepareStatement(
+                        "SELECT * FROM Food WHERE id = ANY(?) FOR UPDATE")) {
+                    statement.setArray(1, conn.createArrayOf("integer", corrections.keySet().toArray()));
+                    ResultSet rs = statement.executeQuery();
+                    while (rs.next()) {
+                        Food stored = rowToFood(rs);
+                        Food corrected = corrections.get(stored.getId());
+                        BigDecimal[] delta = new BigDecimal[Nutrient.values().length];
+                        boolean changed = false;
+                        for (Nutrient nutrient : Nutrient.values()) {
+                            delta[nutrient.ordinal()] = BigDecimal.valueOf(nutrient.of(corrected))
+                                    .subtract(rs.getBigDecimal(nutrient.getColumn()));
+                            changed |= delta[nutrient.ordinal()].signum() != 0;
+                        }
+                        if (changed) {
+                            foodDeltas.put(stored.getId(), delta);
+                            changedFoods.add(new Food(stored.getId(), stored.getBrand(), stored.getDescription(),
+                                    corrected.getCalories(), corrected.getProteins(), corrected.getCarbs()));
+                        }
+                    }
+                }
+
+                BatchWriter.executeInTransaction(conn, "UPDATE Food SET calories = ?, protein = ?, carbs = ? WHERE id = ?",
+                        changedFoods, batchSize, (statement, food) -> {
+                            statement.setBigDecimal(1, BigDecimal.valueOf(food.getCalories()));
+                            statement.setBigDecimal(2, BigDecimal.valueOf(food.getProteins()));
+                            statement.setBigDecimal(3, BigDecimal.valueOf(food.getCarbs()));
+                            statement.setInt(4, food.getId());
+                        });
+                recipeDeltas = getRecipeDeltas(conn, foodDeltas);
+                updated = applyRecipeDeltas(recipeDeltas);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            System.err.println("SQL Database error: " + e.getMessage());
+            return -1;
+        }
+
+        for (Food food : changedFoods) {
+            foodAdded(food);
+        }
+        for (Food food : changedFoods) {
+            for (IntConsumer listener : foodListeners) {
+                listener.accept(food.getId());
+            }
+        }
+        return updated;
+    }
+
+    /**
+     * Sums up how much the totals of each recipe change when the nutrients of some foods change
+     * Only the recipes using the foods are read, through the Ingredients' food_id index
+     *
+     * @param conn       the connection to use
+     * @param foodDeltas the change of each nutrient (by ordinal) of each food, by food ID
+     * @return the change of each total (by nutrient ordinal) of each affected recipe, by recipe ID
+     * @throws SQLException if a database error is encountered
+     */
+    private TreeMap<Integer, BigDecimal[]> getRecipeDeltas(Connection conn, HashMap<Integer, BigDecimal[]> foodDeltas)
+            throws SQLException {
+        TreeMap<Integer, BigDecimal[]> recipeDeltas = new TreeMap<>();
+        if (foodDeltas.isEmpty()) {
+            return recipeDeltas;
+        }
+
+        try (PreparedStatement statement = conn.prepareStatement(
+                "SELECT recipe_id, food_id, quantity FROM Ingredients WHERE food_id = ANY(?)")) {
+            statement.setArray(1, conn.createArrayOf("integer", foodDeltas.keySet().toArray()));
+            ResultSet rs = statement.executeQuery();
+            while (rs.next()) {
+                BigDecimal[] foodDelta = foodDeltas.get(rs.getInt(2));
+                //Nutrients are given per QUANTITY_BASE grams
+                BigDecimal portions = rs.getBigDecimal(3).divide(BigDecimal.valueOf(RecipeManager.QUANTITY_BASE));
+                BigDecimal[] recipeDelta = recipeDeltas.computeIfAbsent(rs.getInt(1), id -> {
+                    BigDecimal[] zeros = new BigDecimal[Nutrient.values().length];
+                    Arrays.fill(zeros, BigDecimal.ZERO);
+                    return zeros;
+                });
+                for (int n = 0; n < recipeDelta.length; n++) {
+                    recipeDelta[n] = recipeDelta[n].add(foodDelta[n].multiply(portions));
+                }
+            }
+        }
+        return recipeDeltas;
+    }
+
+    /**
+     * Adds the changes of their totals to the recipes, in batches of batchSize recipes,
+     * with up to propagationThreads connections writing in parallel
+     * Every connection writes every propagationThreads-th batch in one transaction, and the transactions are only
+     * committed once all of them succeeded; if any fails, they are all rolled back.
+     * Each recipe appears in a single batch, so the connections never wait for each other's locks
+     *
+     * @param recipeDeltas the change of each total (by nutrient ordinal) of each recipe, by recipe ID
+     * @return the amount of recipes updated
+     * @throws SQLException if a database error is encountered
+     */
+    private int applyRecipeDeltas(TreeMap<Integer, BigDecimal[]> recipeDeltas) throws SQLException {
+        if (recipeDeltas.isEmpty()) {
+            return 0;
+        }
+        String sql = "UPDATE Recipe SET calories = calories + ?, protein = protein + ?, carbs = carbs + ? WHERE id = ?";
+
+        //The recipes are in ID order, so every batch locks its rows in the same order as any other writer
+        ArrayList<Map.Entry<Integer, BigDecimal[]>> recipes = new ArrayList<>(recipeDeltas.entrySet());
+        int batches = (recipes.size() + batchSize - 1) / batchSize;
+        int stripes = Math.max(1, Math.min(propagationThreads, batches));
+
+        ArrayList<Future<Stripe>> futures = new ArrayList<>();
+        for (int stripe = 0; stripe < stripes; stripe++) {
+            int first = stripe;
+            futures.add(propagationExecutor.submit(() -> {
+                Connection conn = dbManager.getConnection();
+                try {
+                    conn.setAutoCommit(false);
+                    int updated = 0;
+                    for (int start = first * batchSize; start < recipes.size(); start += stripes * batchSize) {
+                        List<Map.Entry<Integer, BigDecimal[]>> batch =
+                                recipes.subList(start, Math.min(start + batchSize, recipes.size()));
+                        updated += BatchWriter.executeInTransaction(conn, sql, batch, batchSize,
+                                (statement, recipe) -> {
+                                    for (int n = 0; n < recipe.getValue().length; n++) {
+                                        statement.setBigDecimal(n + 1, recipe.getValue()[n]);
+                                    }
+                                    statement.setInt(4, recipe.getKey());
+                                });
+                    }
+                    return new Stripe(conn, updated);
+                } catch (SQLException | RuntimeException e) {
+                    finishStripe(conn, false);
+                    throw e;
+                }
+            }));
+        }
+
+        //Every stripe is waited for, even after a failure, so none of their connections is left open
+        ArrayList<Stripe> written = new ArrayList<>();
+        SQLException failure = null;
+        boolean interrupted = false;
+        for (Future<Stripe> future : futures) {
+            while (true) {
+                try {
+                    written.add(future.get());
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof SQLException sqlException ? sqlException
+                                : new SQLException(e.getCause());
+                    }
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+            if (failure == null) {
+                failure = new SQLException("Recipe updates were interrupted");
+            }
+        }
+
+        int updated = 0;
+        for (Stripe stripe : written) {
+            if (failure == null) {
+                try {
+                    stripe.conn().commit();
+                    updated += stripe.updated();
+                } catch (SQLException e) {
+                    failure = e;
+                }
+            }
+            finishStripe(stripe.conn(), failure == null);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return updated;
+    }
+
+    /**
+     * Ends the transaction of a stripe of recipe updates and returns its connection to the pool
+     *
+     * @param conn      the stripe's connection
+     * @param committed whether its transaction was committed, otherwise it's rolled back
+     */
+    private static void finishStripe(Connection conn, boolean committed) {
+        try (conn) {
+            if (!committed) {
+                conn.rollback();
+            }
+            conn.setAutoCommit(true);
+        } catch (SQLException e) {
+            System.err.println("SQL Database error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * The recipe updates written by one connection, not committed yet
+     *
+     * @param conn    the connection holding the transaction
+     * @param updated the amount of recipes updated
+     */
+    private record Stripe(Connection conn, int updated) {
+    }
+
     /**
      * Queries the database for the foods containing less than a number of calories
      *
@@ -136,10 +776,18 @@ public class FoodManager {
      * @throws SQLException if a database error is encountered
      */
     public ArrayList<Food> getFoodUnderCals(double calorieLimit) throws SQLException {
-        PreparedStatement statement = null;
-        try {
-            String sql = "SELECT * FROM Food WHERE calories <= ?";
-            statement = conn.prepareStatement(sql);
+        //Answer from the in-memory index when it's enabled
+        NutrientIndex index = nutrientIndex;
+        if (index != null) {
+            return index.atMost(Nutrient.CALORIES, calorieLimit);
+        }
+
+        //The limit is cast to numeric (the column's type), otherwise the column would be cast and its index skipped
+        String sql = "SELECT * FROM Food WHERE calories <= ?::numeric";
+
+        //Borrow a connection for this operation, closing it returns it to the pool
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement statement = conn.prepareStatement(sql)) {
             statement.setDouble(1, calorieLimit);
             ResultSet rs = statement.executeQuery();
 
@@ -151,8 +799,6 @@ public class FoodManager {
         } catch (SQLException e) {
             System.err.println("SQL Database error: " + e.getMessage());
             return null;
-        } finally {
-            statement.close();
         }
     }
 
@@ -164,10 +810,16 @@ public class FoodManager {
      * @throws SQLException if a database error is encountered
      */
     public ArrayList<Food> getFoodOverCals(double calorieLimit) throws SQLException {
-        PreparedStatement statement = null;
-        try {
-            String sql = "SELECT * FROM Food WHERE calories > ?";
-            statement = conn.prepareStatement(sql);
+        NutrientIndex index = nutrientIndex;
+        if (index != null) {
+            return index.over(Nutrient.CALORIES, calorieLimit);
+        }
+
+        String sql = "SELECT * FROM Food WHERE calories > ?::numeric";
+
+        //Borrow a connection for this operation, closing it returns it to the pool
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement statement = conn.prepareStatement(sql)) {
             statement.setDouble(1, calorieLimit);
             ResultSet rs = statement.executeQuery();
 
@@ -179,8 +831,6 @@ public class FoodManager {
         } catch (SQLException e) {
             System.err.println("SQL Database error: " + e.getMessage());
             return null;
-        } finally {
-            statement.close();
         }
     }
 
@@ -192,10 +842,16 @@ public class FoodManager {
      * @throws SQLException if a database error is encountered
      */
     public ArrayList<Food> getFoodUnderProteins(double proteinLimit) throws SQLException {
-        PreparedStatement statement = null;
-        try {
-            String sql = "SELECT * FROM Food WHERE protein <= ?";
-            statement = conn.prepareStatement(sql);
+        NutrientIndex index = nutrientIndex;
+        if (index != null) {
+            return index.atMost(Nutrient.PROTEIN, proteinLimit);
+        }
+
+        String sql = "SELECT * FROM Food WHERE protein <= ?::numeric";
+
+        //Borrow a connection for this operation, closing it returns it to the pool
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement statement = conn.prepareStatement(sql)) {
             statement.setDouble(1, proteinLimit);
             ResultSet rs = statement.executeQuery();
 
@@ -207,8 +863,6 @@ public class FoodManager {
         } catch (SQLException e) {
             System.err.println("SQL Database error: " + e.getMessage());
             return null;
-        } finally {
-            statement.close();
         }
     }
 
@@ -220,10 +874,16 @@ public class FoodManager {
      * @throws SQLException if a database error is encountered
      */
     public ArrayList<Food> getFoodOverProteins(double proteinLimit) throws SQLException {
-        PreparedStatement statement = null;
-        try {
-            String sql = "SELECT * FROM Food WHERE protein > ?";
-            statement = conn.prepareStatement(sql);
+        NutrientIndex index = nutrientIndex;
+        if (index != null) {
+            return index.over(Nutrient.PROTEIN, proteinLimit);
+        }
+
+        String sql = "SELECT * FROM Food WHERE protein > ?::numeric";
+
+        //Borrow a connection for this operation, closing it returns it to the pool
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement statement = conn.prepareStatement(sql)) {
             statement.setDouble(1, proteinLimit);
             ResultSet rs = statement.executeQuery();
 
@@ -235,8 +895,6 @@ public class FoodManager {
         } catch (SQLException e) {
             System.err.println("SQL Database error: " + e.getMessage());
             return null;
-        } finally {
-            statement.close();
         }
     }
 
@@ -248,10 +906,16 @@ public class FoodManager {
      * @throws SQLException if a database error is encountered
      */
     public ArrayList<Food> getFoodUnderCarbs(double carbLimit) throws SQLException {
-        PreparedStatement statement = null;
-        try {
-            String sql = "SELECT * FROM Food WHERE carbs <= ?";
-            statement = conn.prepareStatement(sql);
+        NutrientIndex index = nutrientIndex;
+        if (index != null) {
+            return index.atMost(Nutrient.CARBS, carbLimit);
+        }
+
+        String sql = "SELECT * FROM Food WHERE carbs <= ?::numeric";
+
+        //Borrow a connection for this operation, closing it returns it to the pool
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement statement = conn.prepareStatement(sql)) {
             statement.setDouble(1, carbLimit);
             ResultSet rs = statement.executeQuery();
 
@@ -263,8 +927,6 @@ public class FoodManager {
         } catch (SQLException e) {
             System.err.println("SQL Database error: " + e.getMessage());
             return null;
-        } finally {
-            statement.close();
         }
     }
 
@@ -276,10 +938,16 @@ public class FoodManager {
      * @throws SQLException if a database error is encountered
      */
     public ArrayList<Food> getFoodOverCarbs(double carbLimit) throws SQLException {
-        PreparedStatement statement = null;
-        try {
-            String sql = "SELECT * FROM Food WHERE carbs > ?";
-            statement = conn.prepareStatement(sql);
+        NutrientIndex index = nutrientIndex;
+        if (index != null) {
+            return index.over(Nutrient.CARBS, carbLimit);
+        }
+
+        String sql = "SELECT * FROM Food WHERE carbs > ?::numeric";
+
+        //Borrow a connection for this operation, closing it returns it to the pool
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement statement = conn.prepareStatement(sql)) {
             statement.setDouble(1, carbLimit);
             ResultSet rs = statement.executeQuery();
 
@@ -291,9 +959,272 @@ public class FoodManager {
         } catch (SQLException e) {
             System.err.println("SQL Database error: " + e.getMessage());
             return null;
-        } finally {
-            statement.close();
         }
     }
-}
 
+    /**
+     * Queries the database for the foods matching a multi-criteria query
+     * If the query has a limit, a single page is returned; pass its last food to query.after() to get the next page
+     *
+     * @param query the query
+     * @return an ArrayList of the matching foods, in the query's order
+     * @throws SQLException if a database error is encountered
+     */
+    public ArrayList<Food> findFoods(FoodQuery query) throws SQLException {
+        String sql = query.toSql();
+
+        //Borrow a connection for this operation, closing it returns it to the pool
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement statement = conn.prepareStatement(sql)) {
+            query.bind(statement);
+            ResultSet rs = statement.executeQuery();
+
+            ArrayList<Food> foods = new ArrayList<>();
+            while (rs.next()) {
+                foods.add(rowToFood(rs));
+            }
+            return foods;
+        } catch (SQLException e) {
+            System.err.println("SQL Database error: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Finds the foods whose brand and description contain every word of a text as a word prefix,
+     * e.g. "chick bre" finds "Chicken breast". Meant to be called on every keystroke of a search box.
+     * The in-memory name index is used when it's enabled, otherwise the database is queried
+     * (where the words may match anywhere in the text, not only at the start of a word)
+     *
+     * @param text  the text typed so far
+     * @param limit the maximum amount of results
+     * @return an ArrayList of the best matches, best first
+     * @throws SQLException if a database error is encountered
+     */
+    public ArrayList<Food> searchFoods(String text, int limit) throws SQLException {
+        FoodNameIndex names = nameIndex;
+        if (names != null) {
+            return names.search(text, limit);
+        }
+
+        String[] tokens = FoodNameIndex.tokenize(text);
+        if (tokens.length == 0) {
+            return new ArrayList<>();
+        }
+        FoodQuery query = new FoodQuery().limit(limit);
+        for (String token : tokens) {
+            query.nameContains(token);
+        }
+        return findFoods(query);
+    }
+
+    /**
+     * Finds the foods whose brand and description look like a text, tolerating typos ("chiken brest")
+     * The text is compared with the trigrams of the closest part of each food name (word similarity),
+     * and only foods at least as similar as the fuzzy threshold are returned, the most similar first.
+     * The comparison uses the trigram index of the Food table, so it stays fast on large catalogs.
+     *
+     * @param text  the search text
+     * @param limit the maximum amount of results
+     * @return an ArrayList of the matching foods, the most similar first
+     * @throws SQLException if a database error is encountered
+     */
+    public ArrayList<Food> fuzzySearchFoods(String text, int limit) throws SQLException {
+        //<% is the operator the index can answer, it keeps the foods over the word similarity threshold
+        String sql = "SELECT *, word_similarity(?, " + NAME_EXPRESSION + ") AS similarity FROM Food " +
+                "WHERE ? <% " + NAME_EXPRESSION + " " +
+                "ORDER BY similarity DESC, id " +
+                "LIMIT ?";
+
+        //Borrow a connection for this operation, closing it returns it to the pool
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement threshold = conn.prepareStatement(
+                     "SELECT set_config('pg_trgm.word_similarity_threshold', ?, true)");
+             PreparedStatement statement = conn.prepareStatement(sql)) {
+            //The threshold is set for this transaction only, so the pooled connection doesn't keep it
+            conn.setAutoCommit(false);
+            threshold.setString(1, Double.toString(fuzzyThreshold));
+            threshold.execute();
+
+            String searchText = text.toLowerCase();
+            statement.setString(1, searchText);
+            statement.setString(2, searchText);
+            statement.setInt(3, limit);
+            ResultSet rs = statement.executeQuery();
+
+            ArrayList<Food> foods = new ArrayList<>();
+            while (rs.next()) {
+                foods.add(rowToFood(rs));
+            }
+            conn.commit();
+            return foods;
+        } catch (SQLException e) {
+            System.err.println("SQL Database error: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Counts the foods matching a multi-criteria query
+     * The query's order and paging are ignored, every matching food is counted
+     *
+     * @param query the query
+     * @return the amount of matching foods, or -1 if a database error is encountered
+     * @throws SQLException if a database error is encountered
+     */
+    public int countFoods(FoodQuery query) throws SQLException {
+        String sql = query.toCountSql();
+
+        //Borrow a connection for this operation, closing it returns it to the pool
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement statement = conn.prepareStatement(sql)) {
+            query.bindConditions(statement);
+            ResultSet rs = statement.executeQuery();
+            rs.next();
+            return rs.getInt(1);
+        } catch (SQLException e) {
+            System.err.println("SQL Database error: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Gets the foods within a box-shaped range across all nutrients
+     * The in-memory k-d tree is used when it's enabled, otherwise the database is queried
+     *
+     * @param range the range
+     * @return an ArrayList of the matching foods, in no particular order
+     * @throws SQLException if a database error is encountered
+     */
+    public ArrayList<Food> findFoods(NutrientRange range) throws SQLException {
+        NutrientTree tree = nutrientTree;
+        if (tree != null) {
+            return tree.find(range);
+        }
+        return findFoods(range.toQuery());
+    }
+
+    /**
+     * Counts the foods within a box-shaped range across all nutrients
+     * The in-memory k-d tree is used when it's enabled, otherwise the database is queried
+     *
+     * @param range the range
+     * @return the amount of matching foods, or -1 if a database error is encountered
+     * @throws SQLException if a database error is encountered
+     */
+    public int countFoods(NutrientRange range) throws SQLException {
+        NutrientTree tree = nutrientTree;
+        if (tree != null) {
+            return tree.count(range);
+        }
+        return countFoods(range.toQuery());
+    }
+
+    /**
+     * Streams the foods matching a multi-criteria query, fetchSize at a time
+     * The stream holds a database connection until it's read to the end or closed, so close it when done
+     *
+     * @param query the query
+     * @return a stream of the matching foods, in the query's order
+     * @throws SQLException if a database error is encountered
+     */
+    public Stream<Food> streamFoods(FoodQuery query) throws SQLException {
+        try {
+            return CursorStream.open(dbManager.getConnection(), query.toSql(), fetchSize,
+                    query::bind, FoodManager::rowToFood);
+        } catch (SQLException e) {
+            System.err.println("SQL Database error: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Runs a single-limit food query through a cursor
+     *
+     * @param sql   the query, having the limit as its only parameter
+     * @param limit the limit
+     * @return a lazily populated stream of the matching foods, or null if a database error is encountered
+     */
+    private Stream<Food> streamWithLimit(String sql, double limit) {
+        try {
+            return CursorStream.open(dbManager.getConnection(), sql, fetchSize,
+                    statement -> statement.setDouble(1, limit), FoodManager::rowToFood);
+        } catch (SQLException e) {
+            System.err.println("SQL Database error: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Streams the foods containing less than a number of calories
+     * Unlike getFoodUnderCals, the foods are fetched from the database lazily, fetchSize at a time
+     * The stream holds a database connection until it's read to the end or closed, so close it when done
+     *
+     * @param calorieLimit the number of calories
+     * @return a stream of the matching foods
+     * @throws SQLException if a database error is encountered
+     */
+    public Stream<Food> streamFoodUnderCals(double calorieLimit) throws SQLException {
+        return streamWithLimit("SELECT * FROM Food WHERE calories <= ?::numeric", calorieLimit);
+    }
+
+    /**
+     * Streams the foods containing over a number of calories
+     * The stream holds a database connection until it's read to the end or closed, so close it when done
+     *
+     * @param calorieLimit the number of calories
+     * @return a stream of the matching foods
+     * @throws SQLException if a database error is encountered
+     */
+    public Stream<Food> streamFoodOverCals(double calorieLimit) throws SQLException {
+        return streamWithLimit("SELECT * FROM Food WHERE calories > ?::numeric", calorieLimit);
+    }
+
+    /**
+     * Streams the foods containing less than a number of proteins
+     * The stream holds a database connection until it's read to the end or closed, so close it when done
+     *
+     * @param proteinLimit the number of proteins
+     * @return a stream of the matching foods
+     * @throws SQLException if a database error is encountered
+     */
+    public Stream<Food> streamFoodUnderProteins(double proteinLimit) throws SQLException {
+        return streamWithLimit("SELECT * FROM Food WHERE protein <= ?::numeric", proteinLimit);
+    }
+
+    /**
+     * Streams the foods containing over a number of proteins
+     * The stream holds a database connection until it's read to the end or closed, so close it when done
+     *
+     * @param proteinLimit the number of proteins
+     * @return a stream of the matching foods
+     * @throws SQLException if a database error is encountered
+     */
+    public Stream<Food> streamFoodOverProteins(double proteinLimit) throws SQLException {
+        return streamWithLimit("SELECT * FROM Food WHERE protein > ?::numeric", proteinLimit);
+    }
+
+    /**
+     * Streams the foods containing less than a number of carbs
+     * The stream holds a database connection until it's read to the end or closed, so close it when done
+     *
+     * @param carbLimit the number of carbs
+     * @return a stream of the matching foods
+     * @throws SQLException if a database error is encountered
+     */
+    public Stream<Food> streamFoodUnderCarbs(double carbLimit) throws SQLException {
+        return streamWithLimit("SELECT * FROM Food WHERE carbs <= ?::numeric", carbLimit);
+    }
+
+    /**
+     * Streams the foods containing over a number of carbs
+     * The stream holds a database connection until it's read to the end or closed, so close it when done
+     *
+     * @param carbLimit the number of carbs
+     * @return a stream of the matching foods
+     * @throws SQLException if a database error is encountered
+     */
+    public Stream<Food> streamFoodOverCarbs(double carbLimit) throws SQLException {
+        return streamWithLimit("SELECT * FROM Food WHERE carbs > ?::numeric", carbLimit);
+    }
+}
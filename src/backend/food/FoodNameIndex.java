@@ -0,0 +1,300 @@
+package backend.food;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * The FoodNameIndex class answers type-ahead searches over the brand and description of the foods.
+ * <p>
+ * Both texts are split in tokens (words), which are normalized: lower case, without accents.
+ * The tokens are kept in a sorted map, so the tokens starting with a prefix are a contiguous range of it,
+ * each pointing to the IDs of the foods that contain it.
+ * A search text is normalized the same way and every one of its tokens must be the prefix of some token of a food,
+ * so "chick bre" matches "Chicken breast". The matches are in the alphabetical order of the completion of the
+ * longest search token, so a food with the exact word comes first ("chick" before "chickadee" before "chicken"),
+ * but a shorter completion does not come before a longer one that sorts earlier.
+ * The search stops as soon as it has enough matches, so a keystroke costs about as much as the results it returns.
+ * <p>
+ * The IDs of a token are kept in a sorted int array rather than a set of boxed integers, which takes a fraction of
+ * the memory for the tokens shared by thousands of foods (brands, common words). The index keeps copies of the
+ * foods and hands out copies, so callers may modify the foods they get.
+ *
+ * @author taconoodle
+ */
+public class FoodNameIndex {
+    /**
+     * Everything that separates two tokens
+     */
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    /**
+     * The marks left over when accented letters are decomposed
+     */
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+
+    /**
+     * The sorted IDs of the foods containing each token, the tokens in alphabetical order
+     */
+    private final TreeMap<String, int[]> postings = new TreeMap<>();
+
+    /**
+     * The indexed foods by ID
+     */
+    private final HashMap<Integer, Food> foodsById = new HashMap<>();
+
+    /**
+     * The tokens of each indexed food, by ID
+     */
+    private final HashMap<Integer, String[]> tokensById = new HashMap<>();
+
+    /**
+     * Guards every field above
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Default constructor
+     * Builds the postings in bulk, sorting each token's IDs once
+     *
+     * @param catalog the foods to index, a food whose ID appears more than once is indexed once
+     */
+    public FoodNameIndex(Collection<Food> catalog) {
+        for (Food food : catalog) {
+            foodsById.put(food.getId(), food.copy());
+        }
+
+        //Count the foods of every token first, so each array is allocated once at its final size
+        HashMap<String, Integer> counts = new HashMap<>();
+        for (Food food : foodsById.values()) {
+            String[] tokens = tokensOf(food);
+            tokensById.put(food.getId(), tokens);
+            for (String token : tokens) {
+                counts.merge(token, 1, Integer::sum);
+            }
+        }
+        HashMap<String, int[]> filling = new HashMap<>();
+        HashMap<String, Integer> filled = new HashMap<>();
+        for (Map.Entry<String, Integer> count : counts.entrySet()) {
+            filling.put(count.getKey(), new int[count.getValue()]);
+            filled.put(count.getKey(), 0);
+        }
+        for (Map.Entry<Integer, String[]> food : tokensById.entrySet()) {
+            for (String token : food.getValue()) {
+                int position = filled.merge(token, 1, Integer::sum) - 1;
+                filling.get(token)[position] = food.getKey();
+            }
+        }
+        for (Map.Entry<String, int[]> posting : filling.entrySet()) {
+            Arrays.sort(posting.getValue());
+            postings.put(posting.getKey(), posting.getValue());
+        }
+    }
+
+    /**
+     * Finds the foods whose brand and description contain every token of a text as a word prefix
+     *
+     * @param text  the text the user typed so far
+     * @param limit the maximum amount of results
+     * @return an ArrayList of copies of the first matches, in the order of the completions
+     */
+    public ArrayList<Food> search(String text, int limit) {
+        String[] queryTokens = tokenize(text);
+        ArrayList<Food> result = new ArrayList<>();
+        if (queryTokens.length == 0 || limit <= 0) {
+            return result;
+        }
+
+        //The longest token is the most selective one, it drives the search and the others are checked per food
+        String driver = queryTokens[0];
+        for (String token : queryTokens) {
+            if (token.length() > driver.length()) {
+                driver = token;
+            }
+        }
+
+        lock.readLock().lock();
+        try {
+            //A food may contain several completions of the driver, it's only added for the first one
+            LinkedHashSet<Integer> matches = new LinkedHashSet<>();
+            for (Map.Entry<String, int[]> entry : postings.tailMap(driver, true).entrySet()) {
+                if (!entry.getKey().startsWith(driver)) {
+                    break;
+                }
+                for (int foodId : entry.getValue()) {
+                    if (!matches.contains(foodId) && containsAllPrefixes(tokensById.get(foodId), queryTokens)) {
+                        matches.add(foodId);
+                        result.add(foodsById.get(foodId).copy());
+                        if (result.size() == limit) {
+                            return result;
+                        }
+                    }
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a food to the index, replacing the previous version if the ID was already indexed
+     * The index keeps a copy, later changes to the food are not seen by it
+     *
+     * @param added the food
+     */
+    public void add(Food added) {
+        Food food = added.copy();
+        lock.writeLock().lock();
+        try {
+            removeUnlocked(food.getId());
+            addUnlocked(food);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a food from the index
+     *
+     * @param foodId the ID of the food
+     * @return true if the food was indexed
+     */
+    public boolean remove(int foodId) {
+        lock.writeLock().lock();
+        try {
+            return removeUnlocked(foodId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the amount of indexed foods
+     *
+     * @return the size of the index
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return foodsById.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Splits a text in normalized tokens: lower case words without accents
+     *
+     * @param text the text, may be null
+     * @return the distinct tokens, in the order they appear
+     */
+    public static String[] tokenize(String text) {
+        if (text == null) {
+            return new String[0];
+        }
+        String normalized = MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("")
+                .toLowerCase(Locale.ROOT);
+        return Arrays.stream(SEPARATORS.split(normalized))
+                .filter(token -> !token.isEmpty())
+                .distinct()
+                .toArray(String[]::new);
+    }
+
+    /**
+     * Splits the brand and description of a food in normalized tokens
+     *
+     * @param food the food
+     * @return the distinct tokens
+     */
+    private static String[] tokensOf(Food food) {
+        return tokenize(Objects.requireNonNullElse(food.getBrand(), "") + " "
+                + Objects.requireNonNullElse(food.getDescription(), ""));
+    }
+
+    /**
+     * Adds a food that is not indexed
+     * Requires the write lock
+     *
+     * @param food the food, already copied
+     */
+    private void addUnlocked(Food food) {
+        String[] tokens = tokensOf(food);
+        foodsById.put(food.getId(), food);
+        tokensById.put(food.getId(), tokens);
+        for (String token : tokens) {
+            int[] ids = postings.get(token);
+            if (ids == null) {
+                postings.put(token, new int[]{food.getId()});
+                continue;
+            }
+            //The search misses (the food is not indexed), so it returns -(insertion point) - 1
+            int position = -Arrays.binarySearch(ids, food.getId()) - 1;
+            int[] grown = new int[ids.length + 1];
+            System.arraycopy(ids, 0, grown, 0, position);
+            grown[position] = food.getId();
+            System.arraycopy(ids, position, grown, position + 1, ids.length - position);
+            postings.put(token, grown);
+        }
+    }
+
+    /**
+     * Removes a food from the index
+     * Requires the write lock
+     *
+     * @param foodId the ID of the food
+     * @return true if the food was indexed
+     */
+    private boolean removeUnlocked(int foodId) {
+        String[] tokens = tokensById.remove(foodId);
+        if (tokens == null) {
+            return false;
+        }
+        foodsById.remove(foodId);
+        for (String token : tokens) {
+            int[] ids = postings.get(token);
+            if (ids.length == 1) {
+                postings.remove(token);
+                continue;
+            }
+            int position = Arrays.binarySearch(ids, foodId);
+            int[] shrunk = new int[ids.length - 1];
+            System.arraycopy(ids, 0, shrunk, 0, position);
+            System.arraycopy(ids, position + 1, shrunk, position, ids.length - position - 1);
+            postings.put(token, shrunk);
+        }
+        return true;
+    }
+
+    /**
+     * Checks if every query token is the prefix of some token of a food
+     *
+     * @param foodTokens  the tokens of the food
+     * @param queryTokens the tokens of the search text
+     * @return true if the food matches
+     */
+    private static boolean containsAllPrefixes(String[] foodTokens, String[] queryTokens) {
+        for (String queryToken : queryTokens) {
+            boolean found = false;
+            for (String foodToken : foodTokens) {
+                if (foodToken.startsWith(queryToken)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
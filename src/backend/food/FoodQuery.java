@@ -0,0 +1,286 @@
+package backend.food;
+
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+
+/**
+ * The FoodQuery class describes a search in the Food table that combines any number of filters.
+ * Each nutrient can be limited from below and/or above, and the brand and description can be searched for text.
+ * All filters are combined in a single parameterized SQL statement, e.g. "calories <= 200 AND protein > 15".
+ * <p>
+ * Results can be ordered by a nutrient and split in pages with keyset (seek) pagination:
+ * instead of skipping the previous pages with OFFSET, the next page starts right after the last food of the
+ * previous one, so every page costs the same as the first.
+ *
+ * @author taconoodle
+ */
+public class FoodQuery {
+    /**
+     * The SQL conditions, combined with AND
+     */
+    private final ArrayList<String> conditions = new ArrayList<>();
+
+    /**
+     * The parameters of the conditions, in the order they appear
+     */
+    private final ArrayList<Object> parameters = new ArrayList<>();
+
+    /**
+     * The nutrient the results are ordered by, or null to order them by id
+     */
+    private Nutrient orderBy = null;
+
+    /**
+     * Whether the results are in ascending order
+     */
+    private boolean ascending = true;
+
+    /**
+     * The maximum amount of results (the page size), or 0 for no limit
+     */
+    private int limit = 0;
+
+    /**
+     * The last food of the previous page, or null for the first page
+     */
+    private Food after = null;
+
+    /**
+     * Keeps the foods with at least the given amount of a nutrient
+     *
+     * @param nutrient the nutrient
+     * @param amount   the minimum amount (inclusive)
+     * @return self
+     */
+    public FoodQuery atLeast(Nutrient nutrient, double amount) {
+        return addCondition(nutrient.getColumn() + " >= ?", toNumeric(amount));
+    }
+
+    /**
+     * Keeps the foods with more than the given amount of a nutrient (like getFoodOverCals and the like)
+     *
+     * @param nutrient the nutrient
+     * @param amount   the amount (exclusive)
+     * @return self
+     */
+    public FoodQuery over(Nutrient nutrient, double amount) {
+        return addCondition(nutrient.getColumn() + " > ?", toNumeric(amount));
+    }
+
+    /**
+     * Keeps the foods with at most the given amount of a nutrient (like getFoodUnderCals and the like)
+     *
+     * @param nutrient the nutrient
+     * @param amount   the maximum amount (inclusive)
+     * @return self
+     */
+    public FoodQuery atMost(Nutrient nutrient, double amount) {
+        return addCondition(nutrient.getColumn() + " <= ?", toNumeric(amount));
+    }
+
+    /**
+     * Keeps the foods with less than the given amount of a nutrient
+     *
+     * @param nutrient the nutrient
+     * @param amount   the amount (exclusive)
+     * @return self
+     */
+    public FoodQuery below(Nutrient nutrient, double amount) {
+        return addCondition(nutrient.getColumn() + " < ?", toNumeric(amount));
+    }
+
+    /**
+     * Keeps the foods whose amount of a nutrient is within a range
+     *
+     * @param nutrient the nutrient
+     * @param min      the minimum amount (inclusive)
+     * @param max      the maximum amount (inclusive)
+     * @return self
+     */
+    public FoodQuery between(Nutrient nutrient, double min, double max) {
+        return atLeast(nutrient, min).atMost(nutrient, max);
+    }
+
+    /**
+     * Keeps the foods whose brand contains a text, ignoring case
+     *
+     * @param text the text to look for
+     * @return self
+     */
+    public FoodQuery brandContains(String text) {
+        return addCondition("brand ILIKE ?", "%" + escapeLike(text) + "%");
+    }
+
+    /**
+     * Keeps the foods whose description contains a text, ignoring case
+     *
+     * @param text the text to look for
+     * @return self
+     */
+    public FoodQuery descriptionContains(String text) {
+        return addCondition("description ILIKE ?", "%" + escapeLike(text) + "%");
+    }
+
+    /**
+     * Keeps the foods whose brand or description contains a text, ignoring case
+     *
+     * @param text the text to look for
+     * @return self
+     */
+    public FoodQuery nameContains(String text) {
+        return addCondition("concat_ws(' ', brand, description) ILIKE ?", "%" + escapeLike(text) + "%");
+    }
+
+    /**
+     * Orders the results by a nutrient (foods with the same amount are ordered by id)
+     *
+     * @param nutrient  the nutrient
+     * @param ascending true for ascending order, false for descending
+     * @return self
+     */
+    public FoodQuery orderBy(Nutrient nutrient, boolean ascending) {
+        this.orderBy = nutrient;
+        this.ascending = ascending;
+        return this;
+    }
+
+    /**
+     * Limits the amount of results, which makes the query return one page
+     *
+     * @param pageSize the maximum amount of results
+     * @return self
+     */
+    public FoodQuery limit(int pageSize) {
+        this.limit = pageSize;
+        return this;
+    }
+
+    /**
+     * Moves the query to the page that follows the given food
+     *
+     * @param lastFood the last food of the previous page, or null to go back to the first page
+     * @return self
+     */
+    public FoodQuery after(Food lastFood) {
+        this.after = lastFood;
+        return this;
+    }
+
+    /**
+     * Builds the SQL of the query
+     *
+     * @return the SQL statement
+     */
+    String toSql() {
+        StringBuilder sql = new StringBuilder("SELECT * FROM Food");
+        ArrayList<String> where = new ArrayList<>(conditions);
+
+        //The seek condition: everything that comes after the last food of the previous page in the result order
+        if (after != null) {
+            String comparison = ascending ? " > " : " < ";
+            where.add(orderBy == null
+                    ? "id" + comparison + "?"
+                    : "(" + orderBy.getColumn() + ", id)" + comparison + "(?, ?)");
+        }
+        if (!where.isEmpty()) {
+            sql.append(" WHERE ").append(String.join(" AND ", where));
+        }
+
+        String direction = ascending ? " ASC" : " DESC";
+        sql.append(" ORDER BY ");
+        if (orderBy != null) {
+            sql.append(orderBy.getColumn()).append(direction).append(", ");
+        }
+        sql.append("id").append(direction);
+
+        if (limit > 0) {
+            sql.append(" LIMIT ?");
+        }
+        return sql.toString();
+    }
+
+    /**
+     * Builds the SQL that counts the results of the query
+     * The order and the paging are ignored, every matching food is counted
+     *
+     * @return the SQL statement
+     */
+    String toCountSql() {
+        StringBuilder sql = new StringBuilder("SELECT count(*) FROM Food");
+        if (!conditions.isEmpty()) {
+            sql.append(" WHERE ").append(String.join(" AND ", conditions));
+        }
+        return sql.toString();
+    }
+
+    /**
+     * Sets the parameters of the query's statement
+     *
+     * @param statement the statement prepared from toSql()
+     * @throws SQLException if a database error is encountered
+     */
+    void bind(PreparedStatement statement) throws SQLException {
+        int index = bindConditions(statement);
+        if (after != null) {
+            if (orderBy != null) {
+                //The columns hold thousandths like Food does, so this is exactly the stored value of the last food
+                statement.setBigDecimal(index++, toNumeric(orderBy.of(after)));
+            }
+            statement.setInt(index++, after.getId());
+        }
+        if (limit > 0) {
+            statement.setInt(index, limit);
+        }
+    }
+
+    /**
+     * Sets the parameters of the query's conditions, which come first in both toSql() and toCountSql()
+     *
+     * @param statement the statement
+     * @return the index of the next parameter
+     * @throws SQLException if a database error is encountered
+     */
+    int bindConditions(PreparedStatement statement) throws SQLException {
+        int index = 1;
+        for (Object parameter : parameters) {
+            statement.setObject(index++, parameter);
+        }
+        return index;
+    }
+
+    /**
+     * Adds a condition to the query
+     *
+     * @param condition the SQL condition, with a single parameter
+     * @param parameter the parameter's value
+     * @return self
+     */
+    private FoodQuery addCondition(String condition, Object parameter) {
+        conditions.add(condition);
+        parameters.add(parameter);
+        return this;
+    }
+
+    /**
+     * Converts an amount to the type of the nutrient columns
+     * Comparing the numeric columns with a double parameter would cast every column value and skip their indexes
+     *
+     * @param amount the amount
+     * @return the amount as a decimal
+     */
+    private static BigDecimal toNumeric(double amount) {
+        return BigDecimal.valueOf(amount);
+    }
+
+    /**
+     * Escapes the characters that have a special meaning in a LIKE pattern
+     *
+     * @param text the text to escape
+     * @return the escaped text
+     */
+    private static String escapeLike(String text) {
+        return text.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+}
@@ -0,0 +1,341 @@
+package backend.food;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The IngredientList class stores the ingredients of a recipe in parallel arrays: one array for the food IDs,
+ * one for the quantities and one for each nutrient of the foods (per QUANTITY_BASE grams), all in fixed point
+ * thousandths (see Macros).
+ * <p>
+ * Each food appears once, adding it again adds to its quantity. Sub-recipes (Recipe ingredients) are kept apart
+ * from the foods, since a recipe and a food may have the same ID.
+ * An index from ID to position makes finding and removing an ingredient O(1): the last ingredient is moved into
+ * the removed one's place, so the order of the ingredients is not kept across removals.
+ * The totals are kept as running sums of each ingredient's scaled macros. The sums are exact, since they are whole
+ * numbers of thousandths, so they never drift and never need to be recomputed.
+ *
+ * @author taconoodle
+ */
+public class IngredientList {
+    /**
+     * The capacity of a new list
+     */
+    private static final int INITIAL_CAPACITY = 8;
+
+    /**
+     * The IDs of the foods
+     */
+    private int[] foodIds = new int[INITIAL_CAPACITY];
+
+    /**
+     * The thousandths of a gram of each food
+     */
+    private long[] quantities = new long[INITIAL_CAPACITY];
+
+    /**
+     * The thousandths of a kcal of each food per QUANTITY_BASE grams
+     */
+    private long[] calories = new long[INITIAL_CAPACITY];
+
+    /**
+     * The thousandths of a gram of proteins of each food per QUANTITY_BASE grams
+     */
+    private long[] proteins = new long[INITIAL_CAPACITY];
+
+    /**
+     * The thousandths of a gram of carbs of each food per QUANTITY_BASE grams
+     */
+    private long[] carbs = new long[INITIAL_CAPACITY];
+
+    /**
+     * The foods themselves, kept so the ingredients can be handed out as RecipeIngredient objects
+     */
+    private Food[] foods = new Food[INITIAL_CAPACITY];
+
+    /**
+     * The amount of ingredients, the arrays are filled up to this position
+     */
+    private int size = 0;
+
+    /**
+     * The position of each ingredient, by key (see key())
+     */
+    private final HashMap<Long, Integer> positions = new HashMap<>();
+
+    //The totals of the ingredients, in thousandths
+    private long totalCalories = 0;
+    private long totalProteins = 0;
+    private long totalCarbs = 0;
+
+    /**
+     * Adds an ingredient, or adds to the quantity of the food if it's already an ingredient
+     * The food's nutrients and the quantity are copied, so changing the RecipeIngredient later has no effect
+     *
+     * @param ingredient the ingredient
+     */
+    public void add(RecipeIngredient ingredient) {
+        add(ingredient.getFood(), ingredient.getQuantity());
+    }
+
+    /**
+     * Adds an ingredient, or adds to the quantity of the food if it's already an ingredient
+     *
+     * @param food     the food
+     * @param quantity the grams of the food
+     */
+    public void add(Food food, double quantity) {
+        long key = key(food);
+        Integer position = positions.get(key);
+        if (position != null) {
+            changeQuantity(position, quantities[position] + Macros.toMilli(quantity));
+            return;
+        }
+
+        if (size == foodIds.length) {
+            grow();
+        }
+        Macros macros = food.getMacros();
+        foodIds[size] = food.getId();
+        quantities[size] = Macros.toMilli(quantity);
+        calories[size] = macros.milliCalories();
+        proteins[size] = macros.milliProteins();
+        carbs[size] = macros.milliCarbs();
+        foods[size] = food;
+        positions.put(key, size);
+        addToTotals(size, 1);
+        size++;
+    }
+
+    /**
+     * Removes the ingredient using a food (not a sub-recipe)
+     *
+     * @param foodId the ID of the food
+     * @return true if the food was an ingredient
+     */
+    public boolean remove(int foodId) {
+        return removeKey(key(foodId, false));
+    }
+
+    /**
+     * Removes the ingredient using a food or a sub-recipe
+     *
+     * @param food the food, or a Recipe for a sub-recipe
+     * @return true if it was an ingredient
+     */
+    public boolean remove(Food food) {
+        return removeKey(key(food));
+    }
+
+    /**
+     * Removes an ingredient, filling its position with the last ingredient
+     *
+     * @param key the ingredient's key
+     * @return true if it was an ingredient
+     */
+    private boolean removeKey(long key) {
+        Integer position = positions.remove(key);
+        if (position == null) {
+            return false;
+        }
+        addToTotals(position, -1);
+
+        //Fill the gap with the last ingredient
+        int last = size - 1;
+        if (position != last) {
+            foodIds[position] = foodIds[last];
+            quantities[position] = quantities[last];
+            calories[position] = calories[last];
+            proteins[position] = proteins[last];
+            carbs[position] = carbs[last];
+            foods[position] = foods[last];
+            positions.put(key(foods[position]), position);
+        }
+        foods[last] = null;
+        size = last;
+        return true;
+    }
+
+    /**
+     * Changes the grams of an ingredient
+     *
+     * @param foodId   the ID of the ingredient's food
+     * @param quantity the new grams
+     * @return true if the food is an ingredient
+     */
+    public boolean setQuantity(int foodId, double quantity) {
+        Integer position = positions.get(key(foodId, false));
+        if (position == null) {
+            return false;
+        }
+        changeQuantity(position, Macros.toMilli(quantity));
+        return true;
+    }
+
+    /**
+     * Removes every ingredient
+     */
+    public void clear() {
+        Arrays.fill(foods, 0, size, null);
+        positions.clear();
+        size = 0;
+        totalCalories = 0;
+        totalProteins = 0;
+        totalCarbs = 0;
+    }
+
+    /**
+     * Checks if a food is an ingredient
+     *
+     * @param foodId the ID of the food
+     * @return true if the food is an ingredient
+     */
+    public boolean contains(int foodId) {
+        return positions.containsKey(key(foodId, false));
+    }
+
+    /**
+     * Gets the amount of ingredients
+     *
+     * @return the size of the list
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the food ID of the ingredient at a position
+     *
+     * @param position the position, from 0 to size() - 1
+     * @return the food ID, or the recipe ID for a sub-recipe
+     */
+    public int getFoodId(int position) {
+        checkPosition(position);
+        return foodIds[position];
+    }
+
+    /**
+     * Checks if the ingredient at a position is a sub-recipe
+     *
+     * @param position the position, from 0 to size() - 1
+     * @return true if the ingredient is a Recipe
+     */
+    public boolean isRecipe(int position) {
+        checkPosition(position);
+        return foods[position] instanceof Recipe;
+    }
+
+    /**
+     * Gets the grams of the ingredient at a position
+     *
+     * @param position the position, from 0 to size() - 1
+     * @return the grams
+     */
+    public double getQuantity(int position) {
+        checkPosition(position);
+        return Macros.fromMilli(quantities[position]);
+    }
+
+    /**
+     * Gets the ingredient at a position
+     *
+     * @param position the position, from 0 to size() - 1
+     * @return a new RecipeIngredient for the ingredient
+     */
+    public RecipeIngredient get(int position) {
+        checkPosition(position);
+        return new RecipeIngredient(foods[position], Macros.fromMilli(quantities[position]));
+    }
+
+    /**
+     * Gets every ingredient
+     *
+     * @return a new ArrayList of RecipeIngredient objects, changing it doesn't change the list
+     */
+    public ArrayList<RecipeIngredient> toList() {
+        ArrayList<RecipeIngredient> ingredients = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            ingredients.add(new RecipeIngredient(foods[i], Macros.fromMilli(quantities[i])));
+        }
+        return ingredients;
+    }
+
+    /**
+     * Gets the total calories, proteins and carbs of the ingredients
+     *
+     * @return the total macros
+     */
+    public Macros getTotals() {
+        return new Macros(totalCalories, totalProteins, totalCarbs);
+    }
+
+    /**
+     * Changes the quantity of an ingredient, along with the totals
+     *
+     * @param position the position of the ingredient
+     * @param quantity the new quantity, in thousandths of a gram
+     */
+    private void changeQuantity(int position, long quantity) {
+        addToTotals(position, -1);
+        quantities[position] = quantity;
+        addToTotals(position, 1);
+    }
+
+    /**
+     * Adds the macros of an ingredient to the totals, or subtracts them
+     *
+     * @param position the position of the ingredient
+     * @param sign     1 to add, -1 to subtract
+     */
+    private void addToTotals(int position, int sign) {
+        totalCalories += sign * Macros.scale(calories[position], quantities[position]);
+        totalProteins += sign * Macros.scale(proteins[position], quantities[position]);
+        totalCarbs += sign * Macros.scale(carbs[position], quantities[position]);
+    }
+
+    /**
+     * Gets the key of an ingredient: its ID, with the lowest bit telling sub-recipes apart from foods
+     *
+     * @param food the food, or a Recipe for a sub-recipe
+     * @return the key
+     */
+    private static long key(Food food) {
+        return key(food.getId(), food instanceof Recipe);
+    }
+
+    /**
+     * Gets the key of an ingredient: its ID, with the lowest bit telling sub-recipes apart from foods
+     *
+     * @param id     the ID of the food or recipe
+     * @param recipe true for a sub-recipe
+     * @return the key
+     */
+    private static long key(int id, boolean recipe) {
+        return ((long) id << 1) | (recipe ? 1 : 0);
+    }
+
+    /**
+     * Doubles the capacity of the arrays
+     */
+    private void grow() {
+        int capacity = foodIds.length * 2;
+        foodIds = Arrays.copyOf(foodIds, capacity);
+        quantities = Arrays.copyOf(quantities, capacity);
+        calories = Arrays.copyOf(calories, capacity);
+        proteins = Arrays.copyOf(proteins, capacity);
+        carbs = Arrays.copyOf(carbs, capacity);
+        foods = Arrays.copyOf(foods, capacity);
+    }
+
+    /**
+     * Checks that a position holds an ingredient
+     *
+     * @param position the position
+     */
+    private void checkPosition(int position) {
+        if (position < 0 || position >= size) {
+            throw new IndexOutOfBoundsException("Position " + position + " out of bounds for size " + size);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package backend.food;
+
+/**
+ * The Macros record is an immutable (calories, proteins, carbs) triple in fixed point: each amount is kept as a whole
+ * number of thousandths (milli-kcal, milli-grams), so adding and subtracting amounts is exact and totals never drift,
+ * no matter how many times foods are added and removed.
+ * <p>
+ * Amounts given as doubles are rounded to the nearest thousandth once, when they enter the record.
+ *
+ * @param milliCalories the calories, in thousandths of a kcal
+ * @param milliProteins the proteins, in thousandths of a gram
+ * @param milliCarbs    the carbs, in thousandths of a gram
+ * @author taconoodle
+ */
+public record Macros(long milliCalories, long milliProteins, long milliCarbs) {
+    /**
+     * The amount of thousandths in a unit
+     */
+    public static final long MILLI = 1000;
+
+    /**
+     * No calories, proteins or carbs
+     */
+    public static final Macros ZERO = new Macros(0, 0, 0);
+
+    /**
+     * The thousandths of a gram in QUANTITY_BASE grams, the quantity the macros of a food are given for
+     */
+    public static final long MILLI_QUANTITY_BASE = toMilli(RecipeManager.QUANTITY_BASE);
+
+    /**
+     * Creates the macros of amounts given in units
+     *
+     * @param calories the calories
+     * @param proteins the proteins in grams
+     * @param carbs    the carbs in grams
+     * @return the macros
+     */
+    public static Macros of(double calories, double proteins, double carbs) {
+        return new Macros(toMilli(calories), toMilli(proteins), toMilli(carbs));
+    }
+
+    /**
+     * Converts an amount to thousandths, rounding to the nearest one
+     *
+     * @param amount the amount in units
+     * @return the amount in thousandths
+     */
+    public static long toMilli(double amount) {
+        return Math.round(amount * MILLI);
+    }
+
+    /**
+     * Converts an amount in thousandths to units
+     *
+     * @param milliAmount the amount in thousandths
+     * @return the amount in units
+     */
+    public static double fromMilli(long milliAmount) {
+        return (double) milliAmount / MILLI;
+    }
+
+    /**
+     * Scales an amount given per QUANTITY_BASE grams to another quantity, rounding half up to the nearest thousandth
+     * The result only depends on its arguments, so a total kept by adding and subtracting scaled amounts is exact
+     *
+     * @param milliAmount the amount per QUANTITY_BASE grams, in thousandths
+     * @param milliGrams  the quantity, in thousandths of a gram
+     * @return the amount in the quantity, in thousandths
+     */
+    public static long scale(long milliAmount, long milliGrams) {
+        return Math.floorDiv(Math.multiplyExact(milliAmount, milliGrams) + MILLI_QUANTITY_BASE / 2,
+                MILLI_QUANTITY_BASE);
+    }
+
+    /**
+     * Gets the macros of a quantity of a food whose macros are these (per QUANTITY_BASE grams)
+     *
+     * @param milliGrams the quantity, in thousandths of a gram
+     * @return the macros of the quantity
+     */
+    public Macros scale(long milliGrams) {
+        return new Macros(scale(milliCalories, milliGrams), scale(milliProteins, milliGrams),
+                scale(milliCarbs, milliGrams));
+    }
+
+    /**
+     * Adds two macros
+     *
+     * @param other the macros to add
+     * @return the sum
+     */
+    public Macros plus(Macros other) {
+        return new Macros(Math.addExact(milliCalories, other.milliCalories),
+                Math.addExact(milliProteins, other.milliProteins),
+                Math.addExact(milliCarbs, other.milliCarbs));
+    }
+
+    /**
+     * Subtracts two macros
+     *
+     * @param other the macros to subtract
+     * @return the difference
+     */
+    public Macros minus(Macros other) {
+        return new Macros(Math.subtractExact(milliCalories, other.milliCalories),
+                Math.subtractExact(milliProteins, other.milliProteins),
+                Math.subtractExact(milliCarbs, other.milliCarbs));
+    }
+
+    /**
+     * Gets the calories
+     *
+     * @return the calories in kcal
+     */
+    public double getCalories() {
+        return fromMilli(milliCalories);
+    }
+
+    /**
+     * Gets the proteins
+     *
+     * @return the proteins in grams
+     */
+    public double getProteins() {
+        return fromMilli(milliProteins);
+    }
+
+    /**
+     * Gets the carbs
+     *
+     * @return the carbs in grams
+     */
+    public double getCarbs() {
+        return fromMilli(milliCarbs);
+    }
+
+    /**
+     * Creates a string containing the macros
+     *
+     * @return the info string
+     */
+    @Override
+    public String toString() {
+        return String.format("calories %.3f | proteins %.3f | carbs %.3f", getCalories(), getProteins(), getCarbs());
+    }
+}
@@ -0,0 +1,49 @@
+package backend.food;
+
+/**
+ * The Nutrient enum lists the nutritional facts kept for each food, along with the Food table column that stores them
+ *
+ * @author taconoodle
+ */
+public enum Nutrient {
+    CALORIES("calories"),
+    PROTEIN("protein"),
+    CARBS("carbs");
+
+    /**
+     * The column of the Food table that stores the nutrient
+     */
+    private final String column;
+
+    /**
+     * Default constructor
+     *
+     * @param column the column of the Food table that stores the nutrient
+     */
+    Nutrient(String column) {
+        this.column = column;
+    }
+
+    /**
+     * Gets the column of the Food table that stores the nutrient
+     *
+     * @return the column name
+     */
+    public String getColumn() {
+        return column;
+    }
+
+    /**
+     * Gets the amount of the nutrient a food contains
+     *
+     * @param food the food
+     * @return the amount of the nutrient
+     */
+    public double of(Food food) {
+        return switch (this) {
+            case CALORIES -> food.getCalories();
+            case PROTEIN -> food.getProteins();
+            case CARBS -> food.getCarbs();
+        };
+    }
+}
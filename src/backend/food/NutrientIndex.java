@@ -0,0 +1,359 @@
+package backend.food;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The NutrientIndex class keeps the food catalog in memory, sorted by each nutrient, so range questions like
+ * "foods under 150 calories" are answered with a binary search instead of a database round trip.
+ * <p>
+ * For every nutrient the index holds a sorted double[] of the amounts, along with parallel arrays of the food IDs
+ * and the foods themselves. Foods with the same amount are ordered by ID, so every food has exactly one position
+ * in each array and can be found again with a binary search when it's removed.
+ * <p>
+ * The index keeps its own copies of the foods and hands out new copies, so changing a Food after adding it, or one
+ * returned by a lookup, can't move it away from its position in the arrays.
+ * Lookups share a read lock, while adding or removing a food takes the write lock and shifts the arrays with
+ * System.arraycopy.
+ *
+ * @author taconoodle
+ */
+public class NutrientIndex {
+    /**
+     * The capacity of an index built from an empty catalog
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * The copies of the indexed foods by ID, used to find the amounts of a food that is removed
+     */
+    private final HashMap<Integer, Food> foodsById = new HashMap<>();
+
+    /**
+     * The amounts of each nutrient (by ordinal), in ascending order
+     */
+    private final double[][] values = new double[Nutrient.values().length][];
+
+    /**
+     * The IDs of the foods, parallel to values
+     */
+    private final int[][] ids = new int[Nutrient.values().length][];
+
+    /**
+     * The copies of the foods, parallel to values
+     */
+    private final Food[][] foods = new Food[Nutrient.values().length][];
+
+    /**
+     * The amount of indexed foods, the arrays are filled up to this position
+     */
+    private int size = 0;
+
+    /**
+     * Guards every field above
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Default constructor
+     * Builds the index in bulk, sorting each nutrient once
+     *
+     * @param catalog the foods to index, a food whose ID appears more than once is indexed once
+     */
+    public NutrientIndex(Collection<Food> catalog) {
+        for (Food food : catalog) {
+            foodsById.put(food.getId(), food.copy());
+        }
+        size = foodsById.size();
+        int capacity = Math.max(INITIAL_CAPACITY, size);
+
+        for (Nutrient nutrient : Nutrient.values()) {
+            int n = nutrient.ordinal();
+            values[n] = new double[capacity];
+            ids[n] = new int[capacity];
+            foods[n] = new Food[capacity];
+
+            int position = 0;
+            for (Food food : foodsById.values()) {
+                values[n][position] = nutrient.of(food);
+                ids[n][position] = food.getId();
+                foods[n][position] = food;
+                position++;
+            }
+            sort(values[n], ids[n], foods[n], size);
+        }
+    }
+
+    /**
+     * Gets the foods containing at most an amount of a nutrient (the same foods as getFoodUnderCals and the like)
+     *
+     * @param nutrient the nutrient
+     * @param limit    the maximum amount (inclusive)
+     * @return an ArrayList of the matching foods, in ascending order of the nutrient
+     */
+    public ArrayList<Food> atMost(Nutrient nutrient, double limit) {
+        lock.readLock().lock();
+        try {
+            int end = firstAbove(nutrient.ordinal(), limit);
+            return copy(nutrient.ordinal(), 0, end);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the foods containing more than an amount of a nutrient (the same foods as getFoodOverCals and the like)
+     *
+     * @param nutrient the nutrient
+     * @param limit    the amount (exclusive)
+     * @return an ArrayList of the matching foods, in ascending order of the nutrient
+     */
+    public ArrayList<Food> over(Nutrient nutrient, double limit) {
+        lock.readLock().lock();
+        try {
+            int start = firstAbove(nutrient.ordinal(), limit);
+            return copy(nutrient.ordinal(), start, size);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Counts the foods containing at most an amount of a nutrient, without copying them
+     *
+     * @param nutrient the nutrient
+     * @param limit    the maximum amount (inclusive)
+     * @return the amount of matching foods
+     */
+    public int countAtMost(Nutrient nutrient, double limit) {
+        lock.readLock().lock();
+        try {
+            return firstAbove(nutrient.ordinal(), limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a food to the index, replacing the previous version if the ID was already indexed
+     * The index keeps a copy, later changes to the food are not seen by it
+     *
+     * @param added the food
+     */
+    public void add(Food added) {
+        Food food = added.copy();
+        lock.writeLock().lock();
+        try {
+            Food previous = foodsById.remove(food.getId());
+            if (previous != null) {
+                removeFromArrays(previous);
+            }
+            foodsById.put(food.getId(), food);
+
+            if (size == values[0].length) {
+                grow();
+            }
+            for (Nutrient nutrient : Nutrient.values()) {
+                int n = nutrient.ordinal();
+                //The search misses (the food was removed), so it returns -(insertion point) - 1
+                int position = -find(n, nutrient.of(food), food.getId()) - 1;
+                System.arraycopy(values[n], position, values[n], position + 1, size - position);
+                System.arraycopy(ids[n], position, ids[n], position + 1, size - position);
+                System.arraycopy(foods[n], position, foods[n], position + 1, size - position);
+                values[n][position] = nutrient.of(food);
+                ids[n][position] = food.getId();
+                foods[n][position] = food;
+            }
+            size++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a food from the index
+     *
+     * @param foodId the ID of the food
+     * @return true if the food was indexed
+     */
+    public boolean remove(int foodId) {
+        lock.writeLock().lock();
+        try {
+            Food food = foodsById.remove(foodId);
+            if (food == null) {
+                return false;
+            }
+            removeFromArrays(food);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the amount of indexed foods
+     *
+     * @return the size of the index
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Removes an indexed food from the sorted arrays
+     * Requires the write lock
+     *
+     * @param food the copy of the food that was indexed
+     */
+    private void removeFromArrays(Food food) {
+        for (Nutrient nutrient : Nutrient.values()) {
+            int n = nutrient.ordinal();
+            int position = find(n, nutrient.of(food), food.getId());
+            System.arraycopy(values[n], position + 1, values[n], position, size - position - 1);
+            System.arraycopy(ids[n], position + 1, ids[n], position, size - position - 1);
+            System.arraycopy(foods[n], position + 1, foods[n], position, size - position - 1);
+            foods[n][size - 1] = null;
+        }
+        size--;
+    }
+
+    /**
+     * Doubles the capacity of the arrays
+     * Requires the write lock
+     */
+    private void grow() {
+        int capacity = values[0].length * 2;
+        for (int n = 0; n < values.length; n++) {
+            values[n] = Arrays.copyOf(values[n], capacity);
+            ids[n] = Arrays.copyOf(ids[n], capacity);
+            foods[n] = Arrays.copyOf(foods[n], capacity);
+        }
+    }
+
+    /**
+     * Finds the position of the first food containing more than an amount of a nutrient
+     *
+     * @param n     the nutrient's ordinal
+     * @param limit the amount
+     * @return the position, or size if no food contains more
+     */
+    private int firstAbove(int n, double limit) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (values[n][middle] <= limit) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Finds the position of a food in the arrays of a nutrient, using the (amount, ID) order
+     *
+     * @param n      the nutrient's ordinal
+     * @param value  the food's amount of the nutrient
+     * @param foodId the food's ID
+     * @return the position of the food, or -(insertion point) - 1 if it's not there, like Arrays.binarySearch
+     */
+    private int find(int n, double value, int foodId) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = compare(values[n][middle], ids[n][middle], value, foodId);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Copies a range of the foods of a nutrient into a list
+     *
+     * @param n     the nutrient's ordinal
+     * @param start the first position (inclusive)
+     * @param end   the last position (exclusive)
+     * @return copies of the foods
+     */
+    private ArrayList<Food> copy(int n, int start, int end) {
+        ArrayList<Food> result = new ArrayList<>(end - start);
+        for (int position = start; position < end; position++) {
+            result.add(foods[n][position].copy());
+        }
+        return result;
+    }
+
+    /**
+     * Compares two foods in the (amount, ID) order of the arrays
+     *
+     * @param value1 the amount of the first food
+     * @param id1    the ID of the first food
+     * @param value2 the amount of the second food
+     * @param id2    the ID of the second food
+     * @return a negative number, zero or a positive number if the first food comes before, with or after the second
+     */
+    private static int compare(double value1, int id1, double value2, int id2) {
+        int comparison = Double.compare(value1, value2);
+        return comparison != 0 ? comparison : Integer.compare(id1, id2);
+    }
+
+    /**
+     * Sorts the first size elements of three parallel arrays in the (amount, ID) order
+     * A bottom-up merge sort, so the amounts are never boxed
+     *
+     * @param values the amounts
+     * @param ids    the IDs
+     * @param foods  the foods
+     * @param size   the amount of elements to sort
+     */
+    private static void sort(double[] values, int[] ids, Food[] foods, int size) {
+        double[] valueBuffer = new double[size];
+        int[] idBuffer = new int[size];
+        Food[] foodBuffer = new Food[size];
+
+        for (int width = 1; width < size; width *= 2) {
+            for (int start = 0; start < size - width; start += 2 * width) {
+                int middle = start + width;
+                int end = Math.min(start + 2 * width, size);
+
+                //Merge [start, middle) and [middle, end) into the buffers, then copy them back
+                int left = start;
+                int right = middle;
+                int out = start;
+                while (left < middle && right < end) {
+                    int from = compare(values[left], ids[left], values[right], ids[right]) <= 0 ? left++ : right++;
+                    valueBuffer[out] = values[from];
+                    idBuffer[out] = ids[from];
+                    foodBuffer[out] = foods[from];
+                    out++;
+                }
+                int from = left < middle ? left : right;
+                int remaining = end - out;
+                System.arraycopy(values, from, valueBuffer, out, remaining);
+                System.arraycopy(ids, from, idBuffer, out, remaining);
+                System.arraycopy(foods, from, foodBuffer, out, remaining);
+
+                System.arraycopy(valueBuffer, start, values, start, end - start);
+                System.arraycopy(idBuffer, start, ids, start, end - start);
+                System.arraycopy(foodBuffer, start, foods, start, end - start);
+            }
+        }
+    }
+}
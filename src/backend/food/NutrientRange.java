@@ -0,0 +1,121 @@
+package backend.food;
+
+import java.util.Arrays;
+
+/**
+ * The NutrientRange class describes a box-shaped question across all nutrients at once,
+ * e.g. "calories between 300 and 500, at least 25 proteins and at most 40 carbs".
+ * Each nutrient is limited by an inclusive minimum and maximum, a nutrient without limits matches every amount.
+ *
+ * @author taconoodle
+ */
+public class NutrientRange {
+    /**
+     * The minimum amount of each nutrient (by ordinal), inclusive
+     */
+    private final double[] min = new double[Nutrient.values().length];
+
+    /**
+     * The maximum amount of each nutrient (by ordinal), inclusive
+     */
+    private final double[] max = new double[Nutrient.values().length];
+
+    /**
+     * Default constructor
+     * Creates a range that matches every food
+     */
+    public NutrientRange() {
+        Arrays.fill(min, Double.NEGATIVE_INFINITY);
+        Arrays.fill(max, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Keeps the foods with at least the given amount of a nutrient
+     *
+     * @param nutrient the nutrient
+     * @param amount   the minimum amount (inclusive)
+     * @return self
+     */
+    public NutrientRange atLeast(Nutrient nutrient, double amount) {
+        min[nutrient.ordinal()] = amount;
+        return this;
+    }
+
+    /**
+     * Keeps the foods with at most the given amount of a nutrient
+     *
+     * @param nutrient the nutrient
+     * @param amount   the maximum amount (inclusive)
+     * @return self
+     */
+    public NutrientRange atMost(Nutrient nutrient, double amount) {
+        max[nutrient.ordinal()] = amount;
+        return this;
+    }
+
+    /**
+     * Keeps the foods whose amount of a nutrient is within a range
+     *
+     * @param nutrient the nutrient
+     * @param min      the minimum amount (inclusive)
+     * @param max      the maximum amount (inclusive)
+     * @return self
+     */
+    public NutrientRange between(Nutrient nutrient, double min, double max) {
+        return atLeast(nutrient, min).atMost(nutrient, max);
+    }
+
+    /**
+     * Gets the minimum amount of a nutrient
+     *
+     * @param nutrient the nutrient
+     * @return the minimum amount, negative infinity if there is none
+     */
+    public double getMin(Nutrient nutrient) {
+        return min[nutrient.ordinal()];
+    }
+
+    /**
+     * Gets the maximum amount of a nutrient
+     *
+     * @param nutrient the nutrient
+     * @return the maximum amount, positive infinity if there is none
+     */
+    public double getMax(Nutrient nutrient) {
+        return max[nutrient.ordinal()];
+    }
+
+    /**
+     * Checks if a food is within the range
+     *
+     * @param food the food
+     * @return true if every nutrient of the food is within its limits
+     */
+    public boolean contains(Food food) {
+        for (Nutrient nutrient : Nutrient.values()) {
+            double amount = nutrient.of(food);
+            if (amount < min[nutrient.ordinal()] || amount > max[nutrient.ordinal()]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Converts the range to a database query with the same limits
+     *
+     * @return the query
+     */
+    public FoodQuery toQuery() {
+        FoodQuery query = new FoodQuery();
+        for (Nutrient nutrient : Nutrient.values()) {
+            if (min[nutrient.ordinal()] != Double.NEGATIVE_INFINITY) {
+                query.atLeast(nutrient, min[nutrient.ordinal()]);
+            }
+            if (max[nutrient.ordinal()] != Double.POSITIVE_INFINITY) {
+                query.atMost(nutrient, max[nutrient.ordinal()]);
+            }
+        }
+        return query;
+    }
+}
@@ -0,0 +1,354 @@
+package backend.food;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The NutrientTree class is a k-d tree over the (calories, proteins, carbs) of the food catalog.
+ * It answers box-shaped questions across all nutrients at once (see NutrientRange) by visiting only the parts of
+ * the tree that overlap the box, instead of intersecting the results of one query per nutrient.
+ * <p>
+ * The tree is implicit: the foods are kept in an array, and the node of a subarray is the food in its middle.
+ * Each node splits its subarray by one nutrient (in turn, by depth) and keeps the bounding box of its whole subtree.
+ * A subtree whose box is entirely inside the question is taken (or counted) whole without visiting it,
+ * so count-only questions cost about as much as the box's border, not its content.
+ * <p>
+ * The tree can't be changed once built, it's rebuilt when the catalog is reloaded.
+ * Large trees are built in parallel on the common fork/join pool.
+ *
+ * @author taconoodle
+ */
+public class NutrientTree {
+    /**
+     * The size of the subarrays below which the build doesn't split into parallel tasks anymore
+     */
+    private static final int PARALLEL_THRESHOLD = 4096;
+
+    /**
+     * The amount of dimensions, one per nutrient
+     */
+    private static final int DIMENSIONS = Nutrient.values().length;
+
+    /**
+     * The foods, in tree order
+     */
+    private final Food[] foods;
+
+    /**
+     * The amounts of each nutrient (by ordinal), parallel to foods
+     */
+    private final double[][] coordinates;
+
+    /**
+     * The minimum amounts of each nutrient in the subtree of each node
+     */
+    private final double[][] boxMin;
+
+    /**
+     * The maximum amounts of each nutrient in the subtree of each node
+     */
+    private final double[][] boxMax;
+
+    /**
+     * Default constructor
+     * Builds the tree, in parallel if the catalog is large
+     *
+     * @param catalog the foods to index
+     */
+    public NutrientTree(Collection<Food> catalog) {
+        this.foods = catalog.toArray(new Food[0]);
+        this.coordinates = new double[DIMENSIONS][foods.length];
+        this.boxMin = new double[DIMENSIONS][foods.length];
+        this.boxMax = new double[DIMENSIONS][foods.length];
+
+        for (Nutrient nutrient : Nutrient.values()) {
+            for (int i = 0; i < foods.length; i++) {
+                coordinates[nutrient.ordinal()][i] = nutrient.of(foods[i]);
+            }
+        }
+        ForkJoinPool.commonPool().invoke(new Build(0, foods.length, 0));
+    }
+
+    /**
+     * Gets the amount of indexed foods
+     *
+     * @return the size of the tree
+     */
+    public int size() {
+        return foods.length;
+    }
+
+    /**
+     * Gets the foods within a range
+     *
+     * @param range the range
+     * @return an ArrayList of the matching foods, in no particular order
+     */
+    public ArrayList<Food> find(NutrientRange range) {
+        ArrayList<Food> result = new ArrayList<>();
+        find(0, foods.length, limits(range, true), limits(range, false), result);
+        return result;
+    }
+
+    /**
+     * Counts the foods within a range, without collecting them
+     *
+     * @param range the range
+     * @return the amount of matching foods
+     */
+    public int count(NutrientRange range) {
+        return count(0, foods.length, limits(range, true), limits(range, false));
+    }
+
+    /**
+     * Collects the foods of a subtree that are within a range
+     *
+     * @param low    the start of the subtree's subarray (inclusive)
+     * @param high   the end of the subtree's subarray (exclusive)
+     * @param min    the minimum of each nutrient
+     * @param max    the maximum of each nutrient
+     * @param result the list the matching foods are added to
+     */
+    private void find(int low, int high, double[] min, double[] max, ArrayList<Food> result) {
+        if (low >= high) {
+            return;
+        }
+        int node = (low + high) >>> 1;
+        if (isDisjoint(node, min, max)) {
+            return;
+        }
+        if (isInside(node, min, max)) {
+            for (int i = low; i < high; i++) {
+                result.add(foods[i]);
+            }
+            return;
+        }
+        if (contains(node, min, max)) {
+            result.add(foods[node]);
+        }
+        find(low, node, min, max, result);
+        find(node + 1, high, min, max, result);
+    }
+
+    /**
+     * Counts the foods of a subtree that are within a range
+     *
+     * @param low  the start of the subtree's subarray (inclusive)
+     * @param high the end of the subtree's subarray (exclusive)
+     * @param min  the minimum of each nutrient
+     * @param max  the maximum of each nutrient
+     * @return the amount of matching foods
+     */
+    private int count(int low, int high, double[] min, double[] max) {
+        if (low >= high) {
+            return 0;
+        }
+        int node = (low + high) >>> 1;
+        if (isDisjoint(node, min, max)) {
+            return 0;
+        }
+        if (isInside(node, min, max)) {
+            return high - low;
+        }
+        return (contains(node, min, max) ? 1 : 0)
+                + count(low, node, min, max)
+                + count(node + 1, high, min, max);
+    }
+
+    /**
+     * Checks if the bounding box of a subtree doesn't overlap a range
+     *
+     * @param node the subtree's node
+     * @param min  the minimum of each nutrient
+     * @param max  the maximum of each nutrient
+     * @return true if no food of the subtree can be within the range
+     */
+    private boolean isDisjoint(int node, double[] min, double[] max) {
+        for (int d = 0; d < DIMENSIONS; d++) {
+            if (boxMax[d][node] < min[d] || boxMin[d][node] > max[d]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks if the bounding box of a subtree is entirely inside a range
+     *
+     * @param node the subtree's node
+     * @param min  the minimum of each nutrient
+     * @param max  the maximum of each nutrient
+     * @return true if every food of the subtree is within the range
+     */
+    private boolean isInside(int node, double[] min, double[] max) {
+        for (int d = 0; d < DIMENSIONS; d++) {
+            if (boxMin[d][node] < min[d] || boxMax[d][node] > max[d]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if the food of a node is within a range
+     *
+     * @param node the node
+     * @param min  the minimum of each nutrient
+     * @param max  the maximum of each nutrient
+     * @return true if the food is within the range
+     */
+    private boolean contains(int node, double[] min, double[] max) {
+        for (int d = 0; d < DIMENSIONS; d++) {
+            if (coordinates[d][node] < min[d] || coordinates[d][node] > max[d]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies the limits of a range into an array indexed by nutrient ordinal
+     *
+     * @param range   the range
+     * @param minimum true for the minimums, false for the maximums
+     * @return the limits
+     */
+    private static double[] limits(NutrientRange range, boolean minimum) {
+        double[] limits = new double[DIMENSIONS];
+        for (Nutrient nutrient : Nutrient.values()) {
+            limits[nutrient.ordinal()] = minimum ? range.getMin(nutrient) : range.getMax(nutrient);
+        }
+        return limits;
+    }
+
+    /**
+     * Builds the subtree of a subarray: places its median (by the nutrient of its depth) in the middle,
+     * builds the two halves and then calculates the subtree's bounding box
+     */
+    private class Build extends RecursiveAction {
+        /**
+         * The version of the serialized form
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The start of the subarray (inclusive)
+         */
+        private final int low;
+
+        /**
+         * The end of the subarray (exclusive)
+         */
+        private final int high;
+
+        /**
+         * The depth of the subtree's node, which decides the nutrient it splits by
+         */
+        private final int depth;
+
+        /**
+         * Default constructor
+         *
+         * @param low   the start of the subarray (inclusive)
+         * @param high  the end of the subarray (exclusive)
+         * @param depth the depth of the subtree's node
+         */
+        Build(int low, int high, int depth) {
+            this.low = low;
+            this.high = high;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute() {
+            if (low >= high) {
+                return;
+            }
+            int node = (low + high) >>> 1;
+            select(low, high - 1, node, depth % DIMENSIONS);
+
+            Build left = new Build(low, node, depth + 1);
+            Build right = new Build(node + 1, high, depth + 1);
+            if (high - low > PARALLEL_THRESHOLD) {
+                invokeAll(left, right);
+            } else {
+                left.compute();
+                right.compute();
+            }
+
+            //The box of the subtree is the node's food together with the boxes of both halves
+            for (int d = 0; d < DIMENSIONS; d++) {
+                double min = coordinates[d][node];
+                double max = coordinates[d][node];
+                if (low < node) {
+                    int leftNode = (low + node) >>> 1;
+                    min = Math.min(min, boxMin[d][leftNode]);
+                    max = Math.max(max, boxMax[d][leftNode]);
+                }
+                if (node + 1 < high) {
+                    int rightNode = (node + 1 + high) >>> 1;
+                    min = Math.min(min, boxMin[d][rightNode]);
+                    max = Math.max(max, boxMax[d][rightNode]);
+                }
+                boxMin[d][node] = min;
+                boxMax[d][node] = max;
+            }
+        }
+    }
+
+    /**
+     * Rearranges a subarray so the food at position k is the one that would be there if the subarray was sorted by
+     * a nutrient, with no larger amount before it and no smaller amount after it (Hoare's selection)
+     *
+     * @param left      the start of the subarray (inclusive)
+     * @param right     the end of the subarray (inclusive)
+     * @param k         the position to fill
+     * @param dimension the nutrient's ordinal
+     */
+    private void select(int left, int right, int k, int dimension) {
+        double[] values = coordinates[dimension];
+        while (left < right) {
+            double pivot = values[k];
+            int i = left;
+            int j = right;
+            do {
+                while (values[i] < pivot) {
+                    i++;
+                }
+                while (pivot < values[j]) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i, j);
+                    i++;
+                    j--;
+                }
+            } while (i <= j);
+            if (j < k) {
+                left = i;
+            }
+            if (k < i) {
+                right = j;
+            }
+        }
+    }
+
+    /**
+     * Swaps two foods, along with their amounts
+     *
+     * @param i the position of the first food
+     * @param j the position of the second food
+     */
+    private void swap(int i, int j) {
+        Food food = foods[i];
+        foods[i] = foods[j];
+        foods[j] = food;
+        for (int d = 0; d < DIMENSIONS; d++) {
+            double value = coordinates[d][i];
+            coordinates[d][i] = coordinates[d][j];
+            coordinates[d][j] = value;
+        }
+    }
+}
@@ -2,11 +2,12 @@ package backend.food;
 
 import java.util.ArrayList;
 
-import static backend.food.RecipeManager.QUANTITY_BASE;
-
 /**
  * The Recipe class represents a record of a recipe.
  * A recipe is a kind of food that constists of other foods
+ * <p>
+ * The nutrients of a recipe are the totals of its ingredients, plus its own nutrients (set with the setters of Food)
+ * for the part of the recipe whose ingredients are not listed, e.g. a sub-recipe loaded with its totals only.
  *
  * @author taconoodle
  */
@@ -14,7 +15,7 @@ public class Recipe extends Food {
     /**
      * Contains the ingredients of the recipe
      */
-    private ArrayList<RecipeIngredient> ingredients;
+    private final IngredientList ingredients;
 
     /**
      * Default constructor
@@ -26,51 +27,75 @@ public class Recipe extends Food {
     public Recipe(int id, String brand, String description) {
         super(id, brand, description, 0, 0, 0);
 
-        this.ingredients = new ArrayList<RecipeIngredient>();
+        this.ingredients = new IngredientList();
     }
 
     /**
      * Gets the recipe's ingredients
      *
-     * @return an ArrayList containing the recipe's ingredients
+     * @return a new ArrayList containing the recipe's ingredients, changing it doesn't change the recipe
      */
     public ArrayList<RecipeIngredient> getIngredients() {
+        return ingredients.toList();
+    }
+
+    /**
+     * Gets the recipe's ingredients without copying them
+     *
+     * @return the recipe's ingredient list
+     */
+    public IngredientList getIngredientList() {
         return ingredients;
     }
 
     /**
-     * Changes the list containing the recipe's ingredients
+     * Replaces the recipe's ingredients
      *
      * @param ingredients the new list of the ingredients
      */
     public void setIngredients(ArrayList<RecipeIngredient> ingredients) {
-        this.ingredients = ingredients;
+        this.ingredients.clear();
+        for (RecipeIngredient ingredient : ingredients) {
+            this.ingredients.add(ingredient);
+        }
     }
 
     /**
-     * Adds an ingredient to the recipe and updates the recipe's nutritional info
+     * Adds an ingredient to the recipe, or adds to its quantity if the food is already an ingredient
      *
-     * @param ingredient
+     * @param ingredient the ingredient
      */
     public void addIngredient(RecipeIngredient ingredient) {
-        this.ingredients.add(ingredient);
-
-        this.setCalories(this.getCalories() + ingredient.getCalories());
-        this.setProteins(this.getProteins() + ingredient.getProteins());
-        this.setCarbs(this.getCarbs() + ingredient.getCarbs());
+        ingredients.add(ingredient);
     }
 
     /**
-     * Removes an ingredient from the recipe and updates the recipe's nutritional info
+     * Removes an ingredient from the recipe, whatever its quantity
      *
-     * @param ingredient
+     * @param ingredient the ingredient
      */
     public void removeIngredient(RecipeIngredient ingredient) {
-        ingredients.remove(ingredient);
+        ingredients.remove(ingredient.getFood());
+    }
 
-        this.setCalories(this.getCalories() - ingredient.getCalories());
-        this.setProteins(this.getProteins() - ingredient.getProteins());
-        this.setCarbs(this.getCarbs() - ingredient.getCarbs());
+    /**
+     * Removes an ingredient from the recipe using its food
+     *
+     * @param foodId the ID of the food
+     * @return true if the food was an ingredient
+     */
+    public boolean removeIngredient(int foodId) {
+        return ingredients.remove(foodId);
+    }
+
+    /**
+     * Gets the recipe's calories, proteins and carbs
+     *
+     * @return the macros of the ingredients, plus the recipe's own
+     */
+    @Override
+    public Macros getMacros() {
+        return super.getMacros().plus(ingredients.getTotals());
     }
 
     /**
@@ -81,9 +106,9 @@ public class Recipe extends Food {
     @Override
     public String toString() {
         StringBuilder result = new StringBuilder(super.toString() + "\nIngredients:");
-        for (RecipeIngredient ingredient: ingredients) {
-            result.append("\n\t").append(ingredient.toString());
+        for (int i = 0; i < ingredients.size(); i++) {
+            result.append("\n\t").append(ingredients.get(i).toString());
         }
         return result.toString();
     }
-}
\ No newline at end of file
+}
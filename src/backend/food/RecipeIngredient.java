@@ -1,7 +1,5 @@
 package backend.food;
 
-import static backend.food.RecipeManager.QUANTITY_BASE;
-
 /**
  * The RecipeIngredient represents a record of an ingredient that belongs to a recipe.
  * It contains the Food that's actually the ingredient
@@ -65,13 +63,23 @@ public class RecipeIngredient {
         this.quantity = quantity;
     }
 
+    /**
+     * Calculates the calories, proteins and carbs the ingredient contains, in fixed point
+     * The food's macros are given per QUANTITY_BASE grams
+     *
+     * @return the macros of the ingredient
+     */
+    public Macros getMacros() {
+        return this.food.getMacros().scale(Macros.toMilli(this.quantity));
+    }
+
     /**
      * Calculates the amount of calories the ingredient contains
      *
      * @return the calorie amount
      */
     public double getCalories() {
-        return this.food.getCalories() * this.quantity / QUANTITY_BASE;
+        return getMacros().getCalories();
     }
 
     /**
@@ -80,7 +88,7 @@ public class RecipeIngredient {
      * @return the protein amount
      */
     public double getProteins() {
-        return this.food.getProteins() * this.quantity / QUANTITY_BASE;
+        return getMacros().getProteins();
     }
 
     /**
@@ -89,7 +97,7 @@ public class RecipeIngredient {
      * @return the carb amount
      */
     public double getCarbs() {
-        return this.food.getCarbs() * this.quantity / QUANTITY_BASE;
+        return getMacros().getCarbs();
     }
 
     /**
@@ -1,22 +1,51 @@
 package backend.food;
 
+import backend.database.BatchWriter;
+import backend.database.DatabaseManager;
+
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import static backend.food.FoodManager.rowToFood;
 
 /**
  * The RecipeManager class manages the recipes and the ingredients both in the backend and in the database while acting as a bridge among them
+ * <p>
+ * The evaluated nutrition of the recipes is memoized, and the memo can be shared with other RecipeManagers by
+ * constructing them with getNutritionCache().
+ * foodChanged must be registered with FoodManager.addFoodListener for food corrections to reach the memoized
+ * recipes at once; other changes (other processes, imports) are seen when the memoized recipes expire
+ * (see setNutritionCacheTtl).
  *
  * @author taconoodle
  */
 public class RecipeManager {
 
     /**
-     * A database connection
-     * The RecipeManager instance will use this connection as its main database connection for its methods
+     * The database manager
+     * The RecipeManager instance borrows a pooled connection from it for each of its methods
+     */
+    private final DatabaseManager dbManager;
+
+    /**
+     * The amount of rows the batch methods send to the database at once
+     */
+    private int batchSize = BatchWriter.DEFAULT_BATCH_SIZE;
+
+    /**
+     * The memoized nutrition of the recipes, sub-recipes included, possibly shared with other RecipeManagers
+     */
+    private final RecipeNutritionCache nutritionCache;
+
+    /**
+     * Arbitrary key of the advisory lock that serializes sub-recipe inserts, so two of them can't close a cycle together
      */
-    Connection conn;
+    private static final long SUB_RECIPE_LOCK_KEY = 0x7375627265636970L;
 
     /**
      * Used as the gram basis in the quantities of the ingredients
@@ -26,20 +55,144 @@ public class RecipeManager {
      */
     protected static final double QUANTITY_BASE = 100;
 
+    /**
+     * The start of the queries recomputing the nutrients of recipes from their ingredients,
+     * to be followed by a WHERE and GROUP BY r.id
+     * Recipes without ingredients are kept by the LEFT JOINs and get zero totals
+     */
+    private static final String NUTRITION_SQL = "SELECT r.id, " +
+            "coalesce(sum(f.calories * ing.quantity), 0) / " + QUANTITY_BASE + " AS calories, " +
+            "coalesce(sum(f.protein * ing.quantity), 0) / " + QUANTITY_BASE + " AS protein, " +
+            "coalesce(sum(f.carbs * ing.quantity), 0) / " + QUANTITY_BASE + " AS carbs " +
+            "FROM Recipe r " +
+            "LEFT JOIN Ingredients ing ON ing.recipe_id = r.id " +
+            "LEFT JOIN Food f ON f.id = ing.food_id ";
+
+    /*
+    The Recipe table stores the totals of each recipe, so they are read with a single primary key lookup.
+    Every statement below changes an ingredient and applies the difference it makes to the recipe's totals,
+    as a single SQL statement, so the two can never be written apart. Batched inserts are the exception: their rows
+    are inserted alone and added to the totals by ADDED_TOTALS_SQL before the transaction commits.
+    The totals only drift if the foods themselves change, which repairRecipeTotals() fixes.
+     */
+
+    /**
+     * Inserts an ingredient (recipe_id, food_id, quantity) and adds its nutrients to the recipe's totals
+     */
+    private static final String INSERT_INGREDIENT_SQL = "WITH added AS (" +
+            "INSERT INTO Ingredients (recipe_id, food_id, quantity) VALUES (?, ?, ?) " +
+            "RETURNING recipe_id, food_id, quantity AS delta) " +
+            totalsUpdate("added");
+
+    /**
+     * Inserts an ingredient row (recipe_id, food_id, quantity) alone, so batches of it can be rewritten into
+     * multi-row inserts by the driver. ADDED_TOTALS_SQL then adds the inserted rows to the recipe's totals at once.
+     */
+    private static final String INSERT_INGREDIENT_ROW_SQL =
+            "INSERT INTO Ingredients (recipe_id, food_id, quantity) VALUES (?, ?, ?)";
+
+    /**
+     * Adds the nutrients of some ingredients of a recipe (recipe_id, food_id array) to the recipe's totals,
+     * in the transaction that inserted them
+     */
+    private static final String ADDED_TOTALS_SQL = "WITH added AS (" +
+            "SELECT recipe_id, food_id, quantity AS delta FROM Ingredients " +
+            "WHERE recipe_id = ? AND food_id = ANY(?)) " +
+            totalsUpdate("added");
+
+    /**
+     * Changes the quantity of an ingredient (quantity, recipe_id, food_id) and adds the difference to the recipe's totals
+     */
+    private static final String UPDATE_QUANTITY_SQL = "WITH changed AS (" +
+            "UPDATE Ingredients ing SET quantity = ? " +
+            //The joined row is the version before the update, so the difference of the quantities can be returned
+            "FROM Ingredients old " +
+            "WHERE old.recipe_id = ing.recipe_id AND old.food_id = ing.food_id " +
+            "AND ing.recipe_id = ? AND ing.food_id = ? " +
+            "RETURNING ing.recipe_id, ing.food_id, ing.quantity - old.quantity AS delta) " +
+            totalsUpdate("changed");
+
+    /**
+     * Deletes an ingredient (recipe_id, food_id) and subtracts its nutrients from the recipe's totals
+     */
+    private static final String DELETE_INGREDIENT_SQL = "WITH removed AS (" +
+            "DELETE FROM Ingredients WHERE recipe_id = ? AND food_id = ? " +
+            "RETURNING recipe_id, food_id, -quantity AS delta) " +
+            totalsUpdate("removed");
+
     /**
      * Default constructor
+     * The RecipeManager memoizes the evaluated recipes on its own
+     *
+     * @param dbManager the database manager the connections are borrowed from
+     */
+    public RecipeManager(DatabaseManager dbManager) {
+        this(dbManager, new RecipeNutritionCache());
+    }
+
+    /**
+     * Constructor sharing the memoized recipes with other RecipeManagers of the same database,
+     * so the changes made through any of them are seen by all
+     *
+     * @param dbManager      the database manager the connections are borrowed from
+     * @param nutritionCache the memoized recipes, e.g. another RecipeManager's getNutritionCache()
+     */
+    public RecipeManager(DatabaseManager dbManager, RecipeNutritionCache nutritionCache) {
+        this.dbManager = dbManager;
+        this.nutritionCache = nutritionCache;
+    }
+
+    /**
+     * Gets the memoized recipes, to share them with another RecipeManager of the same database
+     *
+     * @return the nutrition cache
+     */
+    public RecipeNutritionCache getNutritionCache() {
+        return nutritionCache;
+    }
+
+    /**
+     * Builds the UPDATE that applies the changed quantities of ingredients to the totals of their recipes
+     * The foods are locked in share mode, so a correction of their nutrients (FoodManager.updateFoodNutrients)
+     * either waits for the transaction or is waited for, and the totals are priced with the committed nutrients
+     *
+     * @param changes the name of the CTE returning (recipe_id, food_id, delta), delta being the change of the quantity
+     * @return the SQL statement
+     */
+    private static String totalsUpdate(String changes) {
+        return "UPDATE Recipe r SET " +
+                "calories = r.calories + f.calories * c.delta / " + QUANTITY_BASE + ", " +
+                "protein = r.protein + f.protein * c.delta / " + QUANTITY_BASE + ", " +
+                "carbs = r.carbs + f.carbs * c.delta / " + QUANTITY_BASE + " " +
+                "FROM " + changes + " c JOIN (SELECT id, calories, protein, carbs FROM Food " +
+                "WHERE id IN (SELECT food_id FROM " + changes + ") FOR SHARE) f ON f.id = c.food_id " +
+                "WHERE r.id = c.recipe_id";
+    }
+
+    /**
+     * Changes the amount of rows the batch methods (addIngredients) send to the database at once
+     *
+     * @param batchSize the new batch size
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Changes how long the evaluated nutrition of a recipe is memoized, for every RecipeManager sharing the cache
+     * It bounds how long changes made outside of them (another process, an import) go unseen
      *
-     * @param conn the main database connection
+     * @param ttlMillis the new time to live, in milliseconds, 0 to not memoize at all
      */
-    public RecipeManager(Connection conn) {
-        this.conn = conn;
+    public void setNutritionCacheTtl(long ttlMillis) {
+        nutritionCache.setTtlMillis(ttlMillis);
     }
 
     /**
      * Converts a database row to a Recipe object
      *
      * @param recipeResultSet   a result set, the row of which contains the data needed
-     * @param recipeIngredients an ArrayList containing the ingredients that will be moved to the Recipe
+     * @param recipeIngredients an ArrayList containing the ingredients that will be added to the Recipe
      * @return the created Recipe object
      * @throws SQLException if a database error is encountered
      */
@@ -51,9 +204,9 @@ public class RecipeManager {
                 recipeResultSet.getString("description")
         );
 
-        //Move the ingredients inside the Recipe object
-        while (!recipeIngredients.isEmpty()) {
-            recipe.addIngredient(recipeIngredients.removeFirst());
+        //Add the ingredients to the Recipe object
+        for (RecipeIngredient ingredient : recipeIngredients) {
+            recipe.addIngredient(ingredient);
         }
         return recipe;
     }
@@ -66,70 +219,372 @@ public class RecipeManager {
      * @throws SQLException if a database error is encountered
      */
     public Recipe getRecipe(int recipeId) throws SQLException {
-        PreparedStatement statement = null;
-        try {
-            //First we get the recipe's data from the Recipe table in the database
-            String sql = "SELECT id, name, description FROM Recipe WHERE id = ?";
-            statement = conn.prepareStatement(sql);
+        //First we get the recipe's data from the Recipe table in the database
+        String sql = "SELECT id, name, description FROM Recipe WHERE id = ?";
+
+        //Borrow a connection for this operation, closing it returns it to the pool
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement statement = conn.prepareStatement(sql)) {
             statement.setInt(1, recipeId);
 
             ResultSet rs = statement.executeQuery();
 
             //We give the rowToRecipe function the recipe data we pulled and tell it to get the ingredients using the corresponding method
+            //The ingredients are read on the same connection, so a single operation never holds two pooled connections
             if (rs.next()) {
-                return rowToRecipe(rs, getIngredients(recipeId));
+                Recipe recipe = rowToRecipe(rs, getIngredients(conn, recipeId));
+                addSubRecipes(conn, Map.of(recipeId, recipe));
+                return recipe;
             }
             return null;
         } catch (SQLException e) {
             //Report the error and then throw it above
             System.err.println("SQL Database error: " + e.getMessage());
             return null;
-        } finally {
-            //Close the statement to avoid leakages
-            statement.close();
+        }
+    }
+
+    /**
+     * Queries the database for many recipes at once
+     * The recipes and all of their ingredients are read with two queries, however many recipes are requested
+     *
+     * @param recipeIds the IDs of the requested recipes
+     * @return an ArrayList of the recipes ordered by ID, the recipes that do not exist are left out
+     * @throws SQLException if a database error is encountered
+     */
+    public ArrayList<Recipe> getRecipes(Collection<Integer> recipeIds) throws SQLException {
+        String sql = "SELECT id, name, description FROM Recipe WHERE id = ANY(?) ORDER BY id";
+
+        //Borrow a connection for this operation, closing it returns it to the pool
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement statement = conn.prepareStatement(sql)) {
+            statement.setArray(1, conn.createArrayOf("integer", recipeIds.toArray()));
+            return assembleRecipes(conn, statement.executeQuery());
+        } catch (SQLException e) {
+            System.err.println("SQL Database error: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Queries the database for a page of all the recipes, ordered by ID
+     * Pages are found by ID (keyset pagination), so every page costs the same however far it is
+     *
+     * @param afterId  the ID of the last recipe of the previous page, or Integer.MIN_VALUE for the first page
+     * @param pageSize the maximum amount of recipes in the page
+     * @return an ArrayList of the recipes of the page, empty after the last page
+     * @throws SQLException if a database error is encountered
+     */
+    public ArrayList<Recipe> getRecipes(int afterId, int pageSize) throws SQLException {
+        String sql = "SELECT id, name, description FROM Recipe WHERE id > ? ORDER BY id LIMIT ?";
+
+        //Borrow a connection for this operation, closing it returns it to the pool
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement statement = conn.prepareStatement(sql)) {
+            statement.setInt(1, afterId);
+            statement.setInt(2, pageSize);
+            return assembleRecipes(conn, statement.executeQuery());
+        } catch (SQLException e) {
+            System.err.println("SQL Database error: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Creates the Recipe objects of a result set of recipe rows and fills in their ingredients,
+     * all of them read with a single query
+     * A food used by several of the recipes is created once and shared by their ingredients
+     *
+     * @param conn    the connection to use
+     * @param headers a result set of rows of the Recipe table
+     * @return an ArrayList of the recipes, in the order of the result set
+     * @throws SQLException if a database error is encountered
+     */
+    private ArrayList<Recipe> assembleRecipes(Connection conn, ResultSet headers) throws SQLException {
+        LinkedHashMap<Integer, Recipe> recipes = new LinkedHashMap<>();
+        while (headers.next()) {
+            Recipe recipe = rowToRecipe(headers, new ArrayList<>());
+            recipes.put(recipe.getId(), recipe);
+        }
+        if (recipes.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        String sql = "SELECT f.id, f.brand, f.description, f.calories, f.protein, f.carbs, ing.quantity, ing.recipe_id " +
+                "FROM Ingredients ing " +
+                "JOIN Food f ON f.id = ing.food_id " +
+                "WHERE ing.recipe_id = ANY(?)";
+
+        try (PreparedStatement statement = conn.prepareStatement(sql)) {
+            statement.setArray(1, conn.createArrayOf("integer", recipes.keySet().toArray()));
+            ResultSet rs = statement.executeQuery();
+
+            HashMap<Integer, Food> foods = new HashMap<>();
+            while (rs.next()) {
+                Food food = foods.get(rs.getInt(1));
+                if (food == null) {
+                    food = rowToFood(rs);
+                    foods.put(food.getId(), food);
+                }
+                recipes.get(rs.getInt(8)).addIngredient(new RecipeIngredient(food, rs.getDouble(7)));
+            }
+        }
+        addSubRecipes(conn, recipes);
+        return new ArrayList<>(recipes.values());
+    }
+
+    /**
+     * Adds the sub-recipes of some recipes to their ingredients, read with a single query
+     * Each sub-recipe is a Recipe without ingredients, whose nutrients are its evaluated totals
+     *
+     * @param conn    the connection to use
+     * @param recipes the recipes, by ID
+     * @throws SQLException if a database error is encountered
+     */
+    private void addSubRecipes(Connection conn, Map<Integer, Recipe> recipes) throws SQLException {
+        String sql = "SELECT r.id, r.name, r.description, s.quantity, s.recipe_id " +
+                "FROM SubRecipes s " +
+                "JOIN Recipe r ON r.id = s.sub_recipe_id " +
+                "WHERE s.recipe_id = ANY(?)";
+
+        try (PreparedStatement statement = conn.prepareStatement(sql)) {
+            statement.setArray(1, conn.createArrayOf("integer", recipes.keySet().toArray()));
+            ResultSet rs = statement.executeQuery();
+
+            HashMap<Integer, Recipe> subRecipes = new HashMap<>();
+            ArrayList<Integer> parentIds = new ArrayList<>();
+            ArrayList<RecipeIngredient> uses = new ArrayList<>();
+            while (rs.next()) {
+                Recipe subRecipe = subRecipes.get(rs.getInt(1));
+                if (subRecipe == null) {
+                    subRecipe = new Recipe(rs.getInt(1), rs.getString(2), rs.getString(3));
+                    subRecipes.put(subRecipe.getId(), subRecipe);
+                }
+                uses.add(new RecipeIngredient(subRecipe, rs.getDouble(4)));
+                parentIds.add(rs.getInt(5));
+            }
+
+            //The result set is done, so the evaluation can use the connection
+            HashMap<Integer, RecipeNutrition> evaluated = nutritionCache.evaluate(conn, subRecipes.keySet());
+            for (Recipe subRecipe : subRecipes.values()) {
+                RecipeNutrition nutrition = evaluated.get(subRecipe.getId());
+                subRecipe.setCalories(nutrition.calories());
+                subRecipe.setProteins(nutrition.proteins());
+                subRecipe.setCarbs(nutrition.carbs());
+            }
+            for (int i = 0; i < uses.size(); i++) {
+                recipes.get(parentIds.get(i)).addIngredient(uses.get(i));
+            }
         }
     }
 
     /**
      * Insert a new recipe in the database
+     * The recipe and all of its ingredients are written in a single transaction, so either all of them are stored
+     * or none, and the ingredients are sent in batches instead of one statement each
      *
      * @param newRecipe the recipe to insert
      * @return true if successful
      * @throws SQLException if a database error is encountered
      */
     public boolean addRecipe(Recipe newRecipe) throws SQLException {
-        PreparedStatement statement = null;
-        try {
-            //Add the data that belong to the Recipe table in the database
-            String sql = "INSERT INTO Recipe (id, name, description) " +
-                    "VALUES (?, ?, ?)";
-            statement = conn.prepareStatement(sql);
-            statement.setInt(1, newRecipe.getId());
-            statement.setString(2, newRecipe.getBrand());
-            statement.setString(3, newRecipe.getDescription());
-            statement.executeUpdate();
-
-            //Add the ingredients of the recipe in database
-            ArrayList<RecipeIngredient> ingredients = newRecipe.getIngredients();
-
-            while (!ingredients.isEmpty()) {
-                RecipeIngredient ingredientToAdd = ingredients.removeFirst();
-                addIngredient(
-                        newRecipe.getId(),
-                        ingredientToAdd.getFood().getId(),
-                        ingredientToAdd.getQuantity()
-                );
+        //Add the data that belong to the Recipe table in the database
+        String sql = "INSERT INTO Recipe (id, name, description) " +
+                "VALUES (?, ?, ?)";
+
+        //Borrow a connection for this operation, closing it returns it to the pool
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement statement = conn.prepareStatement(sql)) {
+            conn.setAutoCommit(false);
+            try {
+                statement.setInt(1, newRecipe.getId());
+                statement.setString(2, newRecipe.getBrand());
+                statement.setString(3, newRecipe.getDescription());
+                statement.executeUpdate();
+
+                //Add the ingredients of the recipe in database, the caller's list is left as it is
+                insertIngredients(conn, newRecipe.getId(), getFoodQuantities(newRecipe));
+
+                conn.commit();
+                return true;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
             }
-            return true;
         } catch (SQLException e) {
             System.err.println("SQL Database error " + e.getMessage());
             return false;
-        } finally {
-            //Close the statement to avoid leaks
-            statement.close();
         }
     }
 
+    /**
+     * Updates a recipe in the database: its name, its description and its ingredients
+     * The stored ingredients are compared with the recipe's, and only the ones that were added, removed or
+     * had their quantity changed are written, all in a single transaction
+     *
+     * @param recipe the recipe, as it should be stored
+     * @return true if successful, false if the recipe does not exist
+     * @throws SQLException if a database error is encountered
+     */
+    public boolean updateRecipe(Recipe recipe) throws SQLException {
+        String sql = "UPDATE Recipe SET name = ?, description = ? WHERE id = ?";
+
+        //Borrow a connection for this operation, closing it returns it to the pool
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement statement = conn.prepareStatement(sql)) {
+            conn.setAutoCommit(false);
+            try {
+                statement.setString(1, recipe.getBrand());
+                statement.setString(2, recipe.getDescription());
+                statement.setInt(3, recipe.getId());
+                if (statement.executeUpdate() == 0) {
+                    conn.rollback();
+                    return false;
+                }
+
+                HashMap<Integer, Double> wanted = getFoodQuantities(recipe);
+                HashMap<Integer, Double> stored = getStoredQuantities(conn, recipe.getId());
+
+                HashMap<Integer, Double> added = new HashMap<>();
+                HashMap<Integer, Double> changed = new HashMap<>();
+                for (Map.Entry<Integer, Double> ingredient : wanted.entrySet()) {
+                    Double storedQuantity = stored.remove(ingredient.getKey());
+                    if (storedQuantity == null) {
+                        added.put(ingredient.getKey(), ingredient.getValue());
+                    } else if (Double.compare(storedQuantity, ingredient.getValue()) != 0) {
+                        changed.put(ingredient.getKey(), ingredient.getValue());
+                    }
+                }
+                //What is left of the stored ingredients is not in the recipe anymore
+                deleteIngredients(conn, recipe.getId(), stored.keySet());
+                updateQuantities(conn, recipe.getId(), changed);
+                insertIngredients(conn, recipe.getId(), added);
+
+                conn.commit();
+                nutritionCache.invalidate(conn, List.of(recipe.getId()));
+                return true;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            System.err.println("SQL Database error: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Gets the quantity of each food ingredient of a recipe
+     * Sub-recipes are skipped, they are stored with addSubRecipe
+     *
+     * @param recipe the recipe
+     * @return the quantity of each food, by food ID
+     */
+    private static HashMap<Integer, Double> getFoodQuantities(Recipe recipe) {
+        IngredientList ingredients = recipe.getIngredientList();
+        HashMap<Integer, Double> quantities = new HashMap<>();
+        for (int i = 0; i < ingredients.size(); i++) {
+            if (!ingredients.isRecipe(i)) {
+                quantities.put(ingredients.getFoodId(i), ingredients.getQuantity(i));
+            }
+        }
+        return quantities;
+    }
+
+    /**
+     * Reads the stored ingredient quantities of a recipe and locks them until the transaction ends
+     *
+     * @param conn     the connection to use, with autocommit off
+     * @param recipeId the ID of the recipe
+     * @return the quantity of each ingredient, by food ID
+     * @throws SQLException if a database error is encountered
+     */
+    private HashMap<Integer, Double> getStoredQuantities(Connection conn, int recipeId) throws SQLException {
+        String sql = "SELECT food_id, quantity FROM Ingredients WHERE recipe_id = ? FOR UPDATE";
+
+        try (PreparedStatement statement = conn.prepareStatement(sql)) {
+            statement.setInt(1, recipeId);
+            ResultSet rs = statement.executeQuery();
+
+            HashMap<Integer, Double> quantities = new HashMap<>();
+            while (rs.next()) {
+                quantities.put(rs.getInt(1), rs.getDouble(2));
+            }
+            return quantities;
+        }
+    }
+
+    /**
+     * Inserts ingredients of a recipe in batches, inside the caller's transaction
+     *
+     * @param conn       the connection to use, with autocommit off
+     * @param recipeId   the ID of the recipe
+     * @param quantities the quantity of each ingredient, by food ID
+     * @throws SQLException if a database error is encountered
+     */
+    private void insertIngredients(Connection conn, int recipeId, Map<Integer, Double> quantities) throws SQLException {
+        BatchWriter.executeInTransaction(conn, INSERT_INGREDIENT_ROW_SQL, quantities.entrySet(), batchSize, (statement, ingredient) -> {
+            statement.setInt(1, recipeId);
+            statement.setInt(2, ingredient.getKey());
+            statement.setDouble(3, ingredient.getValue());
+        });
+        addToTotals(conn, recipeId, quantities.keySet());
+    }
+
+    /**
+     * Adds the nutrients of ingredients just inserted to their recipe's totals, inside the caller's transaction
+     *
+     * @param conn     the connection to use, with autocommit off
+     * @param recipeId the ID of the recipe
+     * @param foodIds  the food IDs of the inserted ingredients
+     * @throws SQLException if a database error is encountered
+     */
+    private static void addToTotals(Connection conn, int recipeId, Collection<Integer> foodIds) throws SQLException {
+        if (foodIds.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement statement = conn.prepareStatement(ADDED_TOTALS_SQL)) {
+            statement.setInt(1, recipeId);
+            statement.setArray(2, conn.createArrayOf("integer", foodIds.toArray()));
+            statement.executeUpdate();
+        }
+    }
+
+    /**
+     * Changes the quantities of ingredients of a recipe in batches, inside the caller's transaction
+     *
+     * @param conn       the connection to use, with autocommit off
+     * @param recipeId   the ID of the recipe
+     * @param quantities the new quantity of each ingredient, by food ID
+     * @throws SQLException if a database error is encountered
+     */
+    private void updateQuantities(Connection conn, int recipeId, Map<Integer, Double> quantities) throws SQLException {
+        BatchWriter.executeInTransaction(conn, UPDATE_QUANTITY_SQL, quantities.entrySet(), batchSize, (statement, ingredient) -> {
+            statement.setDouble(1, ingredient.getValue());
+            statement.setInt(2, recipeId);
+            statement.setInt(3, ingredient.getKey());
+        });
+    }
+
+    /**
+     * Deletes ingredients of a recipe in batches, inside the caller's transaction
+     *
+     * @param conn     the connection to use, with autocommit off
+     * @param recipeId the ID of the recipe
+     * @param foodIds  the food IDs of the ingredients
+     * @throws SQLException if a database error is encountered
+     */
+    private void deleteIngredients(Connection conn, int recipeId, Collection<Integer> foodIds) throws SQLException {
+        BatchWriter.executeInTransaction(conn, DELETE_INGREDIENT_SQL, foodIds, batchSize, (statement, foodId) -> {
+            statement.setInt(1, recipeId);
+            statement.setInt(2, foodId);
+        });
+    }
+
     /**
      * Deletes a recipe from the database
      *
@@ -138,78 +593,123 @@ public class RecipeManager {
      * @throws SQLException if a database error is encountered
      */
     public boolean deleteRecipe(int recipeId) throws SQLException {
-        PreparedStatement statement = null;
-        try {
-            //Delete the recipe's entry from Recipes table (the database automatically deletes the ingredients)
-            String sql = "DELETE FROM Recipe " +
-                    "WHERE id = ?";
+        //Delete the recipe's entry from Recipes table (the database automatically deletes the ingredients)
+        String sql = "DELETE FROM Recipe " +
+                "WHERE id = ?";
 
-            statement = conn.prepareStatement(sql);
+        //Borrow a connection for this operation, closing it returns it to the pool
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement statement = conn.prepareStatement(sql)) {
             statement.setInt(1, recipeId);
             statement.executeUpdate();
 
+            nutritionCache.invalidate(conn, List.of(recipeId));
             return true;
         } catch (SQLException e) {
             System.err.println("SQL Database error: " + e.getMessage());
             return false;
-        } finally {
-            //Close the statement to avoid leakages
-            statement.close();
         }
     }
 
     /**
      * Calculates the calories of a recipe
-     * Internally, gets all of its ingredients to calculate the total calories
      *
      * @param recipeId the ID of the recipe of which the calories we want
      * @return the amount of calories
      * @throws SQLException if a database error is encountered
      */
     public double getRecipeCals(int recipeId) throws SQLException {
-        ArrayList<RecipeIngredient> ingredients = getIngredients(recipeId);
-        double calories = 0;
-
-        while (!ingredients.isEmpty()) {
-            calories += ingredients.removeFirst().getCalories();
-        }
-        return calories;
+        RecipeNutrition nutrition = getRecipeNutrition(recipeId);
+        return nutrition == null ? 0 : nutrition.calories();
     }
 
     /**
      * Calculates the proteins of a recipe
-     * Internally, gets all of its ingredients to calculate the total proteins
      *
      * @param recipeId the ID of the recipe of which the proteins we want
      * @return the amount of proteins
      * @throws SQLException if a database error is encountered
      */
     public double getRecipeProteins(int recipeId) throws SQLException {
-        ArrayList<RecipeIngredient> ingredients = getIngredients(recipeId);
-        double proteins = 0;
-
-        while (!ingredients.isEmpty()) {
-            proteins += ingredients.removeFirst().getProteins();
-        }
-        return proteins;
+        RecipeNutrition nutrition = getRecipeNutrition(recipeId);
+        return nutrition == null ? 0 : nutrition.proteins();
     }
 
     /**
      * Calculates the carbs of a recipe
-     * Internally, gets all of its ingredients to calculate the total carbs
      *
      * @param recipeId the ID of the recipe of which the carbs we want
-     * @return the amount of proteins
+     * @return the amount of carbs
      * @throws SQLException if a database error is encountered
      */
     public double getRecipeCarbs(int recipeId) throws SQLException {
-        ArrayList<RecipeIngredient> ingredients = getIngredients(recipeId);
-        double carbs = 0;
+        RecipeNutrition nutrition = getRecipeNutrition(recipeId);
+        return nutrition == null ? 0 : nutrition.carbs();
+    }
 
-        while (!ingredients.isEmpty()) {
-            carbs += ingredients.removeFirst().getCarbs();
+    /**
+     * Gets the calories, proteins and carbs of a recipe at once, its sub-recipes included
+     * The totals of each recipe's own ingredients are stored in its row, and the evaluated recipes are memoized,
+     * so a recipe is usually answered from memory and otherwise with a single query over its sub-recipe graph
+     *
+     * @param recipeId the ID of the recipe
+     * @return the recipe's totals, or null if the recipe does not exist
+     * @throws SQLException if a database error is encountered
+     */
+    public RecipeNutrition getRecipeNutrition(int recipeId) throws SQLException {
+        //Borrow a connection for this operation, closing it returns it to the pool
+        try (Connection conn = dbManager.getConnection()) {
+            return nutritionCache.evaluate(conn, recipeId);
+        } catch (SQLException e) {
+            System.err.println("SQL Database error: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Gets the calories, proteins and carbs of many recipes, their sub-recipes included
+     * The recipes that are not memoized are read with a single query over their combined sub-recipe graph,
+     * so sub-recipes shared by the recipes are read and evaluated once
+     *
+     * @param recipeIds the IDs of the recipes
+     * @return the totals of each recipe by ID, the recipes that do not exist are left out
+     * @throws SQLException if a database error is encountered
+     */
+    public HashMap<Integer, RecipeNutrition> getRecipeNutrition(Collection<Integer> recipeIds) throws SQLException {
+        //Borrow a connection for this operation, closing it returns it to the pool
+        try (Connection conn = dbManager.getConnection()) {
+            return nutritionCache.evaluate(conn, recipeIds);
+        } catch (SQLException e) {
+            System.err.println("SQL Database error: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Recomputes the stored totals of every recipe from its ingredients and fixes the ones that drifted,
+     * e.g. because the nutrients of a food were corrected or the catalog was re-imported
+     * Meant to be run from time to time (or after an import), it locks only the recipes it fixes
+     *
+     * @return the amount of recipes fixed, or -1 if a database error is encountered
+     * @throws SQLException if a database error is encountered
+     */
+    public int repairRecipeTotals() throws SQLException {
+        String sql = "UPDATE Recipe r SET calories = s.calories, protein = s.protein, carbs = s.carbs " +
+                "FROM (" + NUTRITION_SQL + "GROUP BY r.id) s " +
+                "WHERE r.id = s.id AND (r.calories, r.protein, r.carbs) IS DISTINCT FROM (s.calories, s.protein, s.carbs)";
+
+        //Borrow a connection for this operation, closing it returns it to the pool
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement statement = conn.prepareStatement(sql)) {
+            int repaired = statement.executeUpdate();
+            if (repaired > 0) {
+                nutritionCache.clear();
+            }
+            return repaired;
+        } catch (SQLException e) {
+            System.err.println("SQL Database error: " + e.getMessage());
+            return -1;
         }
-        return carbs;
     }
 
     /**
@@ -220,15 +720,31 @@ public class RecipeManager {
      * @throws SQLException if a database error is encountered
      */
     public ArrayList<RecipeIngredient> getIngredients(int recipeId) throws SQLException {
-        PreparedStatement statement = null;
-        try {
-            //Pull the ingredients from the database
-            String sql = "SELECT f.id, f.brand, f.description, f.calories, f.protein, f.carbs, ing.quantity " +
-                    "FROM Ingredients ing " +
-                    "JOIN Food f ON f.id = ing.food_id " +
-                    "WHERE ing.recipe_id = ?";
-
-            statement = conn.prepareStatement(sql);
+        //Borrow a connection for this operation, closing it returns it to the pool
+        try (Connection conn = dbManager.getConnection()) {
+            return getIngredients(conn, recipeId);
+        } catch (SQLException e) {
+            System.err.println("SQL Database error: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Queries the database for the ingredients of a recipe, using a connection the caller already holds
+     *
+     * @param conn     the connection to use
+     * @param recipeId the ID of the recipe, of which its ingredients we need
+     * @return an ArrayList containing the ingredients
+     * @throws SQLException if a database error is encountered
+     */
+    private ArrayList<RecipeIngredient> getIngredients(Connection conn, int recipeId) throws SQLException {
+        //Pull the ingredients from the database
+        String sql = "SELECT f.id, f.brand, f.description, f.calories, f.protein, f.carbs, ing.quantity " +
+                "FROM Ingredients ing " +
+                "JOIN Food f ON f.id = ing.food_id " +
+                "WHERE ing.recipe_id = ?";
+
+        try (PreparedStatement statement = conn.prepareStatement(sql)) {
             statement.setInt(1, recipeId);
             ResultSet rs = statement.executeQuery();
 
@@ -238,13 +754,34 @@ public class RecipeManager {
                 ingredients.add(new RecipeIngredient(rowToFood(rs), rs.getDouble(7)));
             }
             return ingredients;
+        }
+    }
+
+    /**
+     * Finds the recipes that use a food as an ingredient
+     * The lookup goes through the Ingredients' food_id index, it doesn't scan the recipes
+     *
+     * @param foodId the ID of the food
+     * @return an ArrayList of the IDs of the recipes, in ascending order
+     * @throws SQLException if a database error is encountered
+     */
+    public ArrayList<Integer> getRecipesUsingFood(int foodId) throws SQLException {
+        String sql = "SELECT recipe_id FROM Ingredients WHERE food_id = ? ORDER BY recipe_id";
+
+        //Borrow a connection for this operation, closing it returns it to the pool
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement statement = conn.prepareStatement(sql)) {
+            statement.setInt(1, foodId);
+            ResultSet rs = statement.executeQuery();
 
+            ArrayList<Integer> recipeIds = new ArrayList<>();
+            while (rs.next()) {
+                recipeIds.add(rs.getInt(1));
+            }
+            return recipeIds;
         } catch (SQLException e) {
             System.err.println("SQL Database error: " + e.getMessage());
             return null;
-        } finally {
-            //Close the statement to avoid leakages
-            statement.close();
         }
     }
 
@@ -259,24 +796,63 @@ public class RecipeManager {
      * @throws SQLException if a database error is encountered
      */
     public boolean addIngredient(int recipeId, int foodId, double quantity) throws SQLException {
-        PreparedStatement statement = null;
-        try {
-            //Add the ingredient in the database
-            String sql = "INSERT INTO Ingredients (recipe_id, food_id, quantity) " +
-                    "VALUES (?, ?, ?)";
-            statement = conn.prepareStatement(sql);
+        //Borrow a connection for this operation, closing it returns it to the pool
+        try (Connection conn = dbManager.getConnection()) {
+            addIngredient(conn, recipeId, foodId, quantity);
+            nutritionCache.invalidate(conn, List.of(recipeId));
+            return true;
+        } catch (SQLException e) {
+            System.err.println("SQL Database error: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Insert a new ingredient in a recipe in the database, using a connection the caller already holds
+     *
+     * @param conn     the connection to use
+     * @param recipeId the ID of the recipe that gets the ingredient
+     * @param foodId   the ID of the ingredient
+     * @param quantity the amount of grams of the ingredient the recipe needs
+     * @throws SQLException if a database error is encountered
+     */
+    private void addIngredient(Connection conn, int recipeId, int foodId, double quantity) throws SQLException {
+        //Add the ingredient in the database, along with its share of the recipe's totals
+        try (PreparedStatement statement = conn.prepareStatement(INSERT_INGREDIENT_SQL)) {
             statement.setInt(1, recipeId);
             statement.setInt(2, foodId);
             statement.setDouble(3, quantity);
 
             statement.executeUpdate();
-            return true;
+        }
+    }
+
+    /**
+     * Insert many ingredients in a recipe in the database using batched inserts
+     * The rows of every batch are inserted first, then added to the recipe's totals by one update in the same
+     * transaction, which lets the driver rewrite the batch into multi-row inserts
+     *
+     * @param recipeId    the ID of the recipe that gets the ingredients
+     * @param ingredients the ingredients to insert
+     * @return one outcome per ingredient, in the list's order: true if the ingredient was inserted,
+     *         or null if the whole operation failed
+     * @throws SQLException if a database error is encountered
+     */
+    public boolean[] addIngredients(int recipeId, List<RecipeIngredient> ingredients) throws SQLException {
+        try (Connection conn = dbManager.getConnection()) {
+            boolean[] outcomes = BatchWriter.executeBatch(conn, INSERT_INGREDIENT_ROW_SQL, ingredients, batchSize,
+                    (statement, ingredient) -> {
+                        statement.setInt(1, recipeId);
+                        statement.setInt(2, ingredient.getFood().getId());
+                        statement.setDouble(3, ingredient.getQuantity());
+                    },
+                    written -> addToTotals(conn, recipeId,
+                            written.stream().map(ingredient -> ingredient.getFood().getId()).toList()));
+            nutritionCache.invalidate(conn, List.of(recipeId));
+            return outcomes;
         } catch (SQLException e) {
             System.err.println("SQL Database error: " + e.getMessage());
-            return false;
-        } finally {
-            //Close the statement to avoid leaks
-            statement.close();
+            return null;
         }
     }
 
@@ -289,23 +865,120 @@ public class RecipeManager {
      * @throws SQLException if a database error is encountered
      */
     public boolean removeIngredient(int recipeId, int foodId) throws SQLException {
-        PreparedStatement statement = null;
-        try {
-            //Delete ingredient from database
-            String sql = "DELETE FROM Ingredients WHERE recipe_id = ? AND food_id = ?";
-            statement = conn.prepareStatement(sql);
+        //Delete ingredient from database, along with its share of the recipe's totals
+        //Borrow a connection for this operation, closing it returns it to the pool
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement statement = conn.prepareStatement(DELETE_INGREDIENT_SQL)) {
             statement.setInt(1, recipeId);
             statement.setInt(2, foodId);
 
             statement.executeUpdate();
+            nutritionCache.invalidate(conn, List.of(recipeId));
             return true;
         } catch (SQLException e) {
             System.err.println("SQL Database error: " + e.getMessage());
             return false;
-        } finally {
-            //Close the statement to avoid leaks
-            statement.close();
         }
     }
 
+    /**
+     * Uses a recipe as an ingredient of another recipe (e.g. a sauce used in several dishes)
+     * Like foods, the sub-recipe's nutrients count as QUANTITY_BASE grams: a quantity of QUANTITY_BASE uses the whole
+     * sub-recipe, half of it uses half. A recipe can't contain itself, directly or through other sub-recipes.
+     *
+     * @param recipeId    the ID of the recipe that gets the sub-recipe
+     * @param subRecipeId the ID of the sub-recipe
+     * @param quantity    how much of the sub-recipe is used
+     * @return true if successful, false if the sub-recipe would create a cycle
+     * @throws SQLException if a database error is encountered
+     */
+    public boolean addSubRecipe(int recipeId, int subRecipeId, double quantity) throws SQLException {
+        //The recipe must not be reachable from the sub-recipe, otherwise the new link would close a cycle
+        String cycleSql = "WITH RECURSIVE graph (id) AS (" +
+                "SELECT ?::integer " +
+                "UNION SELECT s.sub_recipe_id FROM SubRecipes s JOIN graph g ON s.recipe_id = g.id) " +
+                "SELECT 1 FROM graph WHERE id = ?";
+        String sql = "INSERT INTO SubRecipes (recipe_id, sub_recipe_id, quantity) VALUES (?, ?, ?)";
+
+        //Borrow a connection for this operation, closing it returns it to the pool
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement lock = conn.prepareStatement("SELECT pg_advisory_xact_lock(?)");
+             PreparedStatement cycleCheck = conn.prepareStatement(cycleSql);
+             PreparedStatement statement = conn.prepareStatement(sql)) {
+            conn.setAutoCommit(false);
+            try {
+                lock.setLong(1, SUB_RECIPE_LOCK_KEY);
+                lock.execute();
+
+                cycleCheck.setInt(1, subRecipeId);
+                cycleCheck.setInt(2, recipeId);
+                if (cycleCheck.executeQuery().next()) {
+                    conn.rollback();
+                    System.err.println("Recipe " + subRecipeId + " can't be added to recipe " + recipeId +
+                            ", it would create a cycle");
+                    return false;
+                }
+
+                statement.setInt(1, recipeId);
+                statement.setInt(2, subRecipeId);
+                statement.setDouble(3, quantity);
+                statement.executeUpdate();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+            nutritionCache.invalidate(conn, List.of(recipeId));
+            return true;
+        } catch (SQLException e) {
+            System.err.println("SQL Database error: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Stops using a recipe as an ingredient of another recipe
+     *
+     * @param recipeId    the ID of the recipe the sub-recipe belongs to
+     * @param subRecipeId the ID of the sub-recipe
+     * @return true if successful
+     * @throws SQLException if a database error is encountered
+     */
+    public boolean removeSubRecipe(int recipeId, int subRecipeId) throws SQLException {
+        String sql = "DELETE FROM SubRecipes WHERE recipe_id = ? AND sub_recipe_id = ?";
+
+        //Borrow a connection for this operation, closing it returns it to the pool
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement statement = conn.prepareStatement(sql)) {
+            statement.setInt(1, recipeId);
+            statement.setInt(2, subRecipeId);
+            statement.executeUpdate();
+
+            nutritionCache.invalidate(conn, List.of(recipeId));
+            return true;
+        } catch (SQLException e) {
+            System.err.println("SQL Database error: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Forgets the memoized nutrition of every recipe using a food, directly or through sub-recipes
+     * Must be registered with FoodManager.addFoodListener, otherwise recipes using a corrected food keep their old
+     * nutrition until they expire
+     *
+     * @param foodId the ID of the changed food
+     */
+    public void foodChanged(int foodId) {
+        //Borrow a connection for this operation, closing it returns it to the pool
+        try (Connection conn = dbManager.getConnection()) {
+            nutritionCache.invalidateFood(conn, foodId);
+        } catch (SQLException e) {
+            //The affected recipes are unknown, so none of the memoized ones can be trusted
+            System.err.println("SQL Database error: " + e.getMessage());
+            nutritionCache.clear();
+        }
+    }
 }
@@ -0,0 +1,23 @@
+package backend.food;
+
+/**
+ * The nutritional totals of a recipe, the sum of what each of its ingredients contributes
+ *
+ * @param recipeId the ID of the recipe
+ * @param calories the total calories
+ * @param proteins the total proteins
+ * @param carbs    the total carbs
+ * @author taconoodle
+ */
+public record RecipeNutrition(int recipeId, double calories, double proteins, double carbs) {
+    /**
+     * Creates a string containing the totals
+     *
+     * @return the info string
+     */
+    @Override
+    public String toString() {
+        return String.format("recipe %d | calories %.2f | proteins %.2f | carbs %.2f",
+                recipeId, calories, proteins, carbs);
+    }
+}
@@ -0,0 +1,272 @@
+package backend.food;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The RecipeNutritionCache class evaluates the nutrition of recipes that contain other recipes (sub-recipes).
+ * <p>
+ * The recipes form a directed acyclic graph: each recipe has its own ingredient totals (stored in the Recipe table)
+ * and uses some sub-recipes, each of which counts as QUANTITY_BASE grams of an ingredient, like foods do.
+ * A recipe's nutrition is its own totals plus the evaluated nutrition of its sub-recipes, scaled by their quantity.
+ * <p>
+ * Evaluated recipes are memoized, so a sub-recipe shared by many dishes is computed once.
+ * When a recipe changes, it and every recipe above it in the graph are invalidated.
+ * <p>
+ * A cache can be shared by several RecipeManagers (see RecipeManager.getNutritionCache), so a change made through
+ * one of them is seen by the others. Changes made by other processes, or to foods without the
+ * RecipeManager.foodChanged listener registered, can't be seen, so memoized recipes also expire after a time to live.
+ *
+ * @author taconoodle
+ */
+public class RecipeNutritionCache {
+    /**
+     * The default time a memoized recipe is trusted, in milliseconds
+     */
+    static final long DEFAULT_TTL_MILLIS = 60_000;
+
+    /**
+     * The evaluated nutrition of recipes, by recipe ID
+     */
+    private final ConcurrentHashMap<Integer, Memo> memo = new ConcurrentHashMap<>();
+
+    /**
+     * The time a memoized recipe is trusted, in nanoseconds
+     */
+    private volatile long ttlNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TTL_MILLIS);
+
+    /**
+     * Increased on every invalidation, so an evaluation that raced with an invalidation is not memoized
+     */
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Default constructor
+     */
+    public RecipeNutritionCache() {
+    }
+
+    /**
+     * Changes the time a memoized recipe is trusted
+     *
+     * @param ttlMillis the new time to live, in milliseconds, 0 to not memoize at all
+     */
+    void setTtlMillis(long ttlMillis) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    /**
+     * Evaluates the nutrition of a recipe, including all of its sub-recipes
+     * The recipe and everything below it in the graph are read with a single query, unless already memoized
+     *
+     * @param conn     the connection to use
+     * @param recipeId the ID of the recipe
+     * @return the recipe's nutrition, or null if the recipe does not exist
+     * @throws SQLException if a database error is encountered
+     */
+    RecipeNutrition evaluate(Connection conn, int recipeId) throws SQLException {
+        return evaluate(conn, List.of(recipeId)).get(recipeId);
+    }
+
+    /**
+     * Evaluates the nutrition of many recipes, including all of their sub-recipes
+     * The recipes that are not memoized and everything below them in the graph are read with a single query,
+     * so sub-recipes shared by the recipes are read and evaluated once
+     *
+     * @param conn      the connection to use
+     * @param recipeIds the IDs of the recipes
+     * @return the nutrition of each recipe by ID, the recipes that do not exist are left out
+     * @throws SQLException if a database error is encountered
+     */
+    HashMap<Integer, RecipeNutrition> evaluate(Connection conn, Collection<Integer> recipeIds) throws SQLException {
+        HashMap<Integer, RecipeNutrition> result = new HashMap<>();
+        ArrayList<Integer> missing = new ArrayList<>();
+        for (int recipeId : recipeIds) {
+            RecipeNutrition cached = getMemoized(recipeId);
+            if (cached != null) {
+                result.put(recipeId, cached);
+            } else {
+                missing.add(recipeId);
+            }
+        }
+        if (missing.isEmpty()) {
+            return result;
+        }
+        long invalidationsBeforeLoad = invalidations.get();
+
+        //Every recipe reachable from the given ones, with its own totals and its sub-recipes (one row per sub-recipe)
+        String sql = "WITH RECURSIVE graph (id) AS (" +
+                "SELECT unnest(?::integer[]) " +
+                "UNION SELECT s.sub_recipe_id FROM SubRecipes s JOIN graph g ON s.recipe_id = g.id) " +
+                "SELECT r.id, r.calories, r.protein, r.carbs, s.sub_recipe_id, s.quantity " +
+                "FROM graph g " +
+                "JOIN Recipe r ON r.id = g.id " +
+                "LEFT JOIN SubRecipes s ON s.recipe_id = r.id";
+
+        HashMap<Integer, RecipeNutrition> own = new HashMap<>();
+        HashMap<Integer, ArrayList<SubRecipe>> subRecipes = new HashMap<>();
+        try (PreparedStatement statement = conn.prepareStatement(sql)) {
+            statement.setArray(1, conn.createArrayOf("integer", missing.toArray()));
+            ResultSet rs = statement.executeQuery();
+            while (rs.next()) {
+                int id = rs.getInt(1);
+                own.putIfAbsent(id, new RecipeNutrition(id, rs.getDouble(2), rs.getDouble(3), rs.getDouble(4)));
+                ArrayList<SubRecipe> edges = subRecipes.computeIfAbsent(id, key -> new ArrayList<>());
+                int subRecipeId = rs.getInt(5);
+                if (!rs.wasNull()) {
+                    edges.add(new SubRecipe(subRecipeId, rs.getDouble(6)));
+                }
+            }
+        }
+
+        HashMap<Integer, RecipeNutrition> evaluated = new HashMap<>();
+        for (int recipeId : missing) {
+            if (own.containsKey(recipeId)) {
+                result.put(recipeId, evaluate(recipeId, own, subRecipes, evaluated));
+            }
+        }
+        if (invalidations.get() == invalidationsBeforeLoad && ttlNanos > 0) {
+            long loadedAt = System.nanoTime();
+            for (RecipeNutrition nutrition : evaluated.values()) {
+                memo.put(nutrition.recipeId(), new Memo(nutrition, loadedAt));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets the memoized nutrition of a recipe, unless it's older than the time to live
+     *
+     * @param recipeId the ID of the recipe
+     * @return the nutrition, or null if it's not memoized or expired
+     */
+    private RecipeNutrition getMemoized(int recipeId) {
+        Memo cached = memo.get(recipeId);
+        if (cached == null) {
+            return null;
+        }
+        if (System.nanoTime() - cached.loadedAt() >= ttlNanos) {
+            memo.remove(recipeId, cached);
+            return null;
+        }
+        return cached.nutrition();
+    }
+
+    /**
+     * Evaluates a recipe of a loaded graph, after its sub-recipes
+     *
+     * @param recipeId   the ID of the recipe
+     * @param own        the own totals of every recipe of the graph
+     * @param subRecipes the sub-recipes of every recipe of the graph
+     * @param evaluated  the recipes evaluated so far, the recipe is added to them
+     * @return the recipe's nutrition
+     */
+    private RecipeNutrition evaluate(int recipeId, HashMap<Integer, RecipeNutrition> own,
+                                     HashMap<Integer, ArrayList<SubRecipe>> subRecipes,
+                                     HashMap<Integer, RecipeNutrition> evaluated) {
+        RecipeNutrition nutrition = evaluated.get(recipeId);
+        if (nutrition == null) {
+            nutrition = getMemoized(recipeId);
+        }
+        if (nutrition != null) {
+            return nutrition;
+        }
+
+        RecipeNutrition ownTotals = own.get(recipeId);
+        double calories = ownTotals.calories();
+        double proteins = ownTotals.proteins();
+        double carbs = ownTotals.carbs();
+        for (SubRecipe subRecipe : subRecipes.get(recipeId)) {
+            RecipeNutrition sub = evaluate(subRecipe.recipeId(), own, subRecipes, evaluated);
+            double share = subRecipe.quantity() / RecipeManager.QUANTITY_BASE;
+            calories += sub.calories() * share;
+            proteins += sub.proteins() * share;
+            carbs += sub.carbs() * share;
+        }
+
+        nutrition = new RecipeNutrition(recipeId, calories, proteins, carbs);
+        evaluated.put(recipeId, nutrition);
+        return nutrition;
+    }
+
+    /**
+     * Forgets the nutrition of some recipes and of every recipe that uses them, directly or through other sub-recipes
+     *
+     * @param conn      the connection to use
+     * @param recipeIds the IDs of the changed recipes
+     * @throws SQLException if a database error is encountered
+     */
+    void invalidate(Connection conn, Collection<Integer> recipeIds) throws SQLException {
+        invalidations.incrementAndGet();
+        if (recipeIds.isEmpty() || memo.isEmpty()) {
+            return;
+        }
+        String sql = "WITH RECURSIVE graph (id) AS (" +
+                "SELECT unnest(?::integer[]) " +
+                "UNION SELECT s.recipe_id FROM SubRecipes s JOIN graph g ON s.sub_recipe_id = g.id) " +
+                "SELECT id FROM graph";
+
+        try (PreparedStatement statement = conn.prepareStatement(sql)) {
+            statement.setArray(1, conn.createArrayOf("integer", recipeIds.toArray()));
+            ResultSet rs = statement.executeQuery();
+            while (rs.next()) {
+                memo.remove(rs.getInt(1));
+            }
+        }
+    }
+
+    /**
+     * Forgets the nutrition of every recipe that uses a food, directly or through sub-recipes
+     *
+     * @param conn   the connection to use
+     * @param foodId the ID of the changed food
+     * @throws SQLException if a database error is encountered
+     */
+    void invalidateFood(Connection conn, int foodId) throws SQLException {
+        ArrayList<Integer> recipeIds = new ArrayList<>();
+        try (PreparedStatement statement = conn.prepareStatement(
+                "SELECT recipe_id FROM Ingredients WHERE food_id = ?")) {
+            statement.setInt(1, foodId);
+            ResultSet rs = statement.executeQuery();
+            while (rs.next()) {
+                recipeIds.add(rs.getInt(1));
+            }
+        }
+        invalidate(conn, recipeIds);
+    }
+
+    /**
+     * Forgets the nutrition of every recipe
+     */
+    void clear() {
+        invalidations.incrementAndGet();
+        memo.clear();
+    }
+
+    /**
+     * The memoized nutrition of a recipe
+     *
+     * @param nutrition the nutrition
+     * @param loadedAt  when it was evaluated, as System.nanoTime()
+     */
+    private record Memo(RecipeNutrition nutrition, long loadedAt) {
+    }
+
+    /**
+     * A sub-recipe used by a recipe
+     *
+     * @param recipeId the ID of the sub-recipe
+     * @param quantity how much of the sub-recipe is used, QUANTITY_BASE being the whole sub-recipe
+     */
+    private record SubRecipe(int recipeId, double quantity) {
+    }
+}
@@ -0,0 +1,442 @@
+package backend.food.importer;
+
+import backend.database.DatabaseManager;
+import backend.food.Food;
+import backend.food.FoodManager;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The FoodImporter class loads large nutrition datasets (CSV or TSV files) into the Food table.
+ * <p>
+ * The file is processed as a pipeline:
+ * a reader thread streams the file in chunks of lines, several parser threads validate the lines and encode them
+ * for PostgreSQL's COPY command, and the calling thread streams the encoded rows to the database through the
+ * driver's CopyManager. The queues between the stages are bounded, so memory stays constant no matter the file size.
+ * <p>
+ * The file must start with a header naming its columns: description, calories, protein and carbs are required,
+ * id and brand are optional. Without an id column, the Food table has to generate the IDs itself.
+ * <p>
+ * When upserting, the nutrients of existing foods are not overwritten by the merge: they are corrected through
+ * FoodManager.updateFoodNutrients once the merge is committed, so the recipes using them and the food listeners
+ * are updated like for any other correction.
+ *
+ * @author taconoodle
+ */
+public class FoodImporter {
+    /**
+     * Default amount of lines handed to a parser thread at once
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 5000;
+
+    /**
+     * Default amount of chunks that may wait between two stages of the pipeline
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 8;
+
+    /**
+     * The maximum amount of rejection reasons kept in the report
+     */
+    public static final int MAX_REPORTED_REJECTIONS = 100;
+
+    /**
+     * The temporary table the rows are copied into when upserting
+     */
+    private static final String STAGING_TABLE = "food_import_staging";
+
+    /**
+     * Marks the end of the chunks of a queue
+     */
+    private static final Chunk END = new Chunk(0, null, 0, 0, null);
+
+    /**
+     * The database manager the connection is borrowed from
+     */
+    private final DatabaseManager dbManager;
+
+    /**
+     * The food manager correcting the nutrients of existing foods and keeping its in-memory catalog up to date
+     */
+    private FoodManager foodManager;
+
+    //Import settings
+    private int parserThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private boolean upsert = false;
+    private char delimiter = 0;
+
+    /**
+     * Default constructor
+     *
+     * @param dbManager the database manager the connection is borrowed from
+     */
+    public FoodImporter(DatabaseManager dbManager) {
+        this.dbManager = dbManager;
+        this.foodManager = new FoodManager(dbManager);
+    }
+
+    /**
+     * Changes the food manager upserts go through, so its cache, indexes and listeners (e.g. RecipeManager::foodChanged)
+     * see the imported foods
+     *
+     * @param foodManager the food manager
+     * @return self
+     */
+    public FoodImporter setFoodManager(FoodManager foodManager) {
+        this.foodManager = foodManager;
+        return this;
+    }
+
+    /**
+     * Changes the amount of threads that parse and validate lines
+     *
+     * @param parserThreads the amount of threads
+     * @return self
+     */
+    public FoodImporter setParserThreads(int parserThreads) {
+        this.parserThreads = parserThreads;
+        return this;
+    }
+
+    /**
+     * Changes the amount of lines handed to a parser thread at once
+     *
+     * @param chunkSize the amount of lines
+     * @return self
+     */
+    public FoodImporter setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * Changes the amount of chunks that may wait between two stages, which bounds the memory used
+     *
+     * @param queueCapacity the amount of chunks
+     * @return self
+     */
+    public FoodImporter setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+        return this;
+    }
+
+    /**
+     * Chooses whether existing foods get updated instead of making the import fail
+     * When upserting, the rows are first copied into a staging table and then merged into the Food table:
+     * by id if the file has an id column, otherwise by brand and description
+     *
+     * @param upsert true to update existing foods
+     * @return self
+     */
+    public FoodImporter setUpsert(boolean upsert) {
+        this.upsert = upsert;
+        return this;
+    }
+
+    /**
+     * Changes the field separator
+     * By default it's a tab for .tsv files and a comma for any other file
+     *
+     * @param delimiter the field separator
+     * @return self
+     */
+    public FoodImporter setDelimiter(char delimiter) {
+        this.delimiter = delimiter;
+        return this;
+    }
+
+    /**
+     * Imports a dataset file in the Food table
+     * Without upserting, the whole file is copied as a single statement, so either all valid rows are imported or none
+     *
+     * @param file the file to import
+     * @return the import's report, or null if a database error is encountered
+     * @throws IOException if the file could not be read or its header is not valid
+     */
+    public ImportReport importFile(Path file) throws IOException {
+        long start = System.nanoTime();
+        char separator = delimiter != 0 ? delimiter
+                : file.toString().toLowerCase(Locale.ROOT).endsWith(".tsv") ? '\t' : ',';
+
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String header = reader.readLine();
+            if (header == null) {
+                return new ImportReport(0, 0, 0, System.nanoTime() - start, List.of());
+            }
+            FoodRowParser parser;
+            try {
+                parser = new FoodRowParser(header, separator);
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+
+            BlockingQueue<Chunk> lineQueue = new ArrayBlockingQueue<>(queueCapacity);
+            BlockingQueue<Chunk> copyQueue = new ArrayBlockingQueue<>(queueCapacity);
+            ExecutorService workers = Executors.newFixedThreadPool(parserThreads + 1, runnable -> {
+                Thread thread = new Thread(runnable, "food-import-worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+            try {
+                Future<?> readTask = workers.submit(() -> {
+                    readLines(reader, lineQueue);
+                    return null;
+                });
+                for (int i = 0; i < parserThreads; i++) {
+                    workers.submit(() -> {
+                        parseLines(parser, lineQueue, copyQueue);
+                        return null;
+                    });
+                }
+                return copyRows(parser, copyQueue, readTask, start);
+            } finally {
+                //Stops the reader and the parsers if the copy failed halfway
+                workers.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Reads the file in chunks of lines (the reader stage)
+     *
+     * @param reader    the file, positioned after the header
+     * @param lineQueue where the chunks of lines are put
+     * @throws IOException          if the file could not be read
+     * @throws InterruptedException if the import was aborted
+     */
+    private void readLines(BufferedReader reader, BlockingQueue<Chunk> lineQueue) throws IOException, InterruptedException {
+        try {
+            //Line 1 is the header
+            long lineNumber = 2;
+            ArrayList<String> lines = new ArrayList<>(chunkSize);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+                if (lines.size() == chunkSize) {
+                    lineQueue.put(new Chunk(lineNumber, lines, 0, 0, null));
+                    lineNumber += lines.size();
+                    lines = new ArrayList<>(chunkSize);
+                }
+            }
+            if (!lines.isEmpty()) {
+                lineQueue.put(new Chunk(lineNumber, lines, 0, 0, null));
+            }
+        } finally {
+            //Every parser has to learn that the file is over, even if reading failed
+            for (int i = 0; i < parserThreads; i++) {
+                lineQueue.put(END);
+            }
+        }
+    }
+
+    /**
+     * Validates chunks of lines and encodes their accepted rows for COPY (the parser stage)
+     *
+     * @param parser    the parser of the file's lines
+     * @param lineQueue where the chunks of lines are taken from
+     * @param copyQueue where the encoded chunks are put
+     * @throws InterruptedException if the import was aborted
+     */
+    private void parseLines(FoodRowParser parser, BlockingQueue<Chunk> lineQueue,
+                            BlockingQueue<Chunk> copyQueue) throws InterruptedException {
+        try {
+            Chunk chunk;
+            while ((chunk = lineQueue.take()) != END) {
+                StringBuilder copyData = new StringBuilder(chunk.lines().size() * 64);
+                ArrayList<String> rejections = new ArrayList<>();
+                int parsed = 0;
+                int rejected = 0;
+
+                for (int i = 0; i < chunk.lines().size(); i++) {
+                    //Blank lines (usually the last one of the file) are not rows
+                    String line = chunk.lines().get(i);
+                    if (line.isBlank()) {
+                        continue;
+                    }
+                    parsed++;
+                    String reason = parser.parse(line, copyData);
+                    if (reason != null) {
+                        rejected++;
+                        if (rejections.size() < MAX_REPORTED_REJECTIONS) {
+                            rejections.add("line " + (chunk.firstLine() + i) + ": " + reason);
+                        }
+                    }
+                }
+                copyQueue.put(new Chunk(chunk.firstLine(), rejections, parsed, rejected,
+                        copyData.toString().getBytes(StandardCharsets.UTF_8)));
+            }
+        } finally {
+            copyQueue.put(END);
+        }
+    }
+
+    /**
+     * Streams the encoded chunks to the database (the writer stage)
+     *
+     * @param parser    the parser of the file's lines
+     * @param copyQueue where the encoded chunks are taken from
+     * @param readTask  the reader stage, checked for errors before the copy is completed
+     * @param start     the moment the import started
+     * @return the import's report, or null if a database error is encountered
+     * @throws IOException if the file could not be read
+     */
+    private ImportReport copyRows(FoodRowParser parser, BlockingQueue<Chunk> copyQueue, Future<?> readTask,
+                                  long start) throws IOException {
+        long rowsRead = 0;
+        long rowsRejected = 0;
+        ArrayList<String> rejections = new ArrayList<>();
+
+        try (Connection conn = dbManager.getConnection()) {
+            String target = "Food";
+            if (upsert) {
+                //The staging table only lives until the end of the transaction
+                conn.setAutoCommit(false);
+                try (Statement statement = conn.createStatement()) {
+                    statement.execute("CREATE TEMP TABLE " + STAGING_TABLE + " (id integer, brand varchar, " +
+                            "description varchar, calories numeric, protein numeric, carbs numeric) ON COMMIT DROP");
+                }
+                target = STAGING_TABLE;
+            }
+
+            CopyIn copyIn = conn.unwrap(PGConnection.class).getCopyAPI()
+                    .copyIn("COPY " + target + " (" + parser.getCopyColumns() + ") FROM STDIN");
+            long rowsCopied;
+            try {
+                int finishedParsers = 0;
+                while (finishedParsers < parserThreads) {
+                    Chunk chunk = copyQueue.take();
+                    if (chunk == END) {
+                        finishedParsers++;
+                        continue;
+                    }
+                    copyIn.writeToCopy(chunk.copyData(), 0, chunk.copyData().length);
+
+                    rowsRead += chunk.lineCount();
+                    rowsRejected += chunk.rejectedCount();
+                    for (String rejection : chunk.lines()) {
+                        if (rejections.size() < MAX_REPORTED_REJECTIONS) {
+                            rejections.add(rejection);
+                        }
+                    }
+                }
+                //Don't complete the copy of a file that could not be read to the end
+                readTask.get();
+                rowsCopied = copyIn.endCopy();
+            } finally {
+                if (copyIn.isActive()) {
+                    copyIn.cancelCopy();
+                }
+            }
+
+            if (!upsert) {
+                return new ImportReport(rowsRead, rowsCopied, rowsRejected, System.nanoTime() - start, rejections);
+            }
+
+            ArrayList<Food> merged = new ArrayList<>();
+            ArrayList<Food> corrections = new ArrayList<>();
+            long rowsImported = mergeStagingTable(conn, parser.hasIdColumn(), merged, corrections);
+            conn.commit();
+            foodManager.refreshFoods(merged);
+            if (!corrections.isEmpty() && foodManager.updateFoodNutrients(corrections) == -1) {
+                return null;
+            }
+            return new ImportReport(rowsRead, rowsImported, rowsRejected, System.nanoTime() - start, rejections);
+        } catch (SQLException e) {
+            System.err.println("SQL Database error: " + e.getMessage());
+            return null;
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ioException ? ioException : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Import was interrupted", e);
+        }
+    }
+
+    /**
+     * Moves the staged rows to the Food table, updating the foods that already exist
+     * The nutrients of existing foods are left untouched, the ones that differ are collected as corrections instead
+     *
+     * @param conn        the connection holding the staging table
+     * @param hasIdColumn whether the rows are matched by id (otherwise by brand and description)
+     * @param merged      where the inserted foods (and, when matching by id, the renamed ones) are added
+     * @param corrections where the existing foods are added with their staged nutrients, if these differ
+     * @return the amount of foods inserted or updated
+     * @throws SQLException if a database error is encountered
+     */
+    private long mergeStagingTable(Connection conn, boolean hasIdColumn, List<Food> merged, List<Food> corrections)
+            throws SQLException {
+        //DISTINCT ON keeps a single row per food, an upsert can't touch the same food twice
+        String distinctRows = hasIdColumn
+                ? "(SELECT DISTINCT ON (id) id, brand, description, calories, protein, carbs " +
+                  "FROM " + STAGING_TABLE + " ORDER BY id)"
+                : "(SELECT DISTINCT ON (brand, description) brand, description, calories, protein, carbs " +
+                  "FROM " + STAGING_TABLE + " ORDER BY brand, description)";
+        String match = hasIdColumn ? "f.id = s.id"
+                : "f.brand IS NOT DISTINCT FROM s.brand AND f.description = s.description";
+
+        try (Statement statement = conn.createStatement()) {
+            //Compared at the precision of the Food columns, so rounding alone isn't a correction
+            ResultSet rs = statement.executeQuery(
+                    "SELECT f.id, f.brand, f.description, s.calories, s.protein, s.carbs " +
+                    "FROM " + distinctRows + " s JOIN Food f ON " + match + " " +
+                    "WHERE (f.calories, f.protein, f.carbs) IS DISTINCT FROM " +
+                    "(round(s.calories, 3), round(s.protein, 3), round(s.carbs, 3))");
+            while (rs.next()) {
+                corrections.add(FoodManager.rowToFood(rs));
+            }
+
+            if (hasIdColumn) {
+                rs = statement.executeQuery(
+                        "INSERT INTO Food (id, brand, description, calories, protein, carbs) " +
+                        "SELECT id, brand, description, calories, protein, carbs FROM " + distinctRows + " s " +
+                        "ON CONFLICT (id) DO UPDATE SET brand = EXCLUDED.brand, description = EXCLUDED.description " +
+                        "RETURNING id, brand, description, calories, protein, carbs");
+            } else {
+                rs = statement.executeQuery(
+                        "INSERT INTO Food (brand, description, calories, protein, carbs) " +
+                        "SELECT brand, description, calories, protein, carbs FROM " + distinctRows + " s " +
+                        "WHERE NOT EXISTS (SELECT 1 FROM Food f WHERE " + match + ") " +
+                        "RETURNING id, brand, description, calories, protein, carbs");
+            }
+            while (rs.next()) {
+                merged.add(FoodManager.rowToFood(rs));
+            }
+            //Matching by id, the existing foods are also returned by the upsert
+            return hasIdColumn ? merged.size() : merged.size() + corrections.size();
+        }
+    }
+
+    /**
+     * A chunk of the file travelling through the pipeline
+     * Before parsing it carries the raw lines, after parsing it carries the encoded rows and the rejection reasons
+     *
+     * @param firstLine     the line number of the chunk's first line
+     * @param lines         the raw lines before parsing, the rejection reasons after parsing
+     * @param lineCount     the amount of lines parsed
+     * @param rejectedCount the amount of lines rejected
+     * @param copyData      the accepted rows in COPY's text format
+     */
+    private record Chunk(long firstLine, List<String> lines, int lineCount, int rejectedCount, byte[] copyData) {
+    }
+}
@@ -0,0 +1,254 @@
+package backend.food.importer;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * The FoodRowParser class turns the lines of a nutrition dataset (CSV or TSV) into rows of the Food table.
+ * The columns are located through the file's header, so their order does not matter.
+ * Accepted rows are encoded in the text format of PostgreSQL's COPY command.
+ * <p>
+ * Quoted fields ("Lay's, salted") are supported as long as they don't span multiple lines.
+ * The parser keeps no state between lines, so a single instance can be shared by all parser threads.
+ *
+ * @author taconoodle
+ */
+class FoodRowParser {
+    /**
+     * The amount of grams of macros a food can't exceed, since values are expressed per 100 grams of the food
+     */
+    private static final double MAX_MACROS = 100;
+
+    /**
+     * The field separator
+     */
+    private final char delimiter;
+
+    //The position of each column in a line, -1 if the file doesn't have it
+    private final int idColumn;
+    private final int brandColumn;
+    private final int descriptionColumn;
+    private final int caloriesColumn;
+    private final int proteinColumn;
+    private final int carbsColumn;
+
+    /**
+     * Default constructor
+     *
+     * @param header    the first line of the file, containing the column names
+     * @param delimiter the field separator
+     * @throws IllegalArgumentException if a required column is missing from the header
+     */
+    FoodRowParser(String header, char delimiter) {
+        this.delimiter = delimiter;
+
+        //Strip the byte order mark some spreadsheet tools put at the start of the file
+        if (header.startsWith("\uFEFF")) {
+            header = header.substring(1);
+        }
+        String[] names = split(header);
+        this.idColumn = findColumn(names, "id");
+        this.brandColumn = findColumn(names, "brand");
+        this.descriptionColumn = requireColumn(names, "description");
+        this.caloriesColumn = requireColumn(names, "calories");
+        this.proteinColumn = requireColumn(names, "protein", "proteins");
+        this.carbsColumn = requireColumn(names, "carbs");
+    }
+
+    /**
+     * Checks whether the file provides the IDs of the foods
+     *
+     * @return true if there is an id column
+     */
+    boolean hasIdColumn() {
+        return idColumn >= 0;
+    }
+
+    /**
+     * Gets the Food table columns the encoded rows contain, in the order they are encoded
+     *
+     * @return the comma separated column list
+     */
+    String getCopyColumns() {
+        return (hasIdColumn() ? "id, " : "") + "brand, description, calories, protein, carbs";
+    }
+
+    /**
+     * Parses and validates a line, appending it to the COPY data if it's accepted
+     *
+     * @param line     the line to parse
+     * @param copyData where the encoded row is appended
+     * @return null if the row was accepted, otherwise the reason it was rejected
+     */
+    String parse(String line, StringBuilder copyData) {
+        String[] fields = split(line);
+
+        String id = null;
+        if (hasIdColumn()) {
+            id = field(fields, idColumn);
+            try {
+                Integer.parseInt(id);
+            } catch (NumberFormatException e) {
+                return "id is not an integer: " + id;
+            }
+        }
+
+        String brand = brandColumn >= 0 ? field(fields, brandColumn) : "";
+        String description = field(fields, descriptionColumn);
+        if (description.isEmpty()) {
+            return "description is missing";
+        }
+
+        double calories, protein, carbs;
+        try {
+            calories = parseAmount(fields, caloriesColumn, "calories");
+            protein = parseAmount(fields, proteinColumn, "protein");
+            carbs = parseAmount(fields, carbsColumn, "carbs");
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();
+        }
+        if (protein + carbs > MAX_MACROS) {
+            return "protein and carbs add up to more than " + MAX_MACROS + " grams per 100 grams";
+        }
+
+        //Encode the row in COPY's text format: tab separated fields, \N for NULL
+        if (id != null) {
+            copyData.append(id).append('\t');
+        }
+        appendText(copyData, brand.isEmpty() ? null : brand).append('\t');
+        appendText(copyData, description).append('\t');
+        copyData.append(calories).append('\t')
+                .append(protein).append('\t')
+                .append(carbs).append('\n');
+        return null;
+    }
+
+    /**
+     * Splits a line into its fields, honoring double quotes
+     *
+     * @param line the line to split
+     * @return the fields of the line
+     */
+    String[] split(String line) {
+        ArrayList<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    //Two quotes inside a quoted field stand for one quote
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == delimiter) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields.toArray(new String[0]);
+    }
+
+    /**
+     * Gets a trimmed field of a line
+     *
+     * @param fields the fields of the line
+     * @param column the position of the field
+     * @return the field, or an empty string if the line is too short
+     */
+    private static String field(String[] fields, int column) {
+        return column < fields.length ? fields[column].trim() : "";
+    }
+
+    /**
+     * Parses a nutritional amount, which has to be a finite non-negative number
+     *
+     * @param fields the fields of the line
+     * @param column the position of the amount
+     * @param name   the name of the column, used in the rejection reason
+     * @return the amount
+     * @throws IllegalArgumentException if the amount is not valid
+     */
+    private static double parseAmount(String[] fields, int column, String name) {
+        String text = field(fields, column);
+        double amount;
+        try {
+            amount = Double.parseDouble(text);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " is not a number: " + text);
+        }
+        if (!Double.isFinite(amount) || amount < 0) {
+            throw new IllegalArgumentException(name + " is not a valid amount: " + text);
+        }
+        return amount;
+    }
+
+    /**
+     * Appends a text value escaped for COPY's text format
+     *
+     * @param copyData where the value is appended
+     * @param value    the value, or null
+     * @return copyData
+     */
+    private static StringBuilder appendText(StringBuilder copyData, String value) {
+        if (value == null) {
+            return copyData.append("\\N");
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\' -> copyData.append("\\\\");
+                case '\t' -> copyData.append("\\t");
+                case '\n' -> copyData.append("\\n");
+                case '\r' -> copyData.append("\\r");
+                default -> copyData.append(c);
+            }
+        }
+        return copyData;
+    }
+
+    /**
+     * Finds a column in the header
+     *
+     * @param names   the column names of the header
+     * @param aliases the names the column may have
+     * @return the position of the column, or -1 if it's missing
+     */
+    private static int findColumn(String[] names, String... aliases) {
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i].trim().toLowerCase(Locale.ROOT);
+            for (String alias : aliases) {
+                if (name.equals(alias)) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds a column that the file must have
+     *
+     * @param names   the column names of the header
+     * @param aliases the names the column may have
+     * @return the position of the column
+     * @throws IllegalArgumentException if the column is missing
+     */
+    private static int requireColumn(String[] names, String... aliases) {
+        int column = findColumn(names, aliases);
+        if (column < 0) {
+            throw new IllegalArgumentException("The file has no " + aliases[0] + " column");
+        }
+        return column;
+    }
+}
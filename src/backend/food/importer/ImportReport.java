@@ -0,0 +1,36 @@
+package backend.food.importer;
+
+import java.util.List;
+
+/**
+ * The outcome of a catalog import
+ *
+ * @param rowsRead     the amount of data lines read from the file
+ * @param rowsImported the amount of rows inserted (or updated, when upserting) in the Food table
+ * @param rowsRejected the amount of lines rejected by validation
+ * @param elapsedNanos how long the import took
+ * @param rejections   the reasons of the first rejected lines, prefixed by their line number
+ * @author taconoodle
+ */
+public record ImportReport(long rowsRead, long rowsImported, long rowsRejected, long elapsedNanos,
+                           List<String> rejections) {
+    /**
+     * Calculates the import's throughput
+     *
+     * @return the amount of lines read per second
+     */
+    public double rowsPerSecond() {
+        return elapsedNanos == 0 ? 0 : rowsRead * 1_000_000_000.0 / elapsedNanos;
+    }
+
+    /**
+     * Creates a string containing the report's info
+     *
+     * @return the info string
+     */
+    @Override
+    public String toString() {
+        return String.format("read %d | imported %d | rejected %d | %.2f s | %.0f rows/s",
+                rowsRead, rowsImported, rowsRejected, elapsedNanos / 1_000_000_000.0, rowsPerSecond());
+    }
+}
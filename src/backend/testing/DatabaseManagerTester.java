@@ -2,6 +2,7 @@ package backend.testing;
 
 import backend.database.DatabaseManager;
 
+import java.sql.Connection;
 import java.sql.SQLException;
 
 public class DatabaseManagerTester {
@@ -9,5 +10,34 @@ public class DatabaseManagerTester {
         DatabaseManager dbManager = new DatabaseManager();
 //        dbManager.establishConnection("postgres", dbManager.getPassword("postgres"));
         System.out.println(dbManager.getPassword("postgres"));
+
+        poolTest();
+    }
+
+    /**
+     * Tests the connection pool by borrowing more connections than the pool allows
+     *
+     * @throws SQLException if a database error has occured
+     */
+    public static void poolTest() throws SQLException {
+        System.out.println("\n---------- STARTING CONNECTION POOL TEST ----------\n" +
+                "---- BORROWING 3 CONNECTIONS FROM A POOL OF 2 ----\n");
+
+        DatabaseManager dbManager = new DatabaseManager()
+                .setPoolSize(1, 2)
+                .setBorrowTimeout(500)
+                .establishConnection(DatabaseManager.DB_TEST_USERNAME);
+
+        try (Connection first = dbManager.getConnection(); Connection second = dbManager.getConnection()) {
+            System.out.println("Borrowed 2 connections (valid: " + (first.isValid(1) && second.isValid(1)) + "): " +
+                    dbManager.getPoolStatistics());
+            try (Connection third = dbManager.getConnection()) {
+                System.out.println("Borrowed a third connection (" + third + "), the pool is not bounded!");
+            } catch (SQLException e) {
+                System.out.println("Third borrow timed out as expected: " + e.getMessage());
+            }
+        }
+        System.out.println("Returned all connections: " + dbManager.getPoolStatistics() + "\n");
+        dbManager.close();
     }
 }
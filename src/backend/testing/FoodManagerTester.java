@@ -3,10 +3,14 @@ package backend.testing;
 import backend.database.DatabaseManager;
 import backend.food.FoodManager;
 import backend.food.Food;
+import backend.food.FoodQuery;
+import backend.food.Nutrient;
 
 import javax.xml.crypto.Data;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.stream.Stream;
 
 import static backend.database.DatabaseManager.DB_TEST_USERNAME;
 
@@ -24,9 +28,9 @@ ex. for the addFood method (adds a new Food in the database), cover both the exi
  */
 public class FoodManagerTester {
     /**
-     * The database connection the tester will use in tests
+     * The database manager the tester will borrow connections from in tests
      */
-    Connection conn;
+    DatabaseManager dbManager;
 
     /**
      * Default constructor
@@ -34,7 +38,7 @@ public class FoodManagerTester {
      * @throws Exception if a database or driver error has occured
      */
     public FoodManagerTester() throws Exception {
-        this.conn = new DatabaseManager().establishConnection(DB_TEST_USERNAME).getConnection();
+        this.dbManager = new DatabaseManager().establishConnection(DB_TEST_USERNAME);
     }
 
     /**
@@ -55,6 +59,18 @@ public class FoodManagerTester {
 
         tester.getFoodOverCalsTest(true);
         tester.getFoodOverCalsTest(false);
+
+        tester.statementCacheTest();
+
+        tester.batchAddDeleteTest();
+
+        tester.streamFoodOverCalsTest();
+
+        tester.findFoodsTest();
+
+        tester.foodCacheTest();
+
+        tester.fuzzySearchTest();
     }
 
     /**
@@ -64,7 +80,7 @@ public class FoodManagerTester {
     public void addFoodTest() throws Exception {
         System.out.println("\n---------- STARTING ADD FOOD TEST ----------\n" +
                 "--- ATTEMPTING TO INSERT FOOD WITH ID -1 ---\n");
-        FoodManager manager = new FoodManager(this.conn);
+        FoodManager manager = new FoodManager(this.dbManager);
 
         Food testFood = new Food(-1, "TestBrand", "TestModel", 100.1, 200.2, 300.3);
         if (manager.addFood(testFood)) {
@@ -75,7 +91,7 @@ public class FoodManagerTester {
     public void getFoodTest() throws Exception {
         System.out.println("\n---------- STARTING GET FOOD TEST ----------\n" +
                 "---- ATTEMPTING TO FIND FOOD WITH ID -1 ----\n");
-        FoodManager manager = new FoodManager(this.conn);
+        FoodManager manager = new FoodManager(this.dbManager);
         //Attempt to pull from the database the food with ID -1 (test ID)
         Food newFood = manager.getFood(-1);
 
@@ -87,7 +103,7 @@ public class FoodManagerTester {
     public void deleteFoodTest() throws Exception {
         System.out.println("\n---------- STARTING DELETE FOOD TEST ----------\n" +
                 "----- ATTEMPTING TO DELETE FOOD WITH ID -1 ----\n");
-        FoodManager manager = new FoodManager(this.conn);
+        FoodManager manager = new FoodManager(this.dbManager);
 
         //Attempt to delete food with ID -1 (test ID) from database
         if (manager.deleteFood(-1)) {
@@ -96,7 +112,7 @@ public class FoodManagerTester {
     }
 
     public void getFoodUnderCalsTest(boolean fail) throws Exception {
-        FoodManager manager = new FoodManager(this.conn);
+        FoodManager manager = new FoodManager(this.dbManager);
         double calorieLimit;
 
         Food testFood1 = new Food(-1, "TestBrand", "TestModel", 100.1, 200.2, 300.3);
@@ -135,7 +151,7 @@ public class FoodManagerTester {
     }
 
     public void getFoodOverCalsTest(boolean fail) throws Exception {
-        FoodManager manager = new FoodManager(this.conn);
+        FoodManager manager = new FoodManager(this.dbManager);
         double calorieLimit;
 
         Food testFood1 = new Food(-1, "TestBrand", "TestModel", 100.1, 200.2, 300.3);
@@ -174,4 +190,127 @@ public class FoodManagerTester {
             System.out.println();
         }
     }
+
+    /**
+     * Tests that repeated lookups reuse the cached prepared statements
+     * @throws Exception
+     */
+    public void statementCacheTest() throws Exception {
+        System.out.println("\n---------- STARTING STATEMENT CACHE TEST ----------\n" +
+                "------- LOOKING UP FOOD WITH ID -1 100 TIMES -------\n");
+        FoodManager manager = new FoodManager(this.dbManager);
+
+        System.out.println("Before: " + this.dbManager.getStatementCacheStatistics());
+        for (int i = 0; i < 100; i++) {
+            manager.getFood(-1);
+        }
+        System.out.println("After: " + this.dbManager.getStatementCacheStatistics() + "\n");
+    }
+
+    /**
+     * Tests the addFoods and deleteFoods methods
+     * The same ID is inserted twice, so exactly one of the inserts must be rejected
+     * @throws Exception
+     */
+    public void batchAddDeleteTest() throws Exception {
+        System.out.println("\n---------- STARTING BATCH ADD/DELETE FOOD TEST ----------\n" +
+                "--- INSERTING FOODS WITH IDS -1, -2, -3, -2 AND DELETING THEM ---\n");
+        FoodManager manager = new FoodManager(this.dbManager);
+        manager.setBatchSize(2);
+
+        ArrayList<Food> testFoods = new ArrayList<>();
+        testFoods.add(new Food(-1, "TestBrand", "TestModel", 100.1, 200.2, 300.3));
+        testFoods.add(new Food(-2, "TestBrand", "TestModel", 100.1, 200.2, 300.3));
+        testFoods.add(new Food(-3, "TestBrand", "TestModel", 100.1, 200.2, 300.3));
+        testFoods.add(new Food(-2, "TestBrand", "Duplicate", 100.1, 200.2, 300.3));
+
+        System.out.println("Insert outcomes: " + Arrays.toString(manager.addFoods(testFoods)));
+        System.out.println("Delete outcomes: " + Arrays.toString(manager.deleteFoods(new int[]{-1, -2, -3, -4})) + "\n");
+    }
+
+    /**
+     * Tests the streamFoodOverCals method by counting every food of the catalog
+     * Only fetchSize foods are held in memory at a time
+     * @throws Exception
+     */
+    public void streamFoodOverCalsTest() throws Exception {
+        System.out.println("\n---------- STARTING STREAM FOOD OVER GIVEN CALORIES TEST ----------\n" +
+                "---------- ATTEMPTING TO COUNT FOODS WITH CALORIES OVER -1 ---------\n");
+        FoodManager manager = new FoodManager(this.dbManager);
+        manager.setFetchSize(100);
+
+        try (Stream<Food> foods = manager.streamFoodOverCals(-1)) {
+            System.out.println("The catalog contains " + foods.count() + " foods.\n");
+        }
+        System.out.println("Pool after streaming: " + this.dbManager.getPoolStatistics() + "\n");
+    }
+
+    /**
+     * Tests the findFoods method by paging through the foods with at most 200 calories and over 15 proteins
+     * @throws Exception
+     */
+    public void findFoodsTest() throws Exception {
+        System.out.println("\n---------- STARTING MULTI-CRITERIA FOOD QUERY TEST ----------\n" +
+                "--- PAGING THROUGH FOODS WITH CALORIES <= 200 AND PROTEIN > 15, 10 AT A TIME ---\n");
+        FoodManager manager = new FoodManager(this.dbManager);
+
+        FoodQuery query = new FoodQuery()
+                .atMost(Nutrient.CALORIES, 200)
+                .over(Nutrient.PROTEIN, 15)
+                .orderBy(Nutrient.PROTEIN, false)
+                .limit(10);
+
+        int pageNumber = 1;
+        ArrayList<Food> page = manager.findFoods(query);
+        while (page != null && !page.isEmpty()) {
+            System.out.println("Page " + pageNumber++ + ":");
+            for (Food food : page) {
+                System.out.println(food.toString());
+            }
+            page = manager.findFoods(query.after(page.get(page.size() - 1)));
+        }
+        System.out.println();
+    }
+
+    /**
+     * Tests the food cache: only the first lookup of the food should reach the database,
+     * and deleting the food should remove it from the cache
+     * @throws Exception
+     */
+    public void foodCacheTest() throws Exception {
+        System.out.println("\n---------- STARTING FOOD CACHE TEST ----------\n" +
+                "--- INSERTING FOOD WITH ID -1, LOOKING IT UP 100 TIMES AND DELETING IT ---\n");
+        FoodManager manager = new FoodManager(this.dbManager);
+        manager.enableCache(100, 60_000);
+
+        manager.addFood(new Food(-1, "TestBrand", "TestModel", 100.1, 200.2, 300.3));
+        for (int i = 0; i < 100; i++) {
+            manager.getFood(-1);
+        }
+        System.out.println("After lookups: " + manager.getCacheStatistics());
+
+        manager.deleteFood(-1);
+        System.out.println("Lookup after delete: " + manager.getFood(-1));
+        System.out.println("After delete: " + manager.getCacheStatistics() + "\n");
+    }
+
+    /**
+     * Tests the fuzzySearchFoods method with a misspelled food name
+     * @throws Exception
+     */
+    public void fuzzySearchTest() throws Exception {
+        System.out.println("\n---------- STARTING FUZZY FOOD SEARCH TEST ----------\n" +
+                "--- INSERTING 'Chicken breast' WITH ID -1 AND SEARCHING FOR 'chiken brest' ---\n");
+        FoodManager manager = new FoodManager(this.dbManager);
+        manager.addFood(new Food(-1, "TestBrand", "Chicken breast", 165, 31, 0));
+
+        ArrayList<Food> matches = manager.fuzzySearchFoods("chiken brest", 10);
+        if (matches != null && matches.stream().anyMatch(food -> food.getId() == -1)) {
+            System.out.println("SUCCESS: The misspelled food was found.");
+        } else {
+            System.out.println("FAILED: The misspelled food was not found.");
+        }
+        manager.deleteFood(-1);
+        System.out.println();
+    }
 }
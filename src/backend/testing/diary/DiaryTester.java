@@ -0,0 +1,299 @@
+package backend.testing.diary;
+
+import backend.database.DatabaseManager;
+import backend.diary.Day;
+import backend.diary.DiaryManager;
+import backend.diary.DiaryPartitions;
+import backend.diary.Meal;
+import backend.diary.NutritionRollup;
+import backend.food.Food;
+import backend.food.FoodManager;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static backend.database.DatabaseManager.DB_TEST_USERNAME;
+
+public class DiaryTester {
+    private DatabaseManager dbManager;
+
+    public static void main(String[] args) throws Exception {
+        DiaryTester tester = new DiaryTester();
+        tester.addTestFoods();
+        try {
+            tester.testDayRoundTrip();
+            tester.testRange();
+            tester.testWriteBehind();
+            tester.testInvalidEntries();
+            tester.testJournalReplay();
+            tester.testRollups();
+            tester.testPartitions();
+        } finally {
+            tester.deleteTestFoods();
+        }
+    }
+
+    public DiaryTester() throws Exception {
+        this.dbManager = new DatabaseManager().establishConnection(DB_TEST_USERNAME);
+    }
+
+    /**
+     * Stores the foods the tests eat, the other testers delete them when they finish
+     *
+     * @throws SQLException if a database error has occured
+     */
+    private void addTestFoods() throws SQLException {
+        FoodManager foodManager = new FoodManager(dbManager);
+        foodManager.addFood(new Food(-1, "TestBrand", "Chicken breast", 165, 31, 0));
+        foodManager.addFood(new Food(-2, "TestBrand", "Rice", 130, 2.7, 28));
+    }
+
+    /**
+     * Deletes the foods the tests eat, once every test has cleared its days
+     *
+     * @throws SQLException if a database error has occured
+     */
+    private void deleteTestFoods() throws SQLException {
+        new FoodManager(dbManager).deleteFoods(new int[]{-1, -2});
+    }
+
+    private void testDayRoundTrip() throws SQLException {
+        FoodManager foodManager = new FoodManager(dbManager);
+        DiaryManager diaryManager = new DiaryManager(dbManager);
+        LocalDate date = LocalDate.of(2000, 1, 1);
+
+        Day day = new Day(date);
+        day.getBreakfast().addFood(foodManager.getFood(-1), 150);
+        day.getLunch().addFood(foodManager.getFood(-2), 200);
+        day.getLunch().addFood(foodManager.getFood(-1), 50);
+        System.out.println("Saved: " + diaryManager.saveDay(day));
+
+        Day loaded = diaryManager.getDay(date);
+        for (Meal.Type type : Meal.Type.values()) {
+            System.out.println(type + ": " + loaded.getMeal(type).getEntries().size() + " entries, " +
+                    loaded.getMeal(type).getMacros() + " (expected " + day.getMeal(type).getMacros() + ")");
+        }
+
+        diaryManager.removeEntries(date, Meal.Type.LUNCH, -1);
+        System.out.println("Lunch entries after removing food -1: " +
+                diaryManager.getDay(date).getLunch().getEntries().size() + " (expected 1)");
+        diaryManager.saveDay(new Day(date));
+        diaryManager.close();
+    }
+
+    private void testRange() throws SQLException {
+        FoodManager foodManager = new FoodManager(dbManager);
+        DiaryManager diaryManager = new DiaryManager(dbManager);
+        LocalDate from = LocalDate.of(2000, 2, 1);
+
+        for (int i = 0; i < 7; i += 2) {
+            diaryManager.addEntry(from.plusDays(i), Meal.Type.DINNER, -1, 100);
+        }
+        ArrayList<Day> days = diaryManager.getDays(from, from.plusDays(6));
+        System.out.println("Loaded " + days.size() + " days (expected 7)");
+        for (Day day : days) {
+            System.out.println(day.getDate() + " dinner calories: " + day.getDinner().getCalories() +
+                    " (expected " + (day.getDate().getDayOfMonth() % 2 == 1 ? foodManager.getFood(-1).getCalories() : 0.0) + ")");
+            diaryManager.saveDay(new Day(day.getDate()));
+        }
+        diaryManager.close();
+    }
+
+    private void testWriteBehind() throws Exception {
+        DiaryManager diaryManager = new DiaryManager(dbManager);
+        LocalDate date = LocalDate.of(2000, 3, 1);
+        Path journal = Files.createTempDirectory("diary").resolve("diary.journal");
+        diaryManager.enableWriteBehind(journal, 100, 50);
+
+        //Many users logging at once, the entries are grouped into a few transactions
+        ExecutorService users = Executors.newFixedThreadPool(16);
+        long start = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            users.submit(() -> diaryManager.addEntry(date, Meal.Type.SNACKS, -1, 10));
+        }
+        users.shutdown();
+        users.awaitTermination(1, TimeUnit.MINUTES);
+        System.out.println("Logged 1000 entries in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+
+        System.out.println("Snack entries: " + diaryManager.getDay(date).getSnacks().getEntries().size() +
+                " (expected 1000)");
+        diaryManager.disableWriteBehind();
+        System.out.println("Journal size after closing: " + journalBytes(journal) + " (expected 0)");
+        diaryManager.saveDay(new Day(date));
+        deleteJournal(journal);
+        diaryManager.close();
+    }
+
+    private void testInvalidEntries() throws Exception {
+        DiaryManager diaryManager = new DiaryManager(dbManager);
+        Path journal = Files.createTempDirectory("diary").resolve("diary.journal");
+        diaryManager.enableWriteBehind(journal, 100, 50);
+
+        for (double quantity : new double[]{Double.NaN, Double.POSITIVE_INFINITY, 0, -5}) {
+            try {
+                diaryManager.addEntry(LocalDate.of(2000, 3, 2), Meal.Type.SNACKS, -1, quantity);
+                System.out.println("FAILED: quantity " + quantity + " was accepted");
+            } catch (IllegalArgumentException e) {
+                System.out.println("Rejected: " + e.getMessage());
+            }
+        }
+        try {
+            diaryManager.addEntry(LocalDate.of(10_000, 1, 1), Meal.Type.SNACKS, -1, 10);
+            System.out.println("FAILED: year 10000 was accepted");
+        } catch (IllegalArgumentException e) {
+            System.out.println("Rejected: " + e.getMessage());
+        }
+
+        //An unknown food is dropped by the writer instead of holding back the entries after it
+        diaryManager.addEntry(LocalDate.of(2000, 3, 2), Meal.Type.SNACKS, Integer.MIN_VALUE, 10);
+        diaryManager.addEntry(LocalDate.of(2000, 3, 2), Meal.Type.SNACKS, -1, 10);
+        System.out.println("Snack entries: " + diaryManager.getDay(LocalDate.of(2000, 3, 2)).getSnacks().getEntries().size() +
+                " (expected 1)");
+        diaryManager.disableWriteBehind();
+        diaryManager.saveDay(new Day(LocalDate.of(2000, 3, 2)));
+        deleteJournal(journal);
+        diaryManager.close();
+    }
+
+    private void testJournalReplay() throws Exception {
+        DiaryManager diaryManager = new DiaryManager(dbManager);
+        LocalDate date = LocalDate.of(2000, 3, 3);
+        Path journal = Files.createTempDirectory("diary").resolve("diary.journal");
+        diaryManager.enableWriteBehind(journal, 100, 50);
+
+        //A removed entry is checkpointed as written, a new writer on the same journal must not bring it back
+        diaryManager.addEntry(date, Meal.Type.SNACKS, -1, 10);
+        diaryManager.removeEntries(date, Meal.Type.SNACKS, -1);
+        diaryManager.disableWriteBehind();
+        diaryManager.enableWriteBehind(journal, 100, 50);
+        System.out.println("Snack entries after replay: " + diaryManager.getDay(date).getSnacks().getEntries().size() +
+                " (expected 0)");
+        diaryManager.disableWriteBehind();
+        deleteJournal(journal);
+        diaryManager.close();
+    }
+
+    /**
+     * Adds up the size of the segments of a journal, without its checkpoint
+     *
+     * @param journal the path of the journal
+     * @return the amount of bytes
+     * @throws IOException if the directory can't be listed
+     */
+    private long journalBytes(Path journal) throws IOException {
+        try (Stream<Path> files = Files.list(journal.getParent())) {
+            return files.filter(file -> !file.toString().endsWith(".checkpoint"))
+                    .mapToLong(file -> file.toFile().length())
+                    .sum();
+        }
+    }
+
+    /**
+     * Deletes the files of a journal and their directory
+     *
+     * @param journal the path of the journal
+     * @throws IOException if a file can't be deleted
+     */
+    private void deleteJournal(Path journal) throws IOException {
+        try (Stream<Path> files = Files.list(journal.getParent())) {
+            for (Path file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(journal.getParent());
+    }
+
+    private void testRollups() throws SQLException {
+        DiaryManager diaryManager = new DiaryManager(dbManager);
+        LocalDate from = LocalDate.of(2000, 4, 24);
+        LocalDate to = LocalDate.of(2000, 5, 7);
+
+        for (LocalDate date = from; !date.isAfter(to); date = date.plusDays(1)) {
+            diaryManager.addEntry(date, Meal.Type.BREAKFAST, -1, 100);
+            diaryManager.addEntry(date, Meal.Type.DINNER, -2, 50);
+        }
+        diaryManager.removeEntries(from, Meal.Type.DINNER, -2);
+
+        //The rollups kept up to date by the writes must match the sum over the loaded days
+        double expected = 0;
+        for (Day day : diaryManager.getDays(from, to)) {
+            for (Meal.Type type : Meal.Type.values()) {
+                expected += day.getMeal(type).getCalories();
+            }
+        }
+        for (NutritionRollup.Granularity granularity : NutritionRollup.Granularity.values()) {
+            System.out.println(granularity + " calories: " + sumCalories(diaryManager, granularity, from, to) +
+                    " (expected " + expected + ")");
+        }
+
+        //A corrected food changes neither the logged entries nor the rollups, and removing an entry logged before
+        //the correction subtracts what it added
+        FoodManager foodManager = new FoodManager(dbManager);
+        foodManager.updateFoodNutrients(new Food(-1, "TestBrand", "Chicken breast", 200, 31, 0));
+        diaryManager.removeEntries(to, Meal.Type.BREAKFAST, -1);
+        expected = 0;
+        for (Day day : diaryManager.getDays(from, to)) {
+            expected += day.getMacros().getCalories();
+        }
+        System.out.println("DAY calories after a correction: " +
+                sumCalories(diaryManager, NutritionRollup.Granularity.DAY, from, to) + " (expected " + expected + ")");
+        foodManager.updateFoodNutrients(new Food(-1, "TestBrand", "Chicken breast", 165, 31, 0));
+
+        System.out.println("Backfilled rollups: " + diaryManager.backfillRollups(from, to));
+        System.out.println("WEEK calories after backfill: " +
+                sumCalories(diaryManager, NutritionRollup.Granularity.WEEK, from, to) + " (expected " + expected + ")");
+
+        for (LocalDate date = from; !date.isAfter(to); date = date.plusDays(1)) {
+            diaryManager.saveDay(new Day(date));
+        }
+        System.out.println("MONTH rollups after clearing: " +
+                diaryManager.getRollups(NutritionRollup.Granularity.MONTH, from, to).size() + " (expected 0)");
+        diaryManager.close();
+    }
+
+    private void testPartitions() throws SQLException {
+        DiaryManager diaryManager = new DiaryManager(dbManager);
+        DiaryPartitions partitions = diaryManager.getPartitions();
+        LocalDate date = LocalDate.of(1999, 6, 15);
+
+        //The first entry of a month creates its partition
+        diaryManager.addEntry(date, Meal.Type.LUNCH, -1, 100);
+        System.out.println("Partition of 1999-06 created: " + partitions.getPartitions().contains(YearMonth.of(1999, 6)) +
+                " (expected true)");
+        System.out.println("Created partitions ahead: " + partitions.createPartitions(3));
+        System.out.println("Partition 3 months ahead attached: " +
+                partitions.getPartitions().contains(YearMonth.now().plusMonths(3)) + " (expected true)");
+        System.out.println("Compacted partitions: " + partitions.compactPartitions(12));
+
+        System.out.println("Archived 1999-06: " + partitions.archivePartition(YearMonth.of(1999, 6)));
+        System.out.println("Lunch entries after archiving: " + diaryManager.getDay(date).getLunch().getEntries().size() +
+                " (expected 0)");
+        //The rollups of an archived month are kept, a backfill over it leaves them alone
+        diaryManager.backfillRollups(date.withDayOfMonth(1), date.withDayOfMonth(30));
+        System.out.println("MONTH rollups of 1999-06 after the backfill: " +
+                diaryManager.getRollups(NutritionRollup.Granularity.MONTH, date, date).size() + " (expected 1)");
+        System.out.println("Restored 1999-06: " + partitions.restorePartition(YearMonth.of(1999, 6)));
+        System.out.println("Lunch entries after restoring: " + diaryManager.getDay(date).getLunch().getEntries().size() +
+                " (expected 1)");
+        diaryManager.saveDay(new Day(date));
+        diaryManager.close();
+    }
+
+    private double sumCalories(DiaryManager diaryManager, NutritionRollup.Granularity granularity,
+                               LocalDate from, LocalDate to) throws SQLException {
+        double calories = 0;
+        for (NutritionRollup rollup : diaryManager.getRollups(granularity, from, to)) {
+            calories += rollup.calories();
+        }
+        return calories;
+    }
+}
@@ -0,0 +1,82 @@
+package backend.testing.diary;
+
+import backend.diary.Day;
+import backend.diary.Meal;
+import backend.diary.MealEntry;
+import backend.food.Food;
+import backend.food.Macros;
+
+import java.time.LocalDate;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The MealTester class checks that a day changed by many threads at once loses no update, and that a snapshot of
+ * a meal always has totals matching its entries while it's being changed.
+ * It doesn't need a database.
+ *
+ * @author taconoodle
+ */
+public class MealTester {
+    public static void main(String[] args) throws InterruptedException {
+        MealTester tester = new MealTester();
+        tester.concurrentChangesTest();
+    }
+
+    /**
+     * Adds foods to a day from many threads and removes some of them, while a reader checks every snapshot it sees
+     */
+    private void concurrentChangesTest() throws InterruptedException {
+        Day day = new Day(LocalDate.of(2000, 1, 1));
+        Food apple = new Food(1, "Generic", "Apple", 52, 0.3, 14);
+        Food bread = new Food(2, "Generic", "Bread", 265, 9, 49);
+        int threads = 8;
+        int addsPerThread = 2000;
+
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicInteger inconsistent = new AtomicInteger();
+        Thread reader = new Thread(() -> {
+            while (writing.get()) {
+                Meal.Snapshot snapshot = day.getLunch().snapshot();
+                Macros sum = Macros.ZERO;
+                for (MealEntry entry : snapshot.entries()) {
+                    sum = sum.plus(entry.macros());
+                }
+                if (!sum.equals(snapshot.macros())) {
+                    inconsistent.incrementAndGet();
+                }
+            }
+        });
+        reader.start();
+
+        ExecutorService writers = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        for (int t = 0; t < threads; t++) {
+            writers.submit(() -> {
+                start.await();
+                for (int i = 0; i < addsPerThread; i++) {
+                    day.getLunch().addFood(apple, 100);
+                    day.getLunch().addFood(bread, 50);
+                    day.getLunch().removeFood(bread);
+                }
+                return null;
+            });
+        }
+        start.countDown();
+        writers.shutdown();
+        writers.awaitTermination(1, TimeUnit.MINUTES);
+        writing.set(false);
+        reader.join();
+
+        int expectedEntries = threads * addsPerThread;
+        System.out.println("Lunch entries: " + day.getLunch().getEntries().size() + " (expected " + expectedEntries + ")");
+        System.out.println("Lunch calories: " + day.getLunch().getCalories() +
+                " (expected " + MealEntry.of(apple, 100).macros().getCalories() * expectedEntries + ")");
+        System.out.println("Day calories: " + day.getMacros().getCalories() + " (expected " + day.getLunch().getCalories() + ")");
+        System.out.println("Inconsistent snapshots: " + inconsistent.get() + " (expected 0)");
+    }
+}
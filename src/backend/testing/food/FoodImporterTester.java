@@ -0,0 +1,66 @@
+package backend.testing.food;
+
+import backend.database.DatabaseManager;
+import backend.food.FoodManager;
+import backend.food.importer.FoodImporter;
+import backend.food.importer.ImportReport;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static backend.database.DatabaseManager.DB_TEST_USERNAME;
+
+public class FoodImporterTester {
+    private DatabaseManager dbManager;
+
+    public static void main(String[] args) throws Exception {
+        FoodImporterTester tester = new FoodImporterTester();
+        tester.testImport();
+    }
+
+    public FoodImporterTester() throws Exception {
+        this.dbManager = new DatabaseManager().establishConnection(DB_TEST_USERNAME);
+    }
+
+    /**
+     * Imports a small CSV file with two valid and two invalid rows, twice, the second time upserting
+     *
+     * @throws Exception if a database or file error has occured
+     */
+    private void testImport() throws Exception {
+        Path file = Files.createTempFile("food-import", ".csv");
+        Files.write(file, List.of(
+                "id,brand,description,calories,protein,carbs",
+                "-1,TestBrand,\"Chips, salted\",536,7,53",
+                "-2,TestBrand,Chicken breast,165,31,0",
+                "-3,TestBrand,Broken row,abc,1,1",
+                "-4,TestBrand,Impossible macros,100,80,80"
+        ));
+
+        ImportReport report = new FoodImporter(this.dbManager).setChunkSize(2).importFile(file);
+        System.out.println("First import: " + report);
+        report.rejections().forEach(System.out::println);
+
+        report = new FoodImporter(this.dbManager).setUpsert(true).importFile(file);
+        System.out.println("Upsert import: " + report);
+
+        //A changed nutrient is a correction, it reaches the food manager's listeners
+        FoodManager foodManager = new FoodManager(this.dbManager);
+        ArrayList<Integer> corrected = new ArrayList<>();
+        foodManager.addFoodListener(corrected::add);
+        Files.write(file, List.of(
+                "id,brand,description,calories,protein,carbs",
+                "-1,TestBrand,\"Chips, salted\",540,7,53",
+                "-2,TestBrand,Chicken breast,165,31,0"
+        ));
+        report = new FoodImporter(this.dbManager).setFoodManager(foodManager).setUpsert(true).importFile(file);
+        System.out.println("Correcting import: " + report);
+        System.out.println("Corrected foods: " + corrected + " (expected [-1])");
+        System.out.println("Calories of food -1: " + foodManager.getFood(-1).getCalories() + " (expected 540.0)");
+
+        foodManager.deleteFoods(new int[]{-1, -2});
+        Files.delete(file);
+    }
+}
@@ -0,0 +1,74 @@
+package backend.testing.food;
+
+import backend.food.Food;
+import backend.food.FoodNameIndex;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The FoodNameIndexTester class checks the type-ahead searches of the in-memory FoodNameIndex.
+ * It doesn't need a database.
+ *
+ * @author taconoodle
+ */
+public class FoodNameIndexTester {
+    public static void main(String[] args) {
+        FoodNameIndexTester tester = new FoodNameIndexTester();
+        tester.searchTest();
+        tester.mutationTest();
+    }
+
+    /**
+     * Searches a small catalog keystroke by keystroke, then removes a food and searches again
+     */
+    private void searchTest() {
+        FoodNameIndex index = new FoodNameIndex(List.of(
+                new Food(1, "Lay's", "Chips, salted", 536, 7, 53),
+                new Food(2, "Farm Fresh", "Chicken breast", 165, 31, 0),
+                new Food(3, "Farm Fresh", "Chicken thigh", 209, 26, 0),
+                new Food(4, "Nestl\u00e9", "Cr\u00e8me br\u00fbl\u00e9e", 290, 4, 30),
+                new Food(5, "Generic", "Chickpeas, canned", 139, 7, 22)
+        ));
+
+        String typed = "chicken bre";
+        for (int i = 1; i <= typed.length(); i++) {
+            System.out.println("\"" + typed.substring(0, i) + "\" -> " + ids(index.search(typed.substring(0, i), 10)));
+        }
+        System.out.println("\"creme brulee\" -> " + ids(index.search("creme brulee", 10)) + " (expected [4])");
+        System.out.println("\"fresh\" top 1 -> " + ids(index.search("fresh", 1)) + " (expected [2])");
+
+        index.remove(2);
+        System.out.println("\"chicken bre\" after removing 2 -> " + ids(index.search("chicken bre", 10)) +
+                " (expected [])");
+    }
+
+    /**
+     * Changes foods given to and returned by the index, which must not change what the index holds,
+     * then replaces a food through add
+     */
+    private void mutationTest() {
+        Food chips = new Food(1, "Lay's", "Chips, salted", 536, 7, 53);
+        FoodNameIndex index = new FoodNameIndex(List.of(chips, new Food(2, "Lay's", "Chips, oregano", 530, 6, 52)));
+
+        chips.setDescription("Pretzels");
+        index.search("chips", 10).get(0).setBrand("Pringles");
+        System.out.println("\"lay chips\" -> " + ids(index.search("lay chips", 10)) + " (expected [1, 2])");
+
+        index.add(new Food(1, "Lay's", "Pretzels", 380, 10, 80));
+        index.add(new Food(3, "Lay's", "Chips, paprika", 530, 6, 52));
+        System.out.println("\"lay\" -> " + ids(index.search("lay", 10)) + " (expected [1, 2, 3])");
+        System.out.println("\"chips\" -> " + ids(index.search("chips", 10)) + " (expected [2, 3])");
+        System.out.println("Size: " + index.size() + " (expected 3)");
+    }
+
+    /**
+     * Gets the IDs of a list of foods
+     *
+     * @param foods the foods
+     * @return the IDs
+     */
+    private List<Integer> ids(ArrayList<Food> foods) {
+        return foods.stream().map(Food::getId).toList();
+    }
+}
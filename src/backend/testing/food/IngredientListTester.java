@@ -0,0 +1,74 @@
+package backend.testing.food;
+
+import backend.food.Food;
+import backend.food.Macros;
+import backend.food.Recipe;
+import backend.food.RecipeIngredient;
+
+import java.util.Random;
+
+/**
+ * The IngredientListTester class checks that a recipe's totals follow random additions and removals of ingredients,
+ * by comparing them with a fresh sum over the ingredients after every change.
+ * It doesn't need a database.
+ *
+ * @author taconoodle
+ */
+public class IngredientListTester {
+    public static void main(String[] args) {
+        IngredientListTester tester = new IngredientListTester();
+        tester.randomChangesTest();
+        tester.subRecipeTest();
+    }
+
+    /**
+     * Adds and removes random ingredients and compares the totals with a fresh sum after each change
+     */
+    private void randomChangesTest() {
+        Random random = new Random(42);
+        Food[] foods = new Food[50];
+        for (int i = 0; i < foods.length; i++) {
+            foods[i] = new Food(i, "Brand " + i, "Food " + i,
+                    random.nextDouble() * 900, random.nextDouble() * 90, random.nextDouble() * 90);
+        }
+
+        Recipe recipe = new Recipe(1, "Tester", "Random recipe");
+        int mismatches = 0;
+        for (int step = 0; step < 100_000; step++) {
+            Food food = foods[random.nextInt(foods.length)];
+            if (random.nextInt(3) == 0) {
+                recipe.removeIngredient(food.getId());
+            } else {
+                recipe.addIngredient(new RecipeIngredient(food, random.nextDouble() * 300));
+            }
+
+            //The totals are fixed point, so they must match the fresh sum exactly
+            Macros sum = Macros.ZERO;
+            for (RecipeIngredient ingredient : recipe.getIngredients()) {
+                sum = sum.plus(ingredient.getMacros());
+            }
+            if (!sum.equals(recipe.getMacros())) {
+                mismatches++;
+            }
+        }
+        System.out.println("Ingredients left: " + recipe.getIngredientList().size() +
+                ", mismatched totals: " + mismatches + " (expected 0)");
+    }
+
+    /**
+     * Adds a food and a sub-recipe with the same ID, they must stay two ingredients
+     */
+    private void subRecipeTest() {
+        Recipe sauce = new Recipe(7, "Tester", "Sauce");
+        sauce.setCalories(200);
+
+        Recipe recipe = new Recipe(1, "Tester", "Pasta");
+        recipe.addIngredient(new RecipeIngredient(new Food(7, "Generic", "Pasta", 350, 12, 70), 100));
+        recipe.addIngredient(new RecipeIngredient(sauce, 50));
+        System.out.println("Ingredients: " + recipe.getIngredientList().size() + " (expected 2), calories: " +
+                recipe.getCalories() + " (expected 450.0)");
+
+        recipe.removeIngredient(7);
+        System.out.println("After removing food 7, calories: " + recipe.getCalories() + " (expected 100.0)");
+    }
+}
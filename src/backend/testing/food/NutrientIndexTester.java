@@ -0,0 +1,101 @@
+package backend.testing.food;
+
+import backend.food.Food;
+import backend.food.Nutrient;
+import backend.food.NutrientIndex;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * The NutrientIndexTester class checks the in-memory NutrientIndex against a plain scan of the same foods.
+ * It doesn't need a database.
+ *
+ * @author taconoodle
+ */
+public class NutrientIndexTester {
+    public static void main(String[] args) {
+        NutrientIndexTester tester = new NutrientIndexTester();
+        tester.rangeTest();
+        tester.mutationTest();
+    }
+
+    /**
+     * Builds an index of random foods, changes it and compares every kind of lookup with a scan
+     */
+    private void rangeTest() {
+        Random random = new Random(42);
+        ArrayList<Food> catalog = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            catalog.add(randomFood(random, i));
+        }
+
+        long start = System.nanoTime();
+        NutrientIndex index = new NutrientIndex(catalog);
+        System.out.printf("Built index of %d foods in %.1f ms%n", index.size(), (System.nanoTime() - start) / 1e6);
+
+        //Replace, add and remove some foods, keeping the catalog in sync
+        for (int i = 0; i < 1_000; i++) {
+            Food food = randomFood(random, random.nextInt(12_000));
+            catalog.removeIf(f -> f.getId() == food.getId());
+            catalog.add(food);
+            index.add(food);
+
+            int removedId = random.nextInt(12_000);
+            boolean existed = catalog.removeIf(f -> f.getId() == removedId);
+            if (index.remove(removedId) != existed) {
+                System.out.println("FAILED: remove(" + removedId + ") disagrees with the catalog");
+            }
+        }
+
+        int failures = 0;
+        for (int i = 0; i < 100; i++) {
+            double limit = random.nextInt(600);
+            for (Nutrient nutrient : Nutrient.values()) {
+                long expectedAtMost = catalog.stream().filter(f -> nutrient.of(f) <= limit).count();
+                long expectedOver = catalog.size() - expectedAtMost;
+                if (index.atMost(nutrient, limit).size() != expectedAtMost
+                        || index.countAtMost(nutrient, limit) != expectedAtMost
+                        || index.over(nutrient, limit).size() != expectedOver) {
+                    failures++;
+                }
+            }
+        }
+        System.out.println(index.size() == catalog.size() && failures == 0
+                ? "SUCCESS: every lookup matches the scan"
+                : "FAILED: " + failures + " lookups don't match the scan");
+    }
+
+    /**
+     * Changes foods after they were indexed or returned by a lookup, then updates them in the index
+     */
+    private void mutationTest() {
+        Food food = new Food(1, "TestBrand", "Apple", 52, 0.3, 14);
+        NutrientIndex index = new NutrientIndex(new ArrayList<>());
+        index.add(food);
+        index.add(new Food(2, "TestBrand", "Bread", 265, 9, 49));
+
+        //The caller corrects its own Food, then updates the index with it
+        food.setCalories(300);
+        index.add(food);
+        //A caller changes a food it got from a lookup
+        index.atMost(Nutrient.CALORIES, 1000).get(0).setCalories(5);
+
+        System.out.println("Size: " + index.size() + " (expected 2)");
+        System.out.println("Foods under 100 calories: " + index.countAtMost(Nutrient.CALORIES, 100) + " (expected 0)");
+        System.out.println("Removed food 1: " + index.remove(1) + ", size " + index.size() + " (expected true, 1)");
+    }
+
+    /**
+     * Creates a food with random nutrients
+     *
+     * @param random the random generator
+     * @param id     the food's ID
+     * @return the food
+     */
+    private Food randomFood(Random random, int id) {
+        //Whole amounts make ties (and the boundary of each limit) common
+        return new Food(id, "TestBrand", "Food " + id,
+                random.nextInt(600), random.nextInt(50), random.nextInt(50));
+    }
+}
@@ -0,0 +1,57 @@
+package backend.testing.food;
+
+import backend.food.Food;
+import backend.food.Nutrient;
+import backend.food.NutrientRange;
+import backend.food.NutrientTree;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * The NutrientTreeTester class checks the in-memory NutrientTree against a plain scan of the same foods.
+ * It doesn't need a database.
+ *
+ * @author taconoodle
+ */
+public class NutrientTreeTester {
+    public static void main(String[] args) {
+        NutrientTreeTester tester = new NutrientTreeTester();
+        tester.boxTest();
+    }
+
+    /**
+     * Builds a tree of random foods and compares random box-shaped questions with a scan
+     */
+    private void boxTest() {
+        Random random = new Random(42);
+        ArrayList<Food> catalog = new ArrayList<>();
+        for (int i = 0; i < 200_000; i++) {
+            //Whole amounts make ties (and the borders of each box) common
+            catalog.add(new Food(i, "TestBrand", "Food " + i,
+                    random.nextInt(600), random.nextInt(50), random.nextInt(50)));
+        }
+
+        long start = System.nanoTime();
+        NutrientTree tree = new NutrientTree(catalog);
+        System.out.printf("Built tree of %d foods in %.1f ms%n", tree.size(), (System.nanoTime() - start) / 1e6);
+
+        int failures = 0;
+        for (int i = 0; i < 200; i++) {
+            int calories = random.nextInt(600);
+            NutrientRange range = new NutrientRange()
+                    .between(Nutrient.CALORIES, calories, calories + random.nextInt(200))
+                    .atLeast(Nutrient.PROTEIN, random.nextInt(50))
+                    .atMost(Nutrient.CARBS, random.nextInt(50));
+
+            long expected = catalog.stream().filter(range::contains).count();
+            ArrayList<Food> found = tree.find(range);
+            if (found.size() != expected || tree.count(range) != expected || !found.stream().allMatch(range::contains)) {
+                failures++;
+            }
+        }
+        System.out.println(failures == 0
+                ? "SUCCESS: every question matches the scan"
+                : "FAILED: " + failures + " questions don't match the scan");
+    }
+}
@@ -10,7 +10,7 @@ import static backend.database.DatabaseManager.DB_TEST_USERNAME;
 
 public class RecipeIngredientTester {
 
-    private Connection conn;
+    private DatabaseManager dbManager;
 
     public static void main(String[] args) throws Exception {
         RecipeIngredientTester tester = new RecipeIngredientTester();
@@ -18,11 +18,11 @@ public class RecipeIngredientTester {
     }
 
     public RecipeIngredientTester() throws Exception {
-        this.conn = new DatabaseManager().establishConnection(DB_TEST_USERNAME).getConnection();
+        this.dbManager = new DatabaseManager().establishConnection(DB_TEST_USERNAME);
     }
 
     private void testToString() throws SQLException {
-        RecipeIngredient testObject = new RecipeIngredient(new FoodManager(this.conn).getFood(0), 150);
+        RecipeIngredient testObject = new RecipeIngredient(new FoodManager(this.dbManager).getFood(0), 150);
         System.out.println(testObject.toString());
     }
 }
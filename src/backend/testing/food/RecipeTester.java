@@ -4,33 +4,201 @@ import backend.database.DatabaseManager;
 import backend.food.FoodManager;
 import backend.food.Recipe;
 import backend.food.RecipeIngredient;
+import backend.food.RecipeManager;
+import backend.food.Food;
 
-import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.List;
 
 import static backend.database.DatabaseManager.DB_TEST_USERNAME;
 
 public class RecipeTester {
-    private Connection conn;
+    private DatabaseManager dbManager;
 
     public static void main(String[] args) throws Exception {
         RecipeTester tester = new RecipeTester();
         tester.testToString();
+        tester.testNutrition();
+        tester.testBulkLoad();
+        tester.testUpdate();
+        tester.testFoodCorrection();
+        tester.testSubRecipes();
     }
 
     public RecipeTester() throws Exception {
-        this.conn = new DatabaseManager().establishConnection(DB_TEST_USERNAME).getConnection();
+        this.dbManager = new DatabaseManager().establishConnection(DB_TEST_USERNAME);
     }
 
     private void testToString() throws SQLException {
         Recipe testObject = new Recipe(0, "peos", "vrasto");
         for (int i = 0; i < 5; i++) {
             RecipeIngredient ingredient = new RecipeIngredient (
-                    new FoodManager(this.conn).getFood(0),
+                    new FoodManager(this.dbManager).getFood(0),
                     150
             );
             testObject.addIngredient(ingredient);
         }
         System.out.println(testObject.toString());
     }
+
+    /**
+     * Stores a recipe with two ingredients and compares the totals summed by the database with the Recipe object's
+     *
+     * @throws SQLException if a database error has occured
+     */
+    private void testNutrition() throws SQLException {
+        FoodManager foodManager = new FoodManager(this.dbManager);
+        RecipeManager recipeManager = new RecipeManager(this.dbManager);
+        foodManager.addFood(new Food(-1, "TestBrand", "Chicken breast", 165, 31, 0));
+        foodManager.addFood(new Food(-2, "TestBrand", "Rice", 130, 2.7, 28));
+
+        Recipe recipe = new Recipe(-1, "Chicken with rice", "test recipe");
+        recipe.addIngredient(new RecipeIngredient(foodManager.getFood(-1), 150));
+        recipe.addIngredient(new RecipeIngredient(foodManager.getFood(-2), 200));
+        double expectedCalories = recipe.getCalories();
+        recipeManager.addRecipe(recipe);
+
+        System.out.println("Expected calories: " + expectedCalories);
+        System.out.println("Single query:      " + recipeManager.getRecipeNutrition(-1));
+        System.out.println("Batched query:     " + recipeManager.getRecipeNutrition(List.of(-1, -2)));
+
+        //The stored totals follow the ingredient changes, so the repair job should find nothing to fix
+        recipeManager.removeIngredient(-1, -2);
+        System.out.println("After removing the rice: " + recipeManager.getRecipeNutrition(-1));
+        System.out.println("Recipes repaired (expected 0): " + recipeManager.repairRecipeTotals());
+
+        recipeManager.deleteRecipe(-1);
+        foodManager.deleteFoods(new int[]{-1, -2});
+    }
+
+    /**
+     * Stores three recipes sharing a food, then loads them by ID and page by page
+     *
+     * @throws SQLException if a database error has occured
+     */
+    private void testBulkLoad() throws SQLException {
+        FoodManager foodManager = new FoodManager(this.dbManager);
+        RecipeManager recipeManager = new RecipeManager(this.dbManager);
+        foodManager.addFood(new Food(-1, "TestBrand", "Chicken breast", 165, 31, 0));
+
+        for (int id = -3; id <= -1; id++) {
+            Recipe recipe = new Recipe(id, "Recipe " + id, "test recipe");
+            recipe.addIngredient(new RecipeIngredient(foodManager.getFood(-1), 100));
+            recipeManager.addRecipe(recipe);
+        }
+
+        List<Recipe> recipes = recipeManager.getRecipes(List.of(-3, -2, -1, -100));
+        System.out.println("Loaded " + recipes.size() + " recipes (expected 3)");
+        System.out.println("Food shared by the recipes: " +
+                (recipes.get(0).getIngredients().get(0).getFood() == recipes.get(2).getIngredients().get(0).getFood()));
+
+        int pageNumber = 1;
+        List<Recipe> page = recipeManager.getRecipes(-4, 2);
+        while (page != null && !page.isEmpty() && page.get(0).getId() < 0) {
+            System.out.println("Page " + pageNumber++ + ": " + page.stream().map(Recipe::getId).toList());
+            page = recipeManager.getRecipes(page.get(page.size() - 1).getId(), 2);
+        }
+
+        for (int id = -3; id <= -1; id++) {
+            recipeManager.deleteRecipe(id);
+        }
+        foodManager.deleteFood(-1);
+    }
+
+    /**
+     * Stores a recipe, then changes one ingredient's quantity, removes another and adds a third
+     *
+     * @throws SQLException if a database error has occured
+     */
+    private void testUpdate() throws SQLException {
+        FoodManager foodManager = new FoodManager(this.dbManager);
+        RecipeManager recipeManager = new RecipeManager(this.dbManager);
+        foodManager.addFood(new Food(-1, "TestBrand", "Chicken breast", 165, 31, 0));
+        foodManager.addFood(new Food(-2, "TestBrand", "Rice", 130, 2.7, 28));
+        foodManager.addFood(new Food(-3, "TestBrand", "Broccoli", 34, 2.8, 7));
+
+        Recipe recipe = new Recipe(-1, "Chicken with rice", "test recipe");
+        recipe.addIngredient(new RecipeIngredient(foodManager.getFood(-1), 150));
+        recipe.addIngredient(new RecipeIngredient(foodManager.getFood(-2), 200));
+        System.out.println("Added: " + recipeManager.addRecipe(recipe) +
+                ", ingredients left in the caller's recipe: " + recipe.getIngredients().size());
+
+        Recipe updated = new Recipe(-1, "Chicken with broccoli", "test recipe");
+        updated.addIngredient(new RecipeIngredient(foodManager.getFood(-1), 200));
+        updated.addIngredient(new RecipeIngredient(foodManager.getFood(-3), 150));
+        System.out.println("Updated: " + recipeManager.updateRecipe(updated));
+        System.out.println(recipeManager.getRecipe(-1));
+
+        recipeManager.deleteRecipe(-1);
+        foodManager.deleteFoods(new int[]{-1, -2, -3});
+    }
+
+    /**
+     * Corrects the calories of a food used by two recipes and checks that their stored totals follow
+     *
+     * @throws SQLException if a database error has occured
+     */
+    private void testFoodCorrection() throws SQLException {
+        FoodManager foodManager = new FoodManager(this.dbManager);
+        RecipeManager recipeManager = new RecipeManager(this.dbManager);
+        foodManager.addFood(new Food(-1, "TestBrand", "Chicken breast", 165, 31, 0));
+
+        for (int id = -2; id <= -1; id++) {
+            Recipe recipe = new Recipe(id, "Recipe " + id, "test recipe");
+            recipe.addIngredient(new RecipeIngredient(foodManager.getFood(-1), 200));
+            recipeManager.addRecipe(recipe);
+        }
+        System.out.println("Recipes using the food: " + recipeManager.getRecipesUsingFood(-1));
+
+        int updated = foodManager.updateFoodNutrients(new Food(-1, "TestBrand", "Chicken breast", 120, 23, 0));
+        System.out.println("Recipes updated (expected 2): " + updated);
+        System.out.println("After correction (expected 240 calories): " + recipeManager.getRecipeNutrition(-1));
+        System.out.println("Recipes repaired (expected 0): " + recipeManager.repairRecipeTotals());
+
+        recipeManager.deleteRecipe(-1);
+        recipeManager.deleteRecipe(-2);
+        foodManager.deleteFood(-1);
+    }
+
+    /**
+     * Uses a sauce in two dishes, one of which also contains the other, tries to create a cycle
+     * and corrects the sauce's food to check that every dish above it is recalculated
+     *
+     * @throws SQLException if a database error has occured
+     */
+    private void testSubRecipes() throws SQLException {
+        FoodManager foodManager = new FoodManager(this.dbManager);
+        RecipeManager recipeManager = new RecipeManager(this.dbManager);
+        foodManager.addFoodListener(recipeManager::foodChanged);
+        foodManager.addFood(new Food(-1, "TestBrand", "Tomato", 20, 1, 4));
+
+        Recipe sauce = new Recipe(-1, "Tomato sauce", "test recipe");
+        sauce.addIngredient(new RecipeIngredient(foodManager.getFood(-1), 500));
+        recipeManager.addRecipe(sauce);
+        recipeManager.addRecipe(new Recipe(-2, "Pasta", "test recipe"));
+        recipeManager.addRecipe(new Recipe(-3, "Pasta for two", "test recipe"));
+        recipeManager.addSubRecipe(-2, -1, 50);
+        recipeManager.addSubRecipe(-3, -1, 100);
+        recipeManager.addSubRecipe(-3, -2, 100);
+
+        //Sauce 100 calories, Pasta 50, Pasta for two 100 + 50 = 150
+        System.out.println("Nutrition (expected 100, 50, 150): " + recipeManager.getRecipeNutrition(List.of(-1, -2, -3)));
+        System.out.println("Cycle rejected: " + !recipeManager.addSubRecipe(-2, -3, 100));
+        System.out.println(recipeManager.getRecipe(-3));
+
+        foodManager.updateFoodNutrients(new Food(-1, "TestBrand", "Tomato", 40, 1, 4));
+        System.out.println("After correction (expected 200, 100, 300): " +
+                recipeManager.getRecipeNutrition(List.of(-1, -2, -3)));
+
+        //Another RecipeManager sharing the cache shares the memoized recipes and their invalidations
+        RecipeManager otherManager = new RecipeManager(this.dbManager, recipeManager.getNutritionCache());
+        otherManager.removeSubRecipe(-3, -2);
+        System.out.println("After another manager's change (expected 200): " +
+                recipeManager.getRecipeNutrition(-3).calories());
+
+        recipeManager.deleteRecipe(-3);
+        recipeManager.deleteRecipe(-2);
+        recipeManager.deleteRecipe(-1);
+        foodManager.deleteFood(-1);
+    }
 }